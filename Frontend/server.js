@@ -1,5 +1,7 @@
 const http = require("http");
 const fs = require('fs').promises;
+const { createReadStream } = require('fs');
+const zlib = require('zlib');
 
 const host = 'localhost';
 const port = 8000;
@@ -36,8 +38,45 @@ const css = function (req, res) {
         });
 };
 
+// a trace written in segments (printwizard.output=mmap) has no single file but a
+// manifest <file>.segments.json, the records of the segments are spliced into the file
+// the frontend expects, the text is not parsed so long values keep their precision
+const readSegments = function (path) {
+    const dir = path.substring(0, path.lastIndexOf('/') + 1)
+    return fs.readFile(path + '.segments.json')
+        .then(manifest => Promise.all(JSON.parse(manifest).segments
+            .map(segment => fs.readFile(dir + segment.file, 'utf8')
+                // deleted by the retention of the logger since the manifest was read
+                .catch(err => err.code === 'ENOENT' ? '' : Promise.reject(err)))))
+        .then(segments => {
+            const traceHeader = '{"trace":['
+            const isTrace = segments.some(segment => segment.startsWith(traceHeader))
+            const header = isTrace ? traceHeader : '['
+            const trailer = isTrace ? ']}' : ']'
+            const records = segments
+                .filter(segment => segment.length > 0)
+                .map(segment => segment.substring(header.length, segment.length - trailer.length))
+                .filter(records => records.length > 0)
+            return header + records.join(',') + trailer
+        });
+};
+
+// a compressed trace (printwizard.compress) is <file>.deflate, a sequence of independent
+// raw deflate blocks listed in <file>.deflate.index.json
+const readCompressed = function (path) {
+    return Promise.all([fs.readFile(path + '.deflate'), fs.readFile(path + '.deflate.index.json')])
+        .then(([compressed, index]) => Buffer.concat(JSON.parse(index).blocks
+            .map(block => zlib.inflateRawSync(compressed.subarray(block.offset, block.offset + block.length)))));
+};
+
+const readTraceFile = function (path) {
+    return fs.readFile(path)
+        .catch(err => err.code === 'ENOENT' ? readCompressed(path) : Promise.reject(err))
+        .catch(err => err.code === 'ENOENT' ? readSegments(path) : Promise.reject(err));
+};
+
 const exposeFile = function (req, res, path) {
-    fs.readFile(path)
+    readTraceFile(path)
         .then(contents => {
             res.setHeader("Content-Type", "application/json");
             res.writeHead(200);
@@ -51,6 +90,22 @@ const exposeFile = function (req, res, path) {
         });
 };
 
+// a trace written with printwizard.format=ndjson is streamed as is, the frontend
+// parses it line by line as it arrives
+const exposeTrace = function (req, res, path) {
+    const lines = path.replace(/\.json$/, '.ndjson')
+    fs.access(path)
+        .then(() => exposeFile(req, res, path))
+        .catch(() => fs.access(lines)
+            .then(() => {
+                res.setHeader("Content-Type", "application/x-ndjson");
+                res.writeHead(200);
+                createReadStream(lines).pipe(res);
+            })
+            // compressed, in segments or missing
+            .catch(() => exposeFile(req, res, path)));
+};
+
 
 const exposeModule = function (req, res, path) {
 
@@ -77,13 +132,13 @@ const requestListener = function (req, res) {
             css(req, res)
             break
         case "/eventTrace":
-            exposeFile(req, res, ProjectFile+'/eventTrace.json')
+            exposeTrace(req, res, ProjectFile+'/eventTrace.json')
             break
         case "/sourceFormat":
             exposeFile(req, res, ProjectFile+'/source_format.json')
             break
         case "/objectData":
-            exposeFile(req, res, ProjectFile+'/objectData.json')
+            exposeTrace(req, res, ProjectFile+'/objectData.json')
             break
         case "/displayTrace":
             exposeModule(req, res, './modules/displayTrace.js');
@@ -610,7 +610,7 @@ class ObjectInspector implements DisplayReferenceData {
                 const refItem = ref.dataType === DataType.InstanceRef ? referenceHtml(ref) : arrayReferenceHtml(ref)
                 return box(PrintWizardStyle.Object, [
                     box(PrintWizardStyle.Line, [refItem]),
-                    box(PrintWizardStyle.Line, [textEl('object not found')])
+                    box(PrintWizardStyle.Line, [textEl(ref.truncated ? 'object not saved, the snapshot was truncated' : 'object not found')])
                 ])
             case 'success':
                 switch (objData.payload.self.dataType) {
@@ -635,7 +635,8 @@ function arrayHtml(obj: ArrayData): HTMLElement {
             const item = logicalGroup([])
             item.appendChild(displayValue(v, appendInspector(item)))
             return item;
-        }))
+        })),
+        ...(obj.length === undefined ? [] : [box(PrintWizardStyle.Line, [textEl(`… ${obj.length - obj.values.length} more elements not saved`)])])
     ])
 }
 
@@ -741,7 +742,7 @@ function displayValue(value: Value, actions: DisplayReferenceData): Node {
     switch (value.dataType) {
         case DataType.Literal:
             const repr = value.kind === "null" ? "null" : value.value.toString()
-            return textEl(repr);
+            return textEl(value.length === undefined ? repr : `${repr}… (${value.length} chars)`);
         case DataType.InstanceRef:
 
             return clickAction(
@@ -753,6 +754,14 @@ function displayValue(value: Value, actions: DisplayReferenceData): Node {
                 [arrayReferenceHtml(value)],
                 () => { actions.inspect(value) }
             );
+        case DataType.Sequence:
+            const more = value.length === undefined ? [] : [textEl(`, … ${value.length - value.values.length} more`)]
+            return spanEl([
+                textEl('['),
+                ...value.values.flatMap((v, i) => i === 0 ? [displayValue(v, actions)] : [textEl(', '), displayValue(v, actions)]),
+                ...more,
+                textEl(']')
+            ], undefined);
     }
 }
 
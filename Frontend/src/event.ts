@@ -24,6 +24,8 @@ export {
     ArgsValues,
     InstanceReference,
     ArrayReference,
+    Sequence,
+    ClassIdentifier,
     EventKindTypes,
     parseEventTrace,
     valueFromJson,
@@ -178,10 +180,103 @@ function makeExecutionStep(nodeId: NodeSourceFormat, kind: ExecutionStepType): E
 
 
 function parseEventTrace(jsonTrace: any[]): Event {
-    const steps = parseSteps(jsonTrace)
-    const [root, notUsed] = parseEvent(steps, 0)
+    const threads: [number, RawStep[]][] = stepsByThread(parseSteps(jsonTrace))
+        .map(([thread, steps]) => [thread, balanceEvents(steps)])
 
-    return root;
+    if (threads.length === 1) {
+        const [thread, steps] = threads[0]
+        const [root, notUsed] = parseEvent(isSingleEvent(steps) ? steps : wrapThread(thread, steps), 0)
+        return root;
+    }
+
+    // each thread becomes a control flow of a synthetic root
+    const children: Execution[] = threads.map(([thread, steps]) => {
+        const [event, notUsed] = parseEvent(wrapThread(thread, steps), 0)
+        return event
+    })
+    return makeEvent(children, { type: EventKindTypes.Flow, kind: { type: 'DefaultContext' } });
+}
+
+/**************
+ ********* threads
+ **************/
+
+const ThreadField = 'thread'
+const SeqField = 'seq'
+
+// the steps of different threads can be interleaved in any order in the trace,
+// the steps of one thread are ordered by their sequence number
+// threads are ordered by their first step, traces without thread are a single thread
+function stepsByThread(steps: RawStep[]): [number, RawStep[]][] {
+    let threads: Map<number, RawStep[]> = new Map()
+
+    steps.forEach(step => {
+        const thread = step.fields.has(ThreadField) ? step.fields.get(ThreadField) : 0
+        if (!threads.has(thread))
+            threads.set(thread, [])
+        threads.get(thread)?.push(step)
+    })
+
+    const seq = (step: RawStep) => step.fields.has(SeqField) ? step.fields.get(SeqField) : 0
+    const sorted = Array.from(threads.entries())
+    sorted.forEach(([thread, threadSteps]) => threadSteps.sort((a, b) => seq(a) - seq(b)))
+    sorted.sort(([t1, steps1], [t2, steps2]) => seq(steps1[0]) - seq(steps2[0]))
+
+    return sorted
+}
+
+// a segment of a long trace (see printwizard.epochSize) can start inside events and
+// end before they are closed, the missing starts and ends are added so that the
+// events of the segment are well nested
+function balanceEvents(steps: RawStep[]): RawStep[] {
+    let open: RawStep[] = []
+    let notOpened: RawStep[] = []
+    steps.forEach(step => {
+        if (step.type !== StepType.GroupEvent)
+            return
+        if (step.fields.get('pos') === 'start')
+            open.push(step)
+        else if (open.length > 0)
+            open.pop()
+        else
+            notOpened.push(step)
+    })
+
+    const withPos = (step: RawStep, pos: string) => {
+        let fields = new Map(step.fields)
+        fields.set('pos', pos)
+        return { type: step.type, fields: fields }
+    }
+    const starts = notOpened.reverse().map(step => withPos(step, 'start'))
+    const ends = open.reverse().map(step => withPos(step, 'end'))
+    return [...starts, ...steps, ...ends]
+}
+
+// whether the steps are the start of an event, its content and its end
+function isSingleEvent(steps: RawStep[]): boolean {
+    let depth = 0
+    for (let i = 0; i < steps.length; i++) {
+        const step = steps[i]
+        if (step.type === StepType.GroupEvent)
+            depth += step.fields.get('pos') === 'start' ? 1 : -1
+        if (depth === 0 && i < steps.length - 1)
+            return false
+    }
+    return steps.length > 0
+}
+
+// a thread may start several events or execute steps outside of any event
+function wrapThread(thread: number, steps: RawStep[]): RawStep[] {
+    const threadEvent = (pos: string) => {
+        let fields = new Map()
+        fields.set('pos', pos)
+        fields.set('eventId', -1 - thread)
+        fields.set('eventType', 'controlFlow')
+        fields.set('kind', { type: 'FunctionContext', functionName: `thread ${thread}` })
+        return { type: StepType.GroupEvent, fields: fields }
+    }
+
+    return [threadEvent('start'), ...steps, threadEvent('end')]
 }
 
 /**************
@@ -269,7 +364,9 @@ function parseEvent(labels: RawStep[], startIndex: number): [Event, number] {
                     callStore.set(current.fields.get('stepId'), step1)
                     break;
                 case 'logReturn':
-                    console.assert(callStore.has(current.fields.get('stepId')))
+                    // the call can be in a previous segment of the trace
+                    if (!callStore.has(current.fields.get('stepId')))
+                        break;
                     let step2: ExecutionStep = callStore.get(current.fields.get('stepId')) as ExecutionStep;
                     console.assert(step2.kind.type === ExecutionStepTypes.Call);
                     (step2.kind as Call).result = valueFromJson(current.fields.get('result'))
@@ -361,8 +458,18 @@ enum StepType {
 ****  parsing functions
 ********/
 
+// a Dropped record is not a step, it tells that some steps were dropped while tracing,
+// see printwizard.overflow
+const DroppedType = 'Dropped'
+
 function parseSteps(jsonTrace: any): RawStep[] {
-    return jsonTrace["trace"].map(parseStep)
+    const trace: any[] = jsonTrace["trace"]
+    const dropped = trace
+        .filter(json => json[TypeField] === DroppedType)
+        .reduce((sum, json) => sum + json['count'], 0)
+    if (dropped > 0)
+        console.warn(`${dropped} steps were dropped while tracing, the trace is incomplete`)
+    return trace.filter(json => json[TypeField] !== DroppedType).map(parseStep)
 }
 
 const TypeField = 'type'
@@ -415,7 +522,8 @@ enum DataType {
     Write = "write",
     ArgsValues = "argsValues",
     Result = "result",
-    Literal = "literal"
+    Literal = "literal",
+    Sequence = "sequence"
 }
 
 
@@ -710,7 +818,7 @@ function dataFromJson(json: any): Data {
 ********* Value
 **************/
 
-type Value = Literal | InstanceReference | ArrayReference;
+type Value = Literal | InstanceReference | ArrayReference | Sequence;
 
 /********
 **** types
@@ -719,10 +827,20 @@ type Value = Literal | InstanceReference | ArrayReference;
 type Literal = {
     dataType: DataType.Literal,
     kind: string,
-    value: number | string | boolean
+    value: number | string | boolean,
+    // the length of a string of which only the beginning was saved
+    length?: number
 }
 
 
+// the elements of a collection or the entries of a map, an entry is the sequence of its key
+// and its value, length is the number of elements when only the first ones were saved
+type Sequence = {
+    dataType: DataType.Sequence,
+    values: Value[],
+    length?: number
+}
+
 /********
 **** parsing
 ********/
@@ -734,7 +852,7 @@ function valueFromJson(json: any): Value {
         case "int": return { dataType: DataType.Literal, kind: 'int', value: readJsonField(valueField, json) };
         case "long": return { dataType: DataType.Literal, kind: 'long', value: readJsonField(valueField, json) };
         case "bool": return { dataType: DataType.Literal, kind: 'bool', value: readJsonField(valueField, json) };
-        case "string": return { dataType: DataType.Literal, kind: 'string', value: readJsonField(valueField, json) };
+        case "string": return { dataType: DataType.Literal, kind: 'string', value: readJsonField(valueField, json), length: json.length };
         case "char": return { dataType: DataType.Literal, kind: 'char', value: readJsonField(valueField, json) };
         case "byte": return { dataType: DataType.Literal, kind: 'byte', value: readJsonField(valueField, json) };
         case "short": return { dataType: DataType.Literal, kind: 'short', value: readJsonField(valueField, json) };
@@ -742,6 +860,9 @@ function valueFromJson(json: any): Value {
         case "double": return { dataType: DataType.Literal, kind: 'double', value: readJsonField(valueField, json) };
         case DataType.InstanceRef: return instanceRefFromJson(json);
         case DataType.ArrayReference: return arrayRefFromJson(json);
+        case DataType.Sequence: return { dataType: DataType.Sequence, values: readJsonField("values", json).map(valueFromJson), length: json.length };
+        // a constant of an enum is displayed as Class.NAME, its fields are not saved
+        case "enum": return { dataType: DataType.Literal, kind: 'enum', value: readJsonField(clazzField, json).className + '.' + readJsonField("name", json) };
         default: return unableToParse(json);
     }
 }
@@ -756,11 +877,14 @@ type Reference = InstanceReference | StaticReference
 **** types
 ********/
 
+// a truncated reference refers to an object that was not saved with the object holding
+// the reference, it is saved on its next read
 type InstanceReference = {
     dataType: DataType.InstanceRef,
     className: ClassIdentifier,
     pointer: number,
-    version: number
+    version: number,
+    truncated?: boolean
 }
 
 type StaticReference = {
@@ -773,7 +897,8 @@ type ArrayReference = {
     dataType: DataType.ArrayReference,
     elemType: string,
     pointer: number,
-    version: number
+    version: number,
+    truncated?: boolean
 }
 
 type ClassIdentifier = {
@@ -818,7 +943,8 @@ function instanceRefFromJson(json: any): InstanceReference {
                 dataType: DataType.InstanceRef,
                 className: readJsonField(clazzField, json),
                 pointer: readJsonField("pointer", json),
-                version: readJsonField(versionField, json)
+                version: readJsonField(versionField, json),
+                truncated: json.truncated
             }
         default:
             return unableToParse(json)
@@ -832,7 +958,8 @@ function arrayRefFromJson(json :any):ArrayReference {
                 dataType: DataType.ArrayReference,
                 pointer: readJsonField("pointer", json),
                 version: readJsonField(versionField, json),
-                elemType: readJsonField("elemType", json)
+                elemType: readJsonField("elemType", json),
+                truncated: json.truncated
             }
         default:
             return unableToParse(json)
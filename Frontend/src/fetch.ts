@@ -92,7 +92,7 @@ async function loadAllData<A>(load: () => Promise<A>): Promise<DataCache<A>> {
 function fetchEventTrace() {
     return fetch('eventTrace')
         .then(response => {
-            return response.json()
+            return readJson(response, values => { return { trace: values } })
         })
 }
 
@@ -110,13 +110,47 @@ function fetchSourceFormat() {
 function fetchSourceObjectData() {
     return fetch('objectData')
         .then(response => {
-            return response.json()
+            return readJson(response, values => values)
         })
         .then(json => {
             return parseObjectStore(json)
         })
 }
 
+// a trace written with printwizard.format=ndjson has one value per line and ends with
+// a commit marker, the lines are parsed as they arrive, the values are then given
+// to fromValues to get the same json as the other formats
+// a trace without commit marker was cut, it is read up to its last complete line
+async function readJson(response: Response, fromValues: (values: any[]) => any): Promise<any> {
+    if (!response.headers.get('Content-Type')?.startsWith('application/x-ndjson') || response.body === null)
+        return response.json()
+
+    const reader = response.body.getReader()
+    const decoder = new TextDecoder()
+    let values: any[] = []
+    let committed = false
+    let pending = ''
+
+    while (true) {
+        const { done, value } = await reader.read()
+        if (done)
+            break
+        const lines = (pending + decoder.decode(value, { stream: true })).split('\n')
+        pending = lines.pop() as string
+        lines.filter(line => line.length > 0).forEach(line => {
+            const json = JSON.parse(line)
+            if (json.commit === true)
+                committed = true
+            else
+                values.push(json)
+        })
+    }
+
+    if (!committed)
+        console.warn(`${response.url} is incomplete, the traced program did not exit normally`)
+    return fromValues(values)
+}
+
 /**************
  ********* constructors
  **************/
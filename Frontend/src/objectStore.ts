@@ -1,4 +1,4 @@
-import { InstanceReference, FieldIdentifier, Value, valueFromJson, ArrayReference, DataType } from "./event"
+import { InstanceReference, FieldIdentifier, Value, valueFromJson, ArrayReference, DataType, ClassIdentifier } from "./event"
 import { Result, failure, success, objectDataCache } from "./fetch"
 export {ObjectData, Field, searchObject, parseObjectStore, Store, ArrayData}
 
@@ -12,33 +12,94 @@ type Field = {
     value: Value
 }
 
+// length is the length of an array of which only the first values were saved
 type ArrayData = {
     self : ArrayReference,
-    values : Value[]
+    values : Value[],
+    length? : number
+}
+
+// the fields of an object that changed since its snapshot of version base, see ObjectDelta in the logger
+type ObjectDelta = {
+    self: InstanceReference,
+    base: number,
+    changes: (Field & { index: number })[]
+}
+
+// the class of the objects and their fields, the object data and the deltas only give
+// the values of the fields by position, see ClassSchema in the logger
+type ClassSchema = {
+    clazz: ClassIdentifier,
+    fields: {name: string, type: string}[]
+}
+
+// an element of the array written since its previous version, see ArrayDelta in the logger
+type ArrayDelta = {
+    self: ArrayReference,
+    index: number,
+    value: Value
 }
 
 type Store = {
-    idToObjects : Map<number, ObjectData[] | ArrayData[]>
+    idToObjects : Map<number, ObjectData[] | (ArrayData | ArrayDelta)[]>
 }
 
 
 function parseObjectStore(json : any): Store{
     //we approximatively validate the schema
     let pointerToVersions : Map<number, ObjectData[]> = new Map() 
+    let deltas : ObjectDelta[] = []
 
+    // a schema is written before the records that use it, but the same schema
+    // is written again in each chunk of the file
+    let schemas : Map<number, ClassSchema> = new Map()
     for(const obj of json){
-    
+        if(obj.schema!==undefined){
+            schemas.set(obj.schema, {
+                clazz: {packageName: obj.packageName, className: obj.className},
+                fields: obj.fields
+            })
+        }
+    }
 
+    for(let obj of json){
+        if(obj.schema!==undefined)
+            continue
 
-        if(obj.self.dataType===DataType.InstanceRef){
-            let object = obj as ObjectData
-            object.fields = object.fields.map(f => {return {
-                identifier: f.identifier, 
-                value: valueFromJson(f.value)
-            }})
+        if(obj.changes!==undefined){
+            const schema = schemas.get(obj.class) as ClassSchema
+            const self = instanceRef(schema, obj)
+            deltas.push({
+                self: self,
+                base: obj.base,
+                changes: obj.changes.map(([index, value]: [number, any]) => {return {
+                    ...field(schema, self, index, value),
+                    index: index
+                }})
+            })
+            continue
+        }
+
+        if(obj.index!==undefined){
+            obj = {
+                self: obj.self,
+                index: obj.index,
+                value: valueFromJson(obj.value)
+            } as ArrayDelta
+        }else if(obj.class!==undefined){
+            const schema = schemas.get(obj.class) as ClassSchema
+            const self = instanceRef(schema, obj)
+            obj = {
+                self: self,
+                fields: obj.values.map((value: any, index: number) => field(schema, self, index, value))
+            } as ObjectData
         }else if(obj.self.dataType===DataType.ArrayReference){
-            let array = obj as ArrayData
-            array.values = array.values.map(v => valueFromJson(v))
+            // the values of a primitive array are written without their type
+            obj = {
+                self: obj.self,
+                values: obj.values.map((value: any) => valueOfType(obj.type, value)),
+                length: obj.length
+            } as ArrayData
         }
        
 
@@ -50,6 +111,12 @@ function parseObjectStore(json : any): Store{
         let arr = pointerToVersions.get(pointer) as ObjectData[]
         arr.push(obj)
     }
+
+    rebuildDeltas(pointerToVersions, deltas)
+
+    // the objects are not written in version order when several threads are traced,
+    // searchObject expects the versions of a pointer in increasing order
+    pointerToVersions.forEach(versions => versions.sort((a, b) => a.self.version - b.self.version))
     
     return {
         idToObjects : pointerToVersions
@@ -58,7 +125,109 @@ function parseObjectStore(json : any): Store{
 }
 
 
+function instanceRef(schema: ClassSchema, json: any): InstanceReference {
+    return {
+        dataType: DataType.InstanceRef,
+        className: schema.clazz,
+        pointer: json.pointer,
+        version: json.version
+    }
+}
+
+function field(schema: ClassSchema, owner: InstanceReference, index: number, value: any): Field {
+    const {name, type} = schema.fields[index]
+    return {
+        identifier: {dataType: DataType.FieldIdentifier, owner: owner, name: name},
+        value: valueOfType(type, value)
+    }
+}
+
+// the value of a primitive field or array element is written without its type
+function valueOfType(type: string, value: any): Value {
+    return valueFromJson(type === "object" ? value : {dataType: type, value: value})
+}
+
+// the snapshot of a delta is its base where the changed fields are replaced, a delta can be
+// the base of another one, and the records are not in version order with several threads
+// the fields kept from the base are owned by the delta and their references get the version
+// of the delta, as if the object had been saved in full
+function rebuildDeltas(pointerToVersions: Map<number, ObjectData[]>, deltas: ObjectDelta[]) {
+    const key = (pointer: number, version: number) => `${pointer}:${version}`
+    let snapshots: Map<string, ObjectData> = new Map()
+    pointerToVersions.forEach(versions => versions.forEach(obj => snapshots.set(key(obj.self.pointer, obj.self.version), obj)))
+    let pending: Map<string, ObjectDelta> = new Map(deltas.map(delta => [key(delta.self.pointer, delta.self.version), delta]))
+
+    const rebuild = (k: string): ObjectData | undefined => {
+        const known = snapshots.get(k)
+        if (known !== undefined)
+            return known
+        const delta = pending.get(k)
+        if (delta === undefined)
+            return undefined
+        pending.delete(k)
+
+        // missing when the base was in a deleted epoch or after the end of a cut trace
+        const base = rebuild(key(delta.self.pointer, delta.base))
+        if (base === undefined)
+            return undefined
+        let fields: Field[] = base.fields.map(f => {return {
+            identifier: {...f.identifier, owner: delta.self},
+            value: withVersion(f.value, delta.self.version)
+        }})
+        delta.changes.forEach(c => fields[c.index] = {identifier: c.identifier, value: c.value})
+
+        const obj: ObjectData = {self: delta.self, fields: fields}
+        snapshots.set(k, obj)
+        if(!pointerToVersions.has(obj.self.pointer)){
+            pointerToVersions.set(obj.self.pointer, [])
+        }
+        pointerToVersions.get(obj.self.pointer)!.push(obj)
+        return obj
+    }
+
+    deltas.forEach(delta => rebuild(key(delta.self.pointer, delta.self.version)))
+}
+
+function withVersion(value: Value, version: number): Value {
+    switch (value.dataType) {
+        case DataType.InstanceRef:
+        case DataType.ArrayReference:
+            return {...value, version: version}
+        case DataType.Sequence:
+            return {...value, values: value.values.map(v => withVersion(v, version))}
+        default:
+            return value
+    }
+}
+
+// the array at the version of a delta is the previous version of the array where the
+// element is replaced, it is only rebuilt when it is looked up since an array can be large
+// and written often, versions is in version order and the result replaces the delta
+// only the first elements of a long array are saved (see length), the writes of the
+// elements after them are ignored
+function materialize(versions: (ArrayData | ArrayDelta)[], i: number): ArrayData | undefined {
+    let start = i
+    while (start >= 0 && "index" in versions[start])
+        start--
+    // missing when the full array was in a deleted epoch
+    if (start < 0)
+        return undefined
+
+    let array = versions[start] as ArrayData
+    for (let j = start + 1; j <= i; j++) {
+        const delta = versions[j] as ArrayDelta
+        let values = array.values.map(v => withVersion(v, delta.self.version))
+        if (delta.index < values.length)
+            values[delta.index] = delta.value
+        array = {self: delta.self, values: values, length: array.length}
+        versions[j] = array
+    }
+    return array
+}
+
 // we return the latest object with version<=ref.version
+// the object of a truncated reference can be saved after the reference, on its next read,
+// we then return the first object saved after it
 function searchObject(ref : InstanceReference | ArrayReference): Result<ObjectData | ArrayData> {
     let res = objectDataCache().data()
     let store
@@ -70,14 +239,18 @@ function searchObject(ref : InstanceReference | ArrayReference): Result<ObjectDa
     let versions = store.idToObjects.get(ref.pointer)
     if(versions===undefined)
         return failure()
-    versions = versions as ObjectData[] | ArrayData[]
+    versions = versions as ObjectData[] | (ArrayData | ArrayDelta)[]
 
-    let latest : ObjectData | ArrayData = versions[0]
-    for(const obj of versions){
-        if(obj.self.version>ref.version){
-            return latest.self.version<=ref.version ? success(latest) : failure();
-        }
-        latest = obj;
+    let latest = 0
+    for(let i = 0; i < versions.length && versions[i].self.version<=ref.version; i++){
+        latest = i
     }
-    return success(latest);
+    if(versions[latest].self.version>ref.version && !ref.truncated)
+        return failure();
+
+    const obj = versions[latest]
+    if(!("index" in obj))
+        return success(obj);
+    const array = materialize(versions as (ArrayData | ArrayDelta)[], latest)
+    return array===undefined ? failure() : success(array);
 }
\ No newline at end of file
@@ -1,12 +1,17 @@
 package ch.epfl.systemf.InstrumentationPlugin;
 
 
+import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Type;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.TreeMaker;
 import com.sun.tools.javac.util.List;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
 public class Logger {
 
     private TreeHelper helper;
@@ -28,14 +33,12 @@ public class Logger {
     private static final String FILE_LOGGER_PACKAGE = "ch.epfl.systemf";
     private static final String FILE_LOGGER_CLAZZ = "FileLogger";
 
+    // the most arguments of a call logged without array, see FileLogger.CallStep.logCall
+    public static final int MAX_ARITY = 6;
+
     private static final TreeHelper.SimpleClass FILE_Logger = new TreeHelper.SimpleClass(FILE_LOGGER_PACKAGE, FILE_LOGGER_CLAZZ);
 
     public enum FileLoggerSubClasses {
-        TryCatch("TryCatch"),
-        DefaultControlFlow("DefaultControlFlow"),
-        FunControlFlow("FunctionContext"),
-        Statment("Statment"),
-        SubStatment("SubStatment"),
         Call("Call"),
         VoidCall("VoidCall"),
         Write("Write"),
@@ -44,6 +47,7 @@ public class Logger {
         LocalIdentifier("LocalIdentifier"),
         StaticIdentifier("StaticIdentifier"),
         FieldIdentifier("FieldIdentifier"),
+        FieldSink("FieldSink"),
         Value("Value");
 
         public final TreeHelper.SimpleClass clazz;
@@ -54,6 +58,122 @@ public class Logger {
 
     }
 
+    /*******************************************************
+     **************** sites ********
+     *******************************************************/
+
+    // the node keys, function names and local variable names used by the code of a class are
+    // its sites, the code gives their ids $pw$sites[i] instead of the strings
+    // the class holds the ids in a static field initialized first by FileLogger.registerSites,
+    // see TreeInstrumenter.visitClassDef and Sites in the logger
+    // javac moves the constants of an enum before the other static fields, their constructors
+    // run before the field is initialized, an enum gets its ids from FileLogger.classSites
+    // instead, which registers the descriptors returned by its $pw$siteDescriptors() once,
+    // each method of an enum gets them at its entry in a local, see enterMethod
+    private static final String SITES_FIELD = "$pw$sites";
+    private static final String DESCRIPTORS_METHOD = "$pw$siteDescriptors";
+
+    // a site is only used for one kind of object, the same string gets a site per kind
+    private static final String NODE_SITE = "node";
+    private static final String FUNCTION_SITE = "function";
+    private static final String LOCAL_SITE = "local";
+
+    public static final class SiteTable {
+        private final Symbol.ClassSymbol clazz;
+        // null for an enum
+        private final Symbol.VarSymbol field;
+        // null if the ids are held by the field
+        private final Symbol.MethodSymbol descriptorsMethod;
+        // the local holding the ids in the method being translated, for an enum
+        private Symbol.VarSymbol local;
+        private final java.util.List<String> descriptors = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        private SiteTable(Symbol.ClassSymbol clazz, Symbol.VarSymbol field, Symbol.MethodSymbol descriptorsMethod) {
+            this.clazz = clazz;
+            this.field = field;
+            this.descriptorsMethod = descriptorsMethod;
+        }
+    }
+
+    // the table of the class being translated, the classes nested in it have their own
+    private SiteTable sites;
+
+    // returns the table of the enclosing class, given back to exitClass
+    public SiteTable enterClass(Symbol.ClassSymbol clazz) {
+        SiteTable outer = sites;
+        if ((clazz.flags() & Flags.ENUM) != 0) {
+            sites = new SiteTable(clazz, null,
+                    new Symbol.MethodSymbol(Flags.PRIVATE | Flags.STATIC | Flags.SYNTHETIC,
+                            helper.name(DESCRIPTORS_METHOD),
+                            helper.methodWithoutExceptions(clazz, List.nil(), helper.arrayType(helper.string)),
+                            clazz));
+        } else {
+            // the fields of an interface are public
+            long access = (clazz.flags() & Flags.INTERFACE) != 0 ? Flags.PUBLIC : Flags.PRIVATE;
+            sites = new SiteTable(clazz,
+                    helper.finalStaticField(access | Flags.SYNTHETIC, clazz, helper.arrayType(helper.intP), SITES_FIELD),
+                    null);
+        }
+        return outer;
+    }
+
+    // the declaration of the field holding the ids of the sites of the class, or of the method
+    // giving their descriptors for an enum, nothing if the code of the class has no site
+    public List<JCTree> exitClass(SiteTable outer) {
+        SiteTable table = sites;
+        sites = outer;
+        if (table.descriptors.isEmpty())
+            return List.nil();
+        JCTree.JCExpression descriptors = helper.stringArray(List.from(table.descriptors));
+        // the members are written by the class writer
+        if (table.field == null) {
+            // private static String[] $pw$siteDescriptors() { return new String[]{...}; }
+            table.clazz.members().enter(table.descriptorsMethod);
+            table.descriptorsMethod.params = List.nil();
+            return List.of(mkTree.MethodDef(table.descriptorsMethod, mkTree.Block(0, List.of(mkTree.Return(descriptors)))));
+        }
+        table.clazz.members().enter(table.field);
+        JCTree.JCExpression register = helper.callStaticMethod(
+                FILE_Logger,
+                "registerSites",
+                List.of(helper.arrayType(helper.string)),
+                helper.arrayType(helper.intP),
+                List.of(descriptors));
+        return List.of(mkTree.VarDef(table.field, register));
+    }
+
+    // the local holding the ids of the sites in method, to declare at its entry with classSites
+    // as value, null if the class holds them in its field
+    public Symbol.VarSymbol enterMethod(Symbol.MethodSymbol method) {
+        if (sites.field != null)
+            return null;
+        sites.local = new Symbol.VarSymbol(Flags.FINAL | Flags.SYNTHETIC, helper.name(SITES_FIELD),
+                helper.arrayType(helper.intP), method);
+        return sites.local;
+    }
+
+    public void exitMethod() {
+        sites.local = null;
+    }
+
+    // the ids of the sites of the enum being translated, once per call of a method
+    public JCTree.JCExpression classSites() {
+        return helper.callStaticMethod(FILE_Logger, "classSites", List.of(helper.classType),
+                helper.arrayType(helper.intP), List.of(helper.classLiteral(sites.clazz)));
+    }
+
+    private JCTree.JCExpression site(String kind, String descriptor) {
+        Integer index = sites.indexes.get(kind + ":" + descriptor);
+        if (index == null) {
+            index = sites.descriptors.size();
+            sites.descriptors.add(descriptor);
+            sites.indexes.put(kind + ":" + descriptor, index);
+        }
+        Symbol.VarSymbol ids = sites.field != null ? sites.field : sites.local;
+        return mkTree.Indexed(mkTree.Ident(ids), mkTree.Literal(index)).setType(helper.intP);
+    }
+
     /*******************************************************
      **************** make concepts ********
      *******************************************************/
@@ -62,83 +182,140 @@ public class Logger {
      ********* Group Event
      **************/
 
-    public JCTree.JCExpression tryCatch() {
-        return helper.callStaticMethod(
-                FILE_Logger,
-                "tryCatch",
-                List.nil(),
-                helper.type(FileLoggerSubClasses.TryCatch.clazz),
-                List.nil());
+    // the enter methods return the token of the event, a long, see FileLogger.exit
+
+    public JCTree.JCExpression enterControlFlow() {
+        return enterGroup("enterControlFlow", List.nil());
     }
 
-    public JCTree.JCExpression controlFlow() {
-        return helper.callStaticMethod(
-                FILE_Logger,
-                "controlFlow",
-                List.nil(),
-                helper.type(FileLoggerSubClasses.DefaultControlFlow.clazz),
-                List.nil());
+    public JCTree.JCExpression enterFunction(String fullName) {
+        return enterGroup("enterFunction", List.of(site(FUNCTION_SITE, fullName)));
+    }
+
+    public JCTree.JCExpression enterStatement() {
+        return enterGroup("enterStatement", List.nil());
+    }
+
+    public JCTree.JCExpression enterSubStatement() {
+        return enterGroup("enterSubStatement", List.nil());
     }
 
-    public JCTree.JCExpression functionFlow(String fullName) {
+    private JCTree.JCExpression enterGroup(String name, List<JCTree.JCExpression> args) {
         return helper.callStaticMethod(
                 FILE_Logger,
-                "functionFlow",
-                List.of(helper.string),
-                helper.type(FileLoggerSubClasses.FunControlFlow.clazz),
-                List.of(mkTree.Literal(fullName)));
+                name,
+                args.map(arg -> helper.intP),
+                helper.longP,
+                args);
+    }
+
+    public JCTree.JCExpression exit(Symbol token) {
+        return exitGroup("exit", token);
     }
 
-    public JCTree.JCExpression statment(String info) {
-        JCTree.JCExpression tmp = helper.callStaticMethod(
+    public JCTree.JCExpression exitUpTo(Symbol token) {
+        return exitGroup("exitUpTo", token);
+    }
+
+    private JCTree.JCExpression exitGroup(String name, Symbol token) {
+        return helper.callStaticMethod(
                 FILE_Logger,
-                "statment",
-                List.of(helper.string),
-                helper.type(FileLoggerSubClasses.Statment.clazz),
-                List.of(mkTree.Literal(info)));
-        return tmp;
+                name,
+                List.of(helper.longP),
+                helper.intP,
+                List.of(mkTree.Ident(token)));
     }
 
-    public JCTree.JCExpression subStatment(String info) {
+    /**************
+     ********* object id
+     **************/
+
+    public JCTree.JCExpression objectId() {
         return helper.callStaticMethod(
                 FILE_Logger,
-                "subStatment",
-                List.of(helper.string),
-                helper.type(FileLoggerSubClasses.SubStatment.clazz),
-                List.of(mkTree.Literal(info)));
+                "objectId",
+                List.nil(),
+                helper.longP,
+                List.nil());
+    }
+
+    /**************
+     ********* snapshot
+     **************/
+
+    // sink.intField(name, value), the primitive values are not boxed
+    public JCTree.JCStatement snapshotField(Symbol.VarSymbol sink, String name, JCTree.JCExpression value, Type type) {
+        String method = switch (type.getTag()) {
+            case INT -> "intField";
+            case LONG -> "longField";
+            case FLOAT -> "floatField";
+            case DOUBLE -> "doubleField";
+            case BOOLEAN -> "booleanField";
+            case CHAR -> "charField";
+            case BYTE -> "byteField";
+            case SHORT -> "shortField";
+            default -> "objectField";
+        };
+        return mkTree.Exec(helper.callInstanceMethod(
+                mkTree.Ident(sink),
+                FileLoggerSubClasses.FieldSink.clazz,
+                method,
+                List.of(helper.string, type.isPrimitive() ? type : helper.objectP),
+                helper.voidP,
+                List.of(mkTree.Literal(name), value)));
     }
 
     /**************
      ********* execution step
      **************/
 
+    // an expression with no or one assignment is logged without array of writes
     public JCTree.JCExpression logSimpleExpression(SourceFormat.NodeSourceFormat nodeFormat, Value result, List<Write> assigns) {
+        if (assigns.size() <= 1) {
+            return helper.callStaticMethod(
+                    FILE_Logger,
+                    "logSimpleExpression",
+                    List.of(helper.intP, helper.type(FileLoggerSubClasses.Value.clazz))
+                            .appendList(List.fill(assigns.size(), helper.type(FileLoggerSubClasses.Write.clazz))),
+                    helper.intP,
+                    List.of(site(NODE_SITE, nodeFormat.identifier()), result.value)
+                            .appendList(assigns.map(a -> a.write)));
+        }
         return helper.callStaticMethod(
                 FILE_Logger,
                 "logSimpleExpression",
                 List.of(
-                        helper.string,
+                        helper.intP,
                         helper.type(FileLoggerSubClasses.Value.clazz),
                         helper.arrayType(FileLoggerSubClasses.Write.clazz)
                 ),
                 helper.intP,
                 List.of(
-                        mkTree.Literal(nodeFormat.identifier()),
+                        site(NODE_SITE, nodeFormat.identifier()),
                         result.value,
                         helper.array(FileLoggerSubClasses.Write.clazz, assigns.map(a -> a.write))));
     }
 
     public JCTree.JCExpression logSimpleExpression(SourceFormat.NodeSourceFormat nodeFormat, List<Write> assigns) {
+        if (assigns.size() <= 1) {
+            return helper.callStaticMethod(
+                    FILE_Logger,
+                    "logSimpleExpression",
+                    List.of(helper.intP).appendList(List.fill(assigns.size(), helper.type(FileLoggerSubClasses.Write.clazz))),
+                    helper.intP,
+                    List.<JCTree.JCExpression>of(site(NODE_SITE, nodeFormat.identifier()))
+                            .appendList(assigns.map(a -> a.write)));
+        }
         return helper.callStaticMethod(
                 FILE_Logger,
                 "logSimpleExpression",
                 List.of(
-                        helper.string,
+                        helper.intP,
                         helper.arrayType(FileLoggerSubClasses.Write.clazz)
                 ),
                 helper.intP,
                 List.of(
-                        mkTree.Literal(nodeFormat.identifier()),
+                        site(NODE_SITE, nodeFormat.identifier()),
                         helper.array(FileLoggerSubClasses.Write.clazz, assigns.map(a -> a.write))));
     }
 
@@ -146,18 +323,18 @@ public class Logger {
         return helper.callStaticMethod(
                 FILE_Logger,
                 "call",
-                List.of(helper.string),
+                List.of(helper.intP),
                 helper.type(FileLoggerSubClasses.Call.clazz),
-                List.of(mkTree.Literal(nodeFormat.identifier())));
+                List.of(site(NODE_SITE, nodeFormat.identifier())));
     }
 
     public JCTree.JCExpression voidCall(SourceFormat.NodeSourceFormat format) {
         return helper.callStaticMethod(
                 FILE_Logger,
                 "voidCall",
-                List.of(helper.string),
+                List.of(helper.intP),
                 helper.type(FileLoggerSubClasses.VoidCall.clazz),
-                List.of(mkTree.Literal(format.identifier())));
+                List.of(site(NODE_SITE, format.identifier())));
     }
 
     /**************
@@ -197,13 +374,26 @@ public class Logger {
                 List.of(obj)));
     }
 
+    // array[index] was written, value is the new value of the element
+    public JCTree.JCExpression writeElement(Symbol array, Symbol index, Value value) {
+        return helper.callStaticMethod(
+                FILE_Logger,
+                "writeElement",
+                List.of(helper.objectP, helper.intP, helper.type(FileLoggerSubClasses.Value.clazz)),
+                helper.intP,
+                List.of(mkTree.Ident(array), mkTree.Ident(index), value.value));
+    }
+
     public record Value(JCTree.JCExpression value){}
 
+    // the overload of the static type of value, a primitive is then not boxed, the type of
+    // a constant is the type without its value
     public Value valueRepr(JCTree.JCExpression value) {
+        Type type = value.type != null && value.type.isPrimitive() ? value.type.baseType() : helper.objectP;
         return new Value(helper.callStaticMethod(
                 FILE_Logger,
                 "valueRepr",
-                List.of(helper.objectP),
+                List.of(type),
                 helper.type(FileLoggerSubClasses.Value.clazz),
                 List.of(value)));
     }
@@ -214,14 +404,13 @@ public class Logger {
 
     public record Identifier(JCTree.JCExpression ident){}
 
-    public Identifier localIdentifier(String parentNodeId, String name) {
-
+    public Identifier localIdentifier(String name) {
         return new Identifier(helper.callStaticMethod(
                 FILE_Logger,
                 "localIdentifier",
-                List.of(helper.string, helper.string),
+                List.of(helper.intP),
                 helper.type(FileLoggerSubClasses.LocalIdentifier.clazz),
-                List.of(mkTree.Literal(parentNodeId), mkTree.Literal(name))));
+                List.of(site(LOCAL_SITE, name))));
     }
 
     public Identifier staticIdentifier(String packageName, String className, String name) {
@@ -247,45 +436,6 @@ public class Logger {
      **************** call instance methods ********
      *******************************************************/
 
-    /**************
-     ********* group events instance methods
-     **************/
-
-    public JCTree.JCExpression groupMethod(String name, Symbol clazzInstance, TreeHelper.SimpleClass clazz) {
-
-        return helper.callInstanceMethod(
-                mkTree.Ident(clazzInstance),
-                clazz,
-                name,
-                List.nil(),
-                helper.intP,
-                List.nil()
-        );
-    }
-
-    public JCTree.JCExpression enter(Symbol clazzInstance, TreeHelper.SimpleClass clazz) {
-
-        return helper.callInstanceMethod(
-                mkTree.Ident(clazzInstance),
-                clazz,
-                "enter",
-                List.nil(),
-                helper.intP,
-                List.nil()
-        );
-    }
-
-    public JCTree.JCExpression exit(Symbol clazzInstance, TreeHelper.SimpleClass clazz) {
-        return helper.callInstanceMethod(
-                mkTree.Ident(clazzInstance),
-                clazz,
-                "exit",
-                List.nil(),
-                helper.intP,
-                List.nil()
-        );
-    }
-
     /**************
      ********* execution steps
      **************/
@@ -295,14 +445,25 @@ public class Logger {
                 mkTree.Ident(clazzInstance),
                 FileLoggerSubClasses.Call.clazz,
                 "logCall",
-                List.of(helper.arrayType(FileLoggerSubClasses.Value.clazz)),
+                argTypes(argValues),
                 helper.intP,
-                List.of(helper.array(
-                        FileLoggerSubClasses.Value.clazz,
-                        argValues.map(v -> v.value)))
+                args(argValues)
         );
     }
 
+    // the arguments of a call are given one by one up to MAX_ARITY arguments, in an array above
+    private List<Type> argTypes(List<Value> argValues) {
+        return argValues.size() <= MAX_ARITY
+                ? List.fill(argValues.size(), helper.type(FileLoggerSubClasses.Value.clazz))
+                : List.of(helper.arrayType(FileLoggerSubClasses.Value.clazz));
+    }
+
+    private List<JCTree.JCExpression> args(List<Value> argValues) {
+        return argValues.size() <= MAX_ARITY
+                ? argValues.map(v -> v.value)
+                : List.of(helper.array(FileLoggerSubClasses.Value.clazz, argValues.map(v -> v.value)));
+    }
+
     public JCTree.JCExpression logReturn(Symbol clazzInstance, Value result) {
         return helper.callInstanceMethod(
                 mkTree.Ident(clazzInstance),
@@ -319,11 +480,9 @@ public class Logger {
                 mkTree.Ident(clazzInstance),
                 FileLoggerSubClasses.VoidCall.clazz,
                 "logCall",
-                List.of(helper.arrayType(FileLoggerSubClasses.Value.clazz)),
+                argTypes(argValues),
                 helper.intP,
-                List.of(helper.array(
-                        FileLoggerSubClasses.Value.clazz,
-                        argValues.map(v -> v.value)))
+                args(argValues)
         );
     }
 
@@ -13,6 +13,8 @@ import com.sun.tools.javac.tree.TreeMaker;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.Names;
 
+import java.util.Arrays;
+
 
 public class SampleJavacPlugin implements Plugin {
 
@@ -25,8 +27,12 @@ public class SampleJavacPlugin implements Plugin {
         return t==null ? "Null" : t.getClass().toString();
     }
 
+    // -Xplugin:"MyPlugin objectIdField" injects an id field in the instrumented classes, see TreeInstrumenter
+    private static final String OBJECT_ID_FIELD = "objectIdField";
+
     @Override
     public void init(JavacTask task, String... args) {
+        boolean objectIdField = Arrays.asList(args).contains(OBJECT_ID_FIELD);
         Context ctx  = ((BasicJavacTask) task).getContext();
         System.out.println("hello world");
         Names names = Names.instance(ctx);
@@ -41,7 +47,7 @@ public class SampleJavacPlugin implements Plugin {
                     TreeHelper instr = new TreeHelper(mkTree,names, symb);
                     Logger logHelper = new Logger(instr);
                     SourceFormat makeNodeId = new SourceFormat((JCTree.JCCompilationUnit)e.getCompilationUnit());
-                    TreeInstrumenter t = new TreeInstrumenter(logHelper, instr, types, makeNodeId);
+                    TreeInstrumenter t = new TreeInstrumenter(logHelper, instr, types, makeNodeId, objectIdField);
                     t.translate((JCTree.JCCompilationUnit)e.getCompilationUnit());
                 }
 
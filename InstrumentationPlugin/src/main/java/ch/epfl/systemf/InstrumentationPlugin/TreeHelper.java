@@ -23,9 +23,13 @@ public class TreeHelper {
     private final Symtab symb;
     public final Type voidP;
     public final Type intP;
+    public final Type longP;
     public final Type string;
     public final Type boolP;
     public final Type objectP;
+    public final Type serializable;
+    public final Type cloneable;
+    public final Type classType;
     public final JCTree.JCLiteral nullLiteral;
 
     public TreeHelper(TreeMaker mkTree, Names names, Symtab symb) {
@@ -34,10 +38,14 @@ public class TreeHelper {
         this.names = names;
         this.voidP = symb.voidType;
         this.intP = symb.intType;
+        this.longP = symb.longType;
         SimpleClass string = new SimpleClass("java.lang", "String");
         this.string = type(string);
         this.boolP = symb.booleanType;
         this.objectP = symb.objectType;
+        this.serializable = symb.serializableType;
+        this.cloneable = symb.cloneableType;
+        this.classType = symb.classType;
         this.nullLiteral = mkTree.Literal(TypeTag.BOT, null).setType(symb.botType);
     }
 
@@ -115,8 +123,16 @@ public class TreeHelper {
     }
 
 
-    public Symbol.VarSymbol finalStaticField(Symbol owner, Type type, String name) {
-        return new Symbol.VarSymbol(Flags.PUBLIC | Flags.STATIC | Flags.FINAL,
+    // access is PUBLIC, PRIVATE, ...
+    public Symbol.VarSymbol finalStaticField(long access, Symbol owner, Type type, String name) {
+        return new Symbol.VarSymbol(access | Flags.STATIC | Flags.FINAL,
+                name(name),
+                type,
+                owner);
+    }
+
+    public Symbol.VarSymbol instanceField(long flags, Symbol.ClassSymbol owner, Type type, String name) {
+        return new Symbol.VarSymbol(flags,
                 name(name),
                 type,
                 owner);
@@ -130,6 +146,23 @@ public class TreeHelper {
         );
     }
 
+    public JCTree.JCExpression classLiteral(Symbol.ClassSymbol clazz) {
+        return mkTree.ClassLiteral(clazz).setType(classType);
+    }
+
+    public Type arrayType(Type elemType) {
+        return new Type.ArrayType(elemType, symb.arrayClass);
+    }
+
+    public JCTree.JCExpression stringArray(List<String> values) {
+        JCTree.JCNewArray arr = mkTree.NewArray(
+                mkTree.Type(string),
+                List.of(mkTree.Literal(values.size())),
+                values.map(mkTree::Literal));
+        arr.setType(arrayType(string));
+        return arr;
+    }
+
     public Type arrayType(SimpleClass elemTypes){
         return new Type.ArrayType(type(elemTypes), symb.arrayClass);
     }
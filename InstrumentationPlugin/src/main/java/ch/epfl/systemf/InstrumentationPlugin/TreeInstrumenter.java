@@ -1,11 +1,14 @@
 package ch.epfl.systemf.InstrumentationPlugin;
 
 import com.sun.source.tree.Tree;
+import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.Kinds;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.code.TypeTag;
 import com.sun.tools.javac.code.Types;
 import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
 import com.sun.tools.javac.tree.TreeMaker;
 import com.sun.tools.javac.tree.TreeTranslator;
 import com.sun.tools.javac.util.List;
@@ -26,37 +29,31 @@ public class TreeInstrumenter extends TreeTranslator {
     private final TreeMaker mkTree;
     private final Context context = new Context();
     private final SourceFormat makeNodeId;
+    private final boolean objectIdField;
 
     private final TreeHelper.SimpleClass CALL = Logger.FileLoggerSubClasses.Call.clazz;
     private final Type callType;
 
-    private final TreeHelper.SimpleClass Flow = Logger.FileLoggerSubClasses.DefaultControlFlow.clazz;
-    private final Type flowType;
-
-    private final TreeHelper.SimpleClass FunFlow = Logger.FileLoggerSubClasses.FunControlFlow.clazz;
-    private final Type funFlowType;
-
-    private final TreeHelper.SimpleClass Statement = Logger.FileLoggerSubClasses.Statment.clazz;
-    private final Type statementType;
-
-    private final TreeHelper.SimpleClass SubStatement = Logger.FileLoggerSubClasses.SubStatment.clazz;
-    private final Type subStatementType;
+    // a group event is a local holding its token, see Logger.exit
+    private final Type groupType;
 
     private final TreeHelper.SimpleClass Value = Logger.FileLoggerSubClasses.Value.clazz;
     private final Type valueType;
 
 
     public TreeInstrumenter(Logger logHelper, TreeHelper helper, Types types, SourceFormat makeNodeId) {
+        this(logHelper, helper, types, makeNodeId, false);
+    }
+
+    public TreeInstrumenter(Logger logHelper, TreeHelper helper, Types types, SourceFormat makeNodeId, boolean objectIdField) {
         super();
+        this.objectIdField = objectIdField;
         this.logHelper = logHelper;
         this.helper = helper;
         this.mkTree = helper.mkTree;
         this.makeNodeId = makeNodeId;
         this.types = types;
-        statementType = helper.type(Statement);
-        subStatementType = helper.type(SubStatement);
-        flowType = helper.type(Flow);
-        funFlowType = helper.type(FunFlow);
+        groupType = helper.longP;
         callType = helper.type(CALL);
         valueType = helper.type(Value);
     }
@@ -69,25 +66,25 @@ public class TreeInstrumenter extends TreeTranslator {
         private final Stack<MethodContext> methodStack = new Stack<>();
 
         public record MethodContext(Symbol.MethodSymbol methodSymbol, Symbol.VarSymbol methodEventGroup,
-                                    TreeHelper.SimpleClass flowKind, Type returnType) {
+                                    Type returnType) {
         }
 
         public Symbol.VarSymbol enterLambda(Type returnType) {
             // TODO search for return value of single method, otherwise we will have problems
             Symbol.VarSymbol methodEventGroup = new Symbol.VarSymbol(0,
                     helper.name("||||" + (symbolNumber++)),
-                    funFlowType,
+                    groupType,
                     this.currentMethod().methodSymbol);
-            methodStack.push(new MethodContext(this.currentMethod().methodSymbol, methodEventGroup, FunFlow, returnType));
+            methodStack.push(new MethodContext(this.currentMethod().methodSymbol, methodEventGroup, returnType));
             return methodEventGroup;
         }
 
         public Symbol.VarSymbol enterMethod(Symbol.MethodSymbol methodSymbol) {
             Symbol.VarSymbol methodEventGroup = new Symbol.VarSymbol(0,
                     helper.name("||||" + (symbolNumber++)),
-                    funFlowType,
+                    groupType,
                     methodSymbol);
-            methodStack.push(new MethodContext(methodSymbol, methodEventGroup, FunFlow, methodSymbol.getReturnType()));
+            methodStack.push(new MethodContext(methodSymbol, methodEventGroup, methodSymbol.getReturnType()));
             return methodEventGroup;
         }
 
@@ -112,6 +109,8 @@ public class TreeInstrumenter extends TreeTranslator {
     public void visitClassDef(JCTree.JCClassDecl tree) {
         //TODO we don't support when several classes are defined in the same file (we support inner classes)
         List<JCTree> translated = List.nil();
+        List<JCTree.JCVariableDecl> fields = List.nil();
+        Logger.SiteTable outer = logHelper.enterClass(tree.sym);
         for (JCTree def : tree.defs) {
             switch (def) {
                 case JCTree.JCClassDecl clazz:
@@ -125,15 +124,98 @@ public class TreeInstrumenter extends TreeTranslator {
                     // we need some trick
                     // TODO create function that take the result return it and log an executionStep
                     translated = translated.append(decl);
+                    fields = fields.append(decl);
                     break;
                 default:
                     throw new UnsupportedOperationException();
             }
         }
+        if (!tree.sym.isInterface()) {
+            translated = translated.append(snapshotMethod(tree.sym, fields));
+        }
+        if (objectIdField && canInjectObjectId(tree.sym)) {
+            translated = translated.prependList(objectIdFields(tree.sym));
+        }
+        // first, the ids are known before the other static fields are initialized
+        translated = translated.prependList(logHelper.exitClass(outer));
         tree.defs = translated;
         this.result = tree;
     }
 
+    /*******************************************************
+     **************** snapshot ******************
+     *******************************************************/
+
+    // the logger saves the fields declared by the class through this method instead of reflection
+    // private static void $pw$snapshot(C self, FileLogger.FieldSink sink) {
+    //     sink.intField("x", self.x);
+    //     ...
+    // }
+    // the fields added later by javac (this$0, captured variables) are not known yet, the logger
+    // keeps reflection for the classes that have some, see SnapshotPlan in the logger
+    private static final String SNAPSHOT_METHOD = "$pw$snapshot";
+
+    private JCTree.JCMethodDecl snapshotMethod(Symbol.ClassSymbol clazz, List<JCTree.JCVariableDecl> fields) {
+        Symbol.MethodSymbol method = new Symbol.MethodSymbol(Flags.PRIVATE | Flags.STATIC,
+                helper.name(SNAPSHOT_METHOD),
+                helper.methodWithoutExceptions(clazz,
+                        List.of(types.erasure(clazz.type), helper.type(Logger.FileLoggerSubClasses.FieldSink.clazz)),
+                        helper.voidP),
+                clazz);
+        clazz.members().enter(method);
+
+        JCTree.JCMethodDecl decl = mkTree.MethodDef(method, null);
+        method.params = decl.params.map(param -> param.sym);
+        Symbol.VarSymbol self = method.params.get(0);
+        Symbol.VarSymbol sink = method.params.get(1);
+        decl.body = mkTree.Block(0, fields.map(field -> logHelper.snapshotField(
+                sink,
+                field.name.toString(),
+                (field.sym.flags() & Flags.STATIC) != 0 ? mkTree.Ident(field.sym) : mkTree.Select(mkTree.Ident(self), field.sym),
+                field.sym.type)));
+        return decl;
+    }
+
+    /*******************************************************
+     **************** object id ******************
+     *******************************************************/
+
+    // with the option objectIdField every instance holds its id, the last epoch in which it
+    // was read, its last snapshot and the version of its last reference, the logger does not
+    // need System.identityHashCode, see ObjectIds in the logger
+    private static final String ID_FIELD = "$pw$id";
+    private static final String EPOCH_FIELD = "$pw$epoch";
+    private static final String LAST_FIELD = "$pw$last";
+    private static final String VERSION_FIELD = "$pw$version";
+
+    private List<JCTree> objectIdFields(Symbol.ClassSymbol clazz) {
+        Symbol.VarSymbol id = helper.instanceField(Flags.PRIVATE | Flags.FINAL, clazz, helper.longP, ID_FIELD);
+        Symbol.VarSymbol epoch = helper.instanceField(Flags.PRIVATE, clazz, helper.intP, EPOCH_FIELD);
+        Symbol.VarSymbol last = helper.instanceField(Flags.PRIVATE, clazz, helper.objectP, LAST_FIELD);
+        Symbol.VarSymbol version = helper.instanceField(Flags.PRIVATE, clazz, helper.longP, VERSION_FIELD);
+        // the fields are written by the class writer from the members
+        clazz.members().enter(id);
+        clazz.members().enter(epoch);
+        clazz.members().enter(last);
+        clazz.members().enter(version);
+        return List.of(mkTree.VarDef(id, logHelper.objectId()), mkTree.VarDef(epoch, null), mkTree.VarDef(last, null),
+                mkTree.VarDef(version, null));
+    }
+
+    // interfaces and records have no instance fields, a serialized or cloned instance would
+    // copy the id of the original, the subclasses use the fields of their superclass
+    private boolean canInjectObjectId(Symbol.ClassSymbol clazz) {
+        if (clazz.isInterface() || (clazz.flags() & Flags.RECORD) != 0)
+            return false;
+        if (types.isSubtype(clazz.type, helper.serializable) || types.isSubtype(clazz.type, helper.cloneable))
+            return false;
+        for (Type sup = types.supertype(clazz.type); sup.hasTag(TypeTag.CLASS); sup = types.supertype(sup)) {
+            if (sup.tsym.members().findFirst(helper.name(ID_FIELD)) != null)
+                return false;
+        }
+        return true;
+    }
+
 
 
     @Override
@@ -157,10 +239,8 @@ public class TreeInstrumenter extends TreeTranslator {
             String callEvent = "call";
 
             StatementSequenceWithoutBlock builder = makeStatementSequence();
-            builder.executeAndBind(statement, (ignored) -> logHelper.statment(tree.toString()), statementType);
-            builder.executeAndBind(subStatement, (ignored) -> logHelper.subStatment(tree.toString()), subStatementType);
-            builder.execute((binds) -> logHelper.enter(binds.get(statement), Statement));
-            builder.execute((binds) -> logHelper.enter(binds.get(subStatement), SubStatement));
+            builder.executeAndBind(statement, (ignored) -> logHelper.enterStatement(), groupType);
+            builder.executeAndBind(subStatement, (ignored) -> logHelper.enterSubStatement(), groupType);
 
             List<String> argNames = List.from(IntStream.range(0, transCall.args.size())
                     .mapToObj(i -> "arg" + i).toList());
@@ -170,7 +250,7 @@ public class TreeInstrumenter extends TreeTranslator {
             );
 
             this.result = builder
-                    .execute((binds) -> logHelper.exit(binds.get(subStatement), SubStatement))
+                    .execute((binds) -> logHelper.exit(binds.get(subStatement)))
                     .executeAndBind(callEvent, (ignored) -> logHelper.voidCall(format), helper.type(Logger.FileLoggerSubClasses.VoidCall.clazz))
                     .execute((binds) -> {
                         List<Logger.Value> values = argNames.map(name -> logHelper.valueRepr(mkTree.Ident(binds.get(name))));
@@ -180,7 +260,7 @@ public class TreeInstrumenter extends TreeTranslator {
                         transCall.args = argNames.map(name -> mkTree.Ident(binds.get(name)));
                         return transCall;
                     })
-                    .execute((binds) -> logHelper.exit(binds.get(statement), Statement))
+                    .execute((binds) -> logHelper.exit(binds.get(statement)))
                     .block(mkTree.Block(0, List.nil()))
                     .build();
         } else {
@@ -235,10 +315,9 @@ public class TreeInstrumenter extends TreeTranslator {
 
         assertBlock(loop.body);
         loop.body = makeStatementSequence()
-                .executeAndBind(flowEvent, (notUsed) -> logHelper.controlFlow(), flowType)
-                .execute((binds) -> logHelper.enter(binds.get(flowEvent), Flow))
+                .executeAndBind(flowEvent, (notUsed) -> logHelper.enterControlFlow(), groupType)
                 .block((JCTree.JCBlock) loop.body)
-                .execute((binds) -> logHelper.exit(binds.get(flowEvent), Flow))
+                .execute((binds) -> logHelper.exit(binds.get(flowEvent)))
                 .build();
     }
 
@@ -252,10 +331,9 @@ public class TreeInstrumenter extends TreeTranslator {
 
         assertBlock(loop.body);
         loop.body = makeStatementSequence()
-                .executeAndBind(flowEvent, (notUsed) -> logHelper.controlFlow(), flowType)
-                .execute((binds) -> logHelper.enter(binds.get(flowEvent), Flow))
+                .executeAndBind(flowEvent, (notUsed) -> logHelper.enterControlFlow(), groupType)
                 .block((JCTree.JCBlock) loop.body)
-                .execute((binds) -> logHelper.exit(binds.get(flowEvent), Flow))
+                .execute((binds) -> logHelper.exit(binds.get(flowEvent)))
                 .build();
     }
 
@@ -271,10 +349,9 @@ public class TreeInstrumenter extends TreeTranslator {
 
         assertBlock(tree.body);
         tree.body = makeStatementSequence()
-                .executeAndBind(flowEvent, (notUsed) -> logHelper.controlFlow(), flowType)
-                .execute((binds) -> logHelper.enter(binds.get(flowEvent), Flow))
+                .executeAndBind(flowEvent, (notUsed) -> logHelper.enterControlFlow(), groupType)
                 .block((JCTree.JCBlock) tree.body)
-                .execute((binds) -> logHelper.exit(binds.get(flowEvent), Flow))
+                .execute((binds) -> logHelper.exit(binds.get(flowEvent)))
                 .build();
         this.result = tree;
     }
@@ -311,8 +388,9 @@ public class TreeInstrumenter extends TreeTranslator {
 
     @Override
     public void visitIndexed(JCTree.JCArrayAccess tree) {
-        System.out.println("visitIndexed");
-        throw new UnsupportedOperationException();
+        // the element read is logged by the expression using it, a write by the assignment,
+        // see logElementWrite
+        super.visitIndexed(tree);
     }
 
     @Override
@@ -338,19 +416,17 @@ public class TreeInstrumenter extends TreeTranslator {
         switch (lambda.body) {
             case JCTree.JCBlock block:
                 lambda.body = makeStatementSequence()
-                        .executeAndBind(flowEvent, flowSymbol, (notUsed) -> logHelper.functionFlow("lambda"))
-                        .execute((binds) -> logHelper.enter(binds.get(flowEvent), FunFlow))
+                        .executeAndBind(flowEvent, flowSymbol, (notUsed) -> logHelper.enterFunction("lambda"))
                         .block(block)
-                        .execute((binds) -> logHelper.exit(binds.get(flowEvent), FunFlow))
+                        .execute((binds) -> logHelper.exit(binds.get(flowEvent)))
                         .build();
                 break;
             case JCTree.JCExpression expr:
                 assertThat(!expr.type.equals(helper.voidP), "should not be void");
                 lambda.body = makeExpressionSequence()
-                        .executeAndBind(flowEvent, (ignored) -> logHelper.functionFlow("lambda"), funFlowType)
-                        .execute((binds) -> logHelper.enter(binds.get(flowEvent), FunFlow))
+                        .executeAndBind(flowEvent, (ignored) -> logHelper.enterFunction("lambda"), groupType)
                         .executeAndReturn("-", (ignored) -> expr, returnType)
-                        .execute((binds) -> logHelper.exit(binds.get(flowEvent), FunFlow))
+                        .execute((binds) -> logHelper.exit(binds.get(flowEvent)))
                         .build();
                 break;
             default:
@@ -364,21 +440,37 @@ public class TreeInstrumenter extends TreeTranslator {
 
     @Override
     public void visitMethodDef(JCTree.JCMethodDecl tree) {
+        Symbol.VarSymbol sitesSymbol = logHelper.enterMethod(tree.sym);
         Symbol.VarSymbol flowSymbol = context.enterMethod(tree.sym);
 
+        // the call of the other constructor stays the first statement, javac initializes the
+        // outer instance and the captured variables of an inner class after it (this$0, val$x)
+        JCTree.JCStatement selfCall = null;
+        if (tree.body != null && tree.body.stats.nonEmpty() && TreeInfo.isSelfCall(tree.body.stats.head)) {
+            selfCall = tree.body.stats.head;
+            tree.body.stats = tree.body.stats.tail;
+        }
+
         super.visitMethodDef(tree);
 
         JCTree.JCMethodDecl method = (JCTree.JCMethodDecl) this.result;
 
+        // the ids of the sites of an enum, used by the lambdas of the method too
+        StatementSequenceWithoutBlock entry = makeStatementSequence();
+        if (sitesSymbol != null)
+            entry = entry.executeAndBind("sites", sitesSymbol, (notUsed) -> logHelper.classSites());
+
         String flowEvent = "flow";
-        method.body = makeStatementSequence()
-                .executeAndBind(flowEvent, flowSymbol, (notUsed) -> logHelper.functionFlow(tree.name.toString()))
-                .execute((binds) -> logHelper.enter(binds.get(flowEvent), FunFlow))
+        method.body = entry
+                .executeAndBind(flowEvent, flowSymbol, (notUsed) -> logHelper.enterFunction(tree.name.toString()))
                 .block(method.body)
-                .execute((binds) -> logHelper.exit(binds.get(flowEvent), FunFlow))
+                .execute((binds) -> logHelper.exit(binds.get(flowEvent)))
                 .build();
+        if (selfCall != null)
+            method.body.stats = method.body.stats.prepend(selfCall);
 
         context.exitMethod();
+        logHelper.exitMethod();
     }
 
     @Override
@@ -422,7 +514,7 @@ public class TreeInstrumenter extends TreeTranslator {
             tree.expr = visitStatement(tree.expr);
             tree.expr = makeExpressionSequence()
                     .executeAndReturn("-", (notUsed) -> tree.expr, context.currentMethod().returnType)
-                    .execute((notUsed) -> logHelper.exit(context.currentMethod().methodEventGroup, context.currentMethod().flowKind))
+                    .execute((notUsed) -> logHelper.exit(context.currentMethod().methodEventGroup))
                     .build();
         }
 
@@ -446,15 +538,13 @@ public class TreeInstrumenter extends TreeTranslator {
 
         JCTree.JCThrow thr = (JCTree.JCThrow) this.result;
         thr.expr = makeExpressionSequence()
-                .executeAndBind(statementEvent, (notUsed) -> logHelper.statment(tree.toString()), statementType)
-                .executeAndBind(subStatement, (notUsed) -> logHelper.subStatment(tree.toString()), subStatementType)
-                .execute((binds) -> logHelper.enter(binds.get(statementEvent), Statement))
-                .execute((binds) -> logHelper.enter(binds.get(subStatement), SubStatement))
+                .executeAndBind(statementEvent, (notUsed) -> logHelper.enterStatement(), groupType)
+                .executeAndBind(subStatement, (notUsed) -> logHelper.enterSubStatement(), groupType)
                 .executeAndReturn("-", (notUsed) -> thr.expr, thr.expr.type)
-                .execute((binds) -> logHelper.exit(binds.get(subStatement), SubStatement))
+                .execute((binds) -> logHelper.exit(binds.get(subStatement)))
                 // remark a throw expression return nothing, but it would mean to change the code, so for now it returns null
                 .execute((notUsed) -> logHelper.logSimpleExpression(format, logHelper.valueRepr(helper.nullLiteral), List.nil()))
-                .execute((binds) -> logHelper.exit(binds.get(statementEvent), Statement))
+                .execute((binds) -> logHelper.exit(binds.get(statementEvent)))
                 .build();
     }
 
@@ -466,28 +556,28 @@ public class TreeInstrumenter extends TreeTranslator {
 
         String tryFlow = "try";
         String catchFlow = "catch";
-        TreeHelper.SimpleClass TRY = Logger.FileLoggerSubClasses.TryCatch.clazz;
-        Type tryType = helper.type(TRY);
-        Symbol.VarSymbol tryClass = new Symbol.VarSymbol(0, helper.name("----try"), tryType, context.currentMethod().methodSymbol);
+        // the token of the try flow, a catch closes it with the events left open by the exception
+        Symbol.VarSymbol tryToken = new Symbol.VarSymbol(0, helper.name("----try"), groupType, context.currentMethod().methodSymbol);
 
         //TODO what about resources
         //TODO support finally
         tryTree.body = makeStatementSequence()
-                .execute((notUsed) -> logHelper.groupMethod("enterTry", tryClass, TRY))
+                .execute((notUsed) -> mkTree.Assign(mkTree.Ident(tryToken), logHelper.enterControlFlow()).setType(groupType))
                 .block(tryTree.body)
-                .execute((notUsed) -> logHelper.groupMethod("exitTry", tryClass, TRY))
+                .execute((notUsed) -> logHelper.exit(tryToken))
                 .build();
 
         tryTree.catchers.forEach(catcher -> {
             catcher.body = makeStatementSequence()
-                    .execute((notUsed) -> logHelper.groupMethod("enterCatch", tryClass, TRY))
+                    .execute((notUsed) -> logHelper.exitUpTo(tryToken))
+                    .executeAndBind(catchFlow, (notUsed) -> logHelper.enterControlFlow(), groupType)
                     .block(catcher.body)
-                    .execute((notUsed) -> logHelper.groupMethod("exitCatch", tryClass, TRY))
+                    .execute((binds) -> logHelper.exit(binds.get(catchFlow)))
                     .build();
         });
 
         this.result = mkTree.Block(0, List.of(
-                mkTree.VarDef(tryClass, logHelper.tryCatch()),
+                mkTree.VarDef(tryToken, mkTree.Literal(0L)),
                 tryTree));
     }
 
@@ -525,23 +615,21 @@ public class TreeInstrumenter extends TreeTranslator {
             String resultVar = "res";
 
             tree.init = makeExpressionSequence()
-                    .executeAndBind(statementEvent, (notUsed) -> logHelper.statment(tree.toString()), statementType)
-                    .execute((binds) -> logHelper.enter(binds.get(statementEvent), Statement))
+                    .executeAndBind(statementEvent, (notUsed) -> logHelper.enterStatement(), groupType)
                     .executeAndReturn("-", (noUsed) ->
                                     makeExpressionSequence()
-                                            .executeAndBind(subStatement, (notUsed) -> logHelper.subStatment(tree.toString()), subStatementType)
-                                            .execute((binding) -> logHelper.enter(binding.get(subStatement), SubStatement))
+                                            .executeAndBind(subStatement, (notUsed) -> logHelper.enterSubStatement(), groupType)
                                             .executeAndReturn(resultVar, (notUsed) -> res.init, res.type)
-                                            .execute((binding) -> logHelper.exit(binding.get(subStatement), SubStatement))
+                                            .execute((binding) -> logHelper.exit(binding.get(subStatement)))
                                             .execute((binding) -> {
-                                                Logger.Identifier identifier = logHelper.localIdentifier("-", res.name.toString());
+                                                Logger.Identifier identifier = logHelper.localIdentifier(res.name.toString());
                                                 Logger.Value value = logHelper.valueRepr(mkTree.Ident(binding.get(resultVar)));
                                                 Logger.Write write = logHelper.write(identifier, value);
                                                 return logHelper.logSimpleExpression(format, List.of(write));
                                             })
                                             .build()
                             , tree.type)
-                    .execute((binds) -> logHelper.exit(binds.get(statementEvent), Statement))
+                    .execute((binds) -> logHelper.exit(binds.get(statementEvent)))
                     .build();
         }
     }
@@ -555,10 +643,9 @@ public class TreeInstrumenter extends TreeTranslator {
 
         assertBlock(tree.body);
         tree.body = makeStatementSequence()
-                .executeAndBind(flowEvent, (notUsed) -> logHelper.controlFlow(), flowType)
-                .execute((binds) -> logHelper.enter(binds.get(flowEvent), Flow))
+                .executeAndBind(flowEvent, (notUsed) -> logHelper.enterControlFlow(), groupType)
                 .block((JCTree.JCBlock) tree.body)
-                .execute((binds) -> logHelper.exit(binds.get(flowEvent), Flow))
+                .execute((binds) -> logHelper.exit(binds.get(flowEvent)))
                 .build();
         this.result = tree;
     }
@@ -647,12 +734,24 @@ public class TreeInstrumenter extends TreeTranslator {
 
 
                 yield makeExpressionSequence()
-                        .executeAndBind(statementEvent, (notUsed) -> logHelper.statment(statement.toString()), statementType)
-                        .execute((binds) -> logHelper.enter(binds.get(statementEvent), Statement))
+                        .executeAndBind(statementEvent, (notUsed) -> logHelper.enterStatement(), groupType)
                         .executeAndReturn("-", (binds) -> {
                             return logExecutionStep(res);
                         }, res.type)
-                        .execute((binds) -> logHelper.exit(binds.get(statementEvent), Statement))
+                        .execute((binds) -> logHelper.exit(binds.get(statementEvent)))
+                        .build();
+            }
+            case JCTree.JCArrayAccess access -> {
+                super.visitIndexed(access);
+                JCTree.JCArrayAccess res = (JCTree.JCArrayAccess) this.result;
+
+                String statementEvent = "statementEvent";
+
+
+                yield makeExpressionSequence()
+                        .executeAndBind(statementEvent, (notUsed) -> logHelper.enterStatement(), groupType)
+                        .executeAndReturn("-", (binds) -> logExecutionStep(res), res.type)
+                        .execute((binds) -> logHelper.exit(binds.get(statementEvent)))
                         .build();
             }
             case JCTree.JCAssign assign -> {
@@ -664,20 +763,18 @@ public class TreeInstrumenter extends TreeTranslator {
 
 
                 yield makeExpressionSequence()
-                        .executeAndBind(statementEvent, (notUsed) -> logHelper.statment(statement.toString()), statementType)
-                        .execute((binds) -> logHelper.enter(binds.get(statementEvent), Statement))
-                        .executeAndBind(subStatement, (notUsed) -> logHelper.subStatment(statement.toString()), subStatementType)
+                        .executeAndBind(statementEvent, (notUsed) -> logHelper.enterStatement(), groupType)
                         .executeAndReturn("-", (binds) -> {
 
                             res.rhs = makeExpressionSequence()
-                                    .execute((notUsed) -> logHelper.enter(binds.get(subStatement), SubStatement))
+                                    .executeAndBind(subStatement, (notUsed) -> logHelper.enterSubStatement(), groupType)
                                     .executeAndReturn("-", (notUsed) -> res.rhs, res.type)
-                                    .execute((notUsed) -> logHelper.exit(binds.get(subStatement), SubStatement))
+                                    .execute((sub) -> logHelper.exit(sub.get(subStatement)))
                                     .build();
 
                             return logExecutionStep(res);
                         }, res.type)
-                        .execute((binds) -> logHelper.exit(binds.get(statementEvent), Statement))
+                        .execute((binds) -> logHelper.exit(binds.get(statementEvent)))
                         .build();
             }
             case JCTree.JCBinary binary -> {
@@ -735,7 +832,28 @@ public class TreeInstrumenter extends TreeTranslator {
                 .build();
     }
 
+    private JCTree.JCExpression logExecutionStep(JCTree.JCArrayAccess access) {
+        SourceFormat.NodeSourceFormat format = makeNodeId.nodeId(access);
+
+        String res = "result";
+        return makeExpressionSequence()
+                .executeAndReturn(res, (notUsed) -> access, access.type)
+                .execute((binds) ->
+                        logHelper.logSimpleExpression(
+                                format,
+                                logHelper.valueRepr(mkTree.Ident(binds.get(res))),
+                                List.nil()))
+                .build();
+    }
+
     private JCTree.JCExpression logExecutionStep(JCTree.JCUnary unary) {
+        JCTree.JCExpression logged = logUnary(unary);
+        boolean write = unary.getTag() == JCTree.Tag.PREINC || unary.getTag() == JCTree.Tag.PREDEC
+                || unary.getTag() == JCTree.Tag.POSTINC || unary.getTag() == JCTree.Tag.POSTDEC;
+        return write ? logTargetWrite(unary.arg, logged, unary.type) : logged;
+    }
+
+    private JCTree.JCExpression logUnary(JCTree.JCUnary unary) {
         SourceFormat.NodeSourceFormat format = makeNodeId.nodeId(unary);
         String res = "result";
 
@@ -747,33 +865,29 @@ public class TreeInstrumenter extends TreeTranslator {
                     .executeAndReturn(res, (notUsed) -> unary, unary.type)
                     .executeAndBind(resValue, (binds) -> logHelper.valueRepr(mkTree.Ident(binds.get(res))).value(), valueType)
                     .execute((binds) -> {
-                        Logger.Identifier identifier = logHelper.localIdentifier("-", unary.arg.toString());
                         Logger.Value value = new Logger.Value(mkTree.Ident(binds.get(resValue)));
-                        Logger.Write write = logHelper.write(identifier, value);
 
                         return logHelper.logSimpleExpression(
                                 format,
                                 value,
-                                List.of(write));
+                                localWrite(unary.arg, value));
                     })
                     .build();
         } else if (operator == JCTree.Tag.POSTINC || operator == JCTree.Tag.POSTDEC) {
             return makeExpressionSequence()
                     .executeAndReturn(res, (notUsed) -> unary, unary.type)
                     .execute((binds) -> {
-                        Logger.Identifier identifier = logHelper.localIdentifier("-", unary.arg.toString());
                         JCTree.JCExpression computeRes = mkTree.Binary(operator == JCTree.Tag.POSTINC ? JCTree.Tag.PLUS : JCTree.Tag.MINUS,
                                 mkTree.Ident(binds.get(res)),
                                 mkTree.Literal(1));
                         Logger.Value result = logHelper.valueRepr(computeRes);
 
                         Logger.Value value = logHelper.valueRepr(mkTree.Ident(binds.get(res)));
-                        Logger.Write write = logHelper.write(identifier, value);
 
                         return logHelper.logSimpleExpression(
                                 format,
                                 result,
-                                List.of(write));
+                                localWrite(unary.arg, value));
                     })
                     .build();
         } else {
@@ -889,58 +1003,109 @@ public class TreeInstrumenter extends TreeTranslator {
         String res = "result";
         String resVal = "val";
 
-        return makeExpressionSequence()
+        JCTree.JCExpression logged = makeExpressionSequence()
                 .executeAndReturn(res, (notUsed) -> op, op.type)
                 .executeAndBind(resVal, (binds) -> logHelper.valueRepr(mkTree.Ident(binds.get(res))).value(), valueType)
                 .execute((binds) -> {
 
-                    Logger.Identifier identifier = logHelper.localIdentifier("-", op.lhs.toString());
                     Logger.Value value = new Logger.Value(mkTree.Ident(binds.get(resVal)));
-                    Logger.Write write = logHelper.write(identifier, value);
                     return logHelper.logSimpleExpression(
                             format,
                             value,
-                            List.of(write));
+                            localWrite(op.lhs, value));
                 })
                 .build();
+        return logTargetWrite(op.lhs, logged, op.type);
     }
 
     private JCTree.JCExpression logExecutionStep(JCTree.JCAssign assign) {
         SourceFormat.NodeSourceFormat format = makeNodeId.nodeId(assign);
         String res = "result";
 
-        return makeExpressionSequence()
+        JCTree.JCExpression logged = makeExpressionSequence()
                 .executeAndReturn(res, (notUsed) -> assign, assign.type)
                 .execute((binds) -> {
                     //TODO compute value only 1 time [optimization]
-                    Logger.Identifier identifier = logHelper.localIdentifier("-", assign.lhs.toString());
                     Logger.Value value = logHelper.valueRepr(mkTree.Ident(binds.get(res)));
-                    Logger.Write write = logHelper.write(identifier, value);
                     return logHelper.logSimpleExpression(
                             format,
                             value,
-                            List.of(write));
+                            localWrite(assign.lhs, value));
                 })
                 .build();
+        return logTargetWrite(assign.lhs, logged, assign.type);
     }
 
-    /*******************************************************
-     **************** subStatement helper ******************
-     *******************************************************/
+    // the write of lhs logged by its expression, an array element has no identifier, its
+    // write is saved by logElementWrite
+    private List<Logger.Write> localWrite(JCTree.JCExpression lhs, Logger.Value value) {
+        if (lhs instanceof JCTree.JCArrayAccess)
+            return List.nil();
+        return List.of(logHelper.write(logHelper.localIdentifier(lhs.toString()), value));
+    }
+
+    // saves the array or the object lhs belongs to once the write logged is done
+    private JCTree.JCExpression logTargetWrite(JCTree.JCExpression lhs, JCTree.JCExpression logged, Type type) {
+        Symbol.ClassSymbol enclClass = context.currentMethod().methodSymbol.enclClass();
+        Type referenceType = helper.type(Logger.FileLoggerSubClasses.InstanceReference.clazz);
+        return switch (lhs) {
+            case JCTree.JCArrayAccess access -> logElementWrite(access, logged, type);
+            case JCTree.JCFieldAccess access when instanceField(access.sym)
+                    && !(access.selected instanceof JCTree.JCIdent ident && ident.name.toString().equals("super")) ->
+                    logFieldWrite(access, logged, type);
+            // a field of this, not of an enclosing instance
+            case JCTree.JCIdent ident when instanceField(ident.sym) && enclClass.isSubClass(ident.sym.owner, types) ->
+                    makeExpressionSequence()
+                            .executeAndReturn("result", (notUsed) -> logged, type)
+                            .execute((notUsed) -> logHelper.writeReference(mkTree.This(enclClass.type)).ref(), referenceType)
+                            .build();
+            default -> logged;
+        };
+    }
+
+    private static boolean instanceField(Symbol sym) {
+        return sym.kind == Kinds.Kind.VAR && sym.owner.kind == Kinds.Kind.TYP && (sym.flags() & Flags.STATIC) == 0;
+    }
+
+    // owner.field = v, owner.field += v, owner.field++, ... the owner is evaluated once, before
+    // the rest of the expression as in the original, then saved again, as a delta of the
+    // fields written, see FileLogger.writeReference
+    private JCTree.JCExpression logFieldWrite(JCTree.JCFieldAccess access, JCTree.JCExpression logged, Type type) {
+        Type referenceType = helper.type(Logger.FileLoggerSubClasses.InstanceReference.clazz);
+        String owner = "owner";
+        String res = "result";
 
-    // these methods only add information about event groups
-    // we suppose that the tree has already been visited
-    private JCTree.JCExpression exitSubstatement(JCTree.JCExpression expr, Symbol event, Type type) {
         return makeExpressionSequence()
-                .executeAndReturn("notUsed", (notUsed) -> (JCTree.JCExpression) expr, type)
-                .execute((notUsed) -> logHelper.exit(event, Logger.FileLoggerSubClasses.SubStatment.clazz))
+                .executeAndBind(owner, (notUsed) -> access.selected, types.erasure(access.selected.type))
+                .executeAndReturn(res, (binds) -> {
+                    access.selected = mkTree.Ident(binds.get(owner));
+                    return logged;
+                }, type)
+                .execute((binds) -> logHelper.writeReference(mkTree.Ident(binds.get(owner))).ref(), referenceType)
                 .build();
     }
 
-    private JCTree.JCExpression enterSubstatement(JCTree.JCExpression expr, Symbol event, Type type) {
+    // array[index] = v, array[index] += v, array[index]++, ... logged is the expression already
+    // logged without a write, the array and the index are evaluated once, before the
+    // rest of the expression as in the original, then the new value of the element is saved
+    // see FileLogger.writeElement
+    private JCTree.JCExpression logElementWrite(JCTree.JCArrayAccess access, JCTree.JCExpression logged, Type type) {
+        String array = "array";
+        String index = "index";
+        String res = "result";
+
         return makeExpressionSequence()
-                .execute((notUsed) -> logHelper.enter(event, Logger.FileLoggerSubClasses.SubStatment.clazz))
-                .executeAndReturn("notUsed", (notUsed) -> (JCTree.JCExpression) expr, type)
+                .executeAndBind(array, (notUsed) -> access.indexed, access.indexed.type)
+                .executeAndBind(index, (notUsed) -> access.index, helper.intP)
+                .executeAndReturn(res, (binds) -> {
+                    access.indexed = mkTree.Ident(binds.get(array));
+                    access.index = mkTree.Ident(binds.get(index));
+                    return logged;
+                }, type)
+                .execute((binds) -> logHelper.writeElement(
+                        binds.get(array),
+                        binds.get(index),
+                        logHelper.valueRepr(mkTree.Indexed(mkTree.Ident(binds.get(array)), mkTree.Ident(binds.get(index))).setType(access.type))))
                 .build();
     }
 
@@ -1049,20 +1214,18 @@ public class TreeInstrumenter extends TreeTranslator {
         public ExpressionSequenceWithReturn statementAndReturn(TreeInstrumenter instr, String name, Function<Map<String, Symbol>, JCTree.JCExpression> expr, Type exprType) {
             String statement = "statement";
             return this
-                    .executeAndBind(statement, (notUsed) -> instr.logHelper.statment(expr.toString()), instr.statementType)
-                    .execute((binds) -> instr.logHelper.enter(binds.get(statement), instr.Statement))
+                    .executeAndBind(statement, (notUsed) -> instr.logHelper.enterStatement(), instr.groupType)
                     .executeAndReturn(name, expr, exprType)
-                    .execute((binds) -> instr.logHelper.exit(binds.get(statement), instr.Statement));
+                    .execute((binds) -> instr.logHelper.exit(binds.get(statement)));
         }
 
         @Override
         public ExpressionSequenceWithReturn subStatementAndReturn(TreeInstrumenter instr, String name, Function<Map<String, Symbol>, JCTree.JCExpression> expr, Type exprType) {
             String statement = "subStatement";
             return this
-                    .executeAndBind(statement, (notUsed) -> instr.logHelper.subStatment(expr.toString()), instr.subStatementType)
-                    .execute((binds) -> instr.logHelper.enter(binds.get(statement), instr.SubStatement))
+                    .executeAndBind(statement, (notUsed) -> instr.logHelper.enterSubStatement(), instr.groupType)
                     .executeAndReturn(name, expr, exprType)
-                    .execute((binds) -> instr.logHelper.exit(binds.get(statement), instr.SubStatement));
+                    .execute((binds) -> instr.logHelper.exit(binds.get(statement)));
         }
 
         @Override
@@ -1160,10 +1323,9 @@ public class TreeInstrumenter extends TreeTranslator {
             @Override
             public StatementSequenceWithBlock flow(TreeInstrumenter instr, JCTree.JCBlock block) {
                 String flow = "flow";
-                return this.executeAndBind(flow, (ignored) -> instr.logHelper.controlFlow(), instr.flowType)
-                        .execute((binds) -> instr.logHelper.enter(binds.get(flow), instr.Flow))
+                return this.executeAndBind(flow, (ignored) -> instr.logHelper.enterControlFlow(), instr.groupType)
                         .block(block)
-                        .execute((binds) -> instr.logHelper.exit(binds.get(flow), instr.Flow));
+                        .execute((binds) -> instr.logHelper.exit(binds.get(flow)));
             }
 
 
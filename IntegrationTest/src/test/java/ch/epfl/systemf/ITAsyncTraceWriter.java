@@ -0,0 +1,152 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ITAsyncTraceWriter {
+
+    private static final Write[] NO_WRITES = {};
+
+    @Test
+    void eventsOfAThreadAreWrittenInOrder() throws Exception {
+        // a slow writer, the rings are full and the threads wait for a slot
+        Recorder recorder = new Recorder() {
+            @Override
+            public void expressionWithoutReturn(long thread, long seq, int site, Write[] assigns, int count) {
+                long end = System.nanoTime() + 1_000;
+                while (System.nanoTime() < end)
+                    Thread.onSpinWait();
+                super.expressionWithoutReturn(thread, seq, site, assigns, count);
+            }
+        };
+        AsyncTraceWriter async = new AsyncTraceWriter(recorder, 16, TraceConfig.Overflow.BLOCK, 1);
+        // more threads than rings, the threads share their rings
+        int threads = 4 * Stripes.count();
+        int events = 2_000;
+
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            long thread = t;
+            producers.add(Thread.ofPlatform().start(() -> {
+                for (int seq = 0; seq < events; ++seq)
+                    async.expressionWithoutReturn(thread, seq, 0, NO_WRITES, 0);
+            }));
+        }
+        for (Thread producer : producers)
+            producer.join();
+        async.close();
+
+        assertThat(recorder.events).hasSize(threads * events);
+        Map<Long, Long> last = new HashMap<>();
+        for (long[] event : recorder.events) {
+            long previous = last.getOrDefault(event[0], -1L);
+            assertThat(event[1]).as("seq of thread %d", event[0]).isEqualTo(previous + 1);
+            last.put(event[0], event[1]);
+        }
+    }
+
+    @Test
+    void droppedEventsAreWrittenInTheTrace() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder recorder = new Recorder() {
+            @Override
+            public void groupEvent(long thread, long seq, long eventId, GroupEventType type, ControlFlowKind kind, boolean start) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.groupEvent(thread, seq, eventId, type, kind, start);
+            }
+        };
+        AsyncTraceWriter async = new AsyncTraceWriter(recorder, 4, TraceConfig.Overflow.DROP, 1);
+
+        // the writer thread waits on the first event, the ring fills up
+        async.groupEvent(0, 0, 1, GroupEventType.Statement, null, true);
+        for (int seq = 1; seq <= 100; ++seq)
+            async.expressionWithoutReturn(0, seq, 0, NO_WRITES, 0);
+        release.countDown();
+        async.groupEvent(0, 101, 1, GroupEventType.Statement, null, false);
+        async.close();
+
+        // group events are kept, the others are counted
+        assertThat(recorder.groups).isEqualTo(2);
+        assertThat(recorder.dropped).isPositive();
+        assertThat(recorder.events.size() + recorder.dropped).isEqualTo(100);
+    }
+
+    // the events written by the writer thread, in order
+    private static class Recorder implements TraceWriter {
+        final List<long[]> events = new ArrayList<>();
+        int groups = 0;
+        long dropped = 0;
+
+        @Override
+        public void groupEvent(long thread, long seq, long eventId, GroupEventType type, ControlFlowKind kind, boolean start) {
+            groups += 1;
+        }
+
+        @Override
+        public void expression(long thread, long seq, int site, Value result, Write[] assigns, int count) {
+            events.add(new long[]{thread, seq});
+        }
+
+        @Override
+        public void expressionWithoutReturn(long thread, long seq, int site, Write[] assigns, int count) {
+            events.add(new long[]{thread, seq});
+        }
+
+        @Override
+        public void call(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        }
+
+        @Override
+        public void voidCall(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        }
+
+        @Override
+        public void callReturn(long thread, long seq, int site, long stepId, Value result) {
+        }
+
+        @Override
+        public void dropped(long count) {
+            dropped += count;
+        }
+
+        @Override
+        public void objectData(ObjectData data) {
+        }
+
+        @Override
+        public void objectDelta(ObjectDelta delta) {
+        }
+
+        @Override
+        public void arrayData(ArrayData data) {
+        }
+
+        @Override
+        public void arrayDelta(ArrayDelta delta) {
+        }
+
+        @Override
+        public void rollover() {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
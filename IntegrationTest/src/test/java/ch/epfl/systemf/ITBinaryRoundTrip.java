@@ -0,0 +1,152 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the binary trace exported to json is the trace the json writer writes for the same events
+public class ITBinaryRoundTrip {
+
+    private static final ClassIdentifier POINT = new ClassIdentifier("geometry", "Point");
+    private static final ClassIdentifier COLOR = new ClassIdentifier("geometry", "Color");
+
+    private static final int[] SITES = Sites.register(new String[]{
+            "Main.java:3:5", "Main.java:4:9", "Main.java:5:9", "Main.java:6:13"});
+
+    private static final ClassSchema SCHEMA = ClassSchema.of(POINT,
+            new String[]{"x", "y", "color", "cache"},
+            new String[]{"int", "double", ClassSchema.OBJECT, ClassSchema.OBJECT},
+            List.of("lock"));
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void exportedTraceEqualsJsonTrace() throws IOException {
+        Path json = Files.createDirectory(dir.resolve("json"));
+        Path bin = Files.createDirectory(dir.resolve("bin"));
+        Path exported = Files.createDirectory(dir.resolve("exported"));
+
+        try (JsonTraceWriter out = new JsonTraceWriter(
+                json.resolve(JsonTraceWriter.TRACE_FILE_NAME).toString(),
+                json.resolve(JsonTraceWriter.OBJECT_DATA_FILE_NAME).toString())) {
+            record(out);
+        }
+        try (BinaryTraceWriter out = new BinaryTraceWriter(
+                bin.resolve(BinaryTraceWriter.TRACE_FILE_NAME).toString(),
+                bin.resolve(BinaryTraceWriter.OBJECT_DATA_FILE_NAME).toString())) {
+            record(out);
+        }
+        try (JsonTraceWriter out = new JsonTraceWriter(
+                exported.resolve(JsonTraceWriter.TRACE_FILE_NAME).toString(),
+                exported.resolve(JsonTraceWriter.OBJECT_DATA_FILE_NAME).toString())) {
+            assertThat(new BinaryTraceReader(bin.resolve(BinaryTraceWriter.TRACE_FILE_NAME).toString()).replay(out))
+                    .isTrue();
+            assertThat(new BinaryTraceReader(bin.resolve(BinaryTraceWriter.OBJECT_DATA_FILE_NAME).toString()).replay(out))
+                    .isTrue();
+        }
+
+        JSONObject expectedTrace = trace(json);
+        JSONObject actualTrace = trace(exported);
+        assertThat(actualTrace.getJSONArray("trace").length()).isEqualTo(13);
+        assertThat(actualTrace.similar(expectedTrace))
+                .as("%s%nexpected%n%s", actualTrace, expectedTrace)
+                .isTrue();
+
+        JSONArray expectedObjects = objectData(json);
+        JSONArray actualObjects = objectData(exported);
+        assertThat(actualObjects.length()).isEqualTo(7);
+        assertThat(actualObjects.similar(expectedObjects))
+                .as("%s%nexpected%n%s", actualObjects, expectedObjects)
+                .isTrue();
+    }
+
+    @Test
+    void cutTraceIsReadUpToTheCut() throws IOException {
+        try (BinaryTraceWriter out = new BinaryTraceWriter(
+                dir.resolve(BinaryTraceWriter.TRACE_FILE_NAME).toString(),
+                dir.resolve(BinaryTraceWriter.OBJECT_DATA_FILE_NAME).toString())) {
+            record(out);
+        }
+        Path trace = dir.resolve(BinaryTraceWriter.TRACE_FILE_NAME);
+        byte[] bytes = Files.readAllBytes(trace);
+        Files.write(trace, Arrays.copyOf(bytes, bytes.length - 3));
+
+        Path exported = Files.createDirectory(dir.resolve("exported"));
+        try (JsonTraceWriter out = new JsonTraceWriter(
+                exported.resolve(JsonTraceWriter.TRACE_FILE_NAME).toString(),
+                exported.resolve(JsonTraceWriter.OBJECT_DATA_FILE_NAME).toString())) {
+            assertThat(new BinaryTraceReader(trace.toString()).replay(out)).isFalse();
+        }
+        assertThat(trace(exported).getJSONArray("trace").length()).isLessThan(13);
+    }
+
+    // the same events for every writer, every kind of event and of value
+    private static void record(TraceWriter out) {
+        InstanceReference point = new InstanceReference(POINT, 1, 10);
+        InstanceReference truncated = new InstanceReference(POINT, 2, 11, true);
+        ArrayReference ints = new ArrayReference(3, 12, "class [[I");
+        ArrayReference objects = new ArrayReference(4, 13, "class [[Ljava.lang.Object;");
+        ArrayReference unsaved = new ArrayReference(6, 17, "class [[J", true);
+        Value[] literals = {
+                new Literal("int", -7),
+                new Literal("long", 1L << 40),
+                new Literal("short", (short) 3),
+                new Literal("byte", (byte) -2),
+                new Literal("char", 'x'),
+                new Literal("bool", true),
+                new Literal("float", 1.5f),
+                new Literal("double", "NaN"),
+                new Literal("string", "é\n\"quoted\""),
+                new Literal("null", ""),
+        };
+        Write[] writes = {
+                new Write(new LocalIdentifier("Main.java:4:9", "x"), literals[0]),
+                new Write(new FieldIdentifier(point, "color"), new EnumConstant(COLOR, 2, "BLUE")),
+                new Write(new StaticIdentifier(POINT, "origin"), truncated),
+                new Write(new LocalIdentifier("Main.java:4:9", "name"), new TruncatedString("abc", 1000)),
+        };
+
+        out.groupEvent(1, 1, 100, GroupEventType.ControlFlow, new ControlFlowKind.FunctionContext("Main.main"), true);
+        out.groupEvent(1, 2, 101, GroupEventType.Statement, null, true);
+        out.expression(1, 3, SITES[0], point, writes, writes.length);
+        out.expressionWithoutReturn(1, 4, SITES[1], writes, 2);
+        out.call(1, 5, SITES[2], 102, literals, literals.length);
+        out.voidCall(2, 1, SITES[3], 103, new Value[]{ints, objects, unsaved}, 3);
+        out.expression(2, 2, SITES[0], new Sequence(new Value[]{literals[0], point}, 5), writes, 0);
+        out.callReturn(1, 6, SITES[2], 102, literals[8]);
+        out.groupEvent(1, 7, 101, GroupEventType.Statement, null, false);
+        out.groupEvent(1, 8, 104, GroupEventType.ControlFlow, new ControlFlowKind.Default(), true);
+        out.groupEvent(1, 9, 104, GroupEventType.ControlFlow, new ControlFlowKind.Default(), false);
+        out.groupEvent(1, 10, 100, GroupEventType.ControlFlow, new ControlFlowKind.FunctionContext("Main.main"), false);
+        out.dropped(4);
+
+        out.objectData(new ObjectData(point, SCHEMA, List.of(
+                new Literal("int", 1), new Literal("double", 2.5), new EnumConstant(COLOR, 0, "RED"), ints)));
+        out.objectDelta(new ObjectDelta(new InstanceReference(POINT, 1, 14), SCHEMA, 10, List.of(
+                new ObjectDelta.Change(0, new Literal("int", 5)),
+                new ObjectDelta.Change(3, new Literal("null", "")))));
+        out.arrayData(new ArrayData(ints, new int[]{1, -2, 3}, 3));
+        out.arrayData(new ArrayData(objects, new Value[]{truncated, literals[8], unsaved}, 1000));
+        out.arrayData(new ArrayData(new ArrayReference(5, 15, "class [[D"), new double[]{0.5, Double.NaN}, 2));
+        out.arrayDelta(new ArrayDelta(new ArrayReference(3, 16, "class [[I"), 1, new Literal("int", 9)));
+    }
+
+    private static JSONObject trace(Path dir) throws IOException {
+        return new JSONObject(Files.readString(dir.resolve(JsonTraceWriter.TRACE_FILE_NAME)));
+    }
+
+    private static JSONArray objectData(Path dir) throws IOException {
+        return new JSONArray(Files.readString(dir.resolve(JsonTraceWriter.OBJECT_DATA_FILE_NAME)));
+    }
+}
@@ -0,0 +1,122 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.ChunkSink.Framing;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ITDeflateSink {
+
+    // a json array, the records are separated by commas
+    private static final Framing ARRAY = new Framing(ascii("["), ascii("]"), 1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void blocksCanBeInflatedAlone() throws IOException, DataFormatException {
+        DeflateSink sink = new DeflateSink(dir.resolve("trace.json").toString(), ARRAY, 256, 1);
+        for (int id = 0; id < 500; ++id)
+            write(sink, id);
+        sink.close();
+
+        byte[] uncompressed;
+        try (InputStream in = DeflateSink.inflate(dir.resolve("trace.json" + DeflateSink.SUFFIX).toString())) {
+            uncompressed = in.readAllBytes();
+        }
+        JSONArray records = new JSONArray(new String(uncompressed, StandardCharsets.US_ASCII));
+        assertThat(records.length()).isEqualTo(500);
+        for (int i = 0; i < records.length(); ++i)
+            assertThat(records.getLong(i)).isEqualTo(i);
+
+        JSONObject index = new JSONObject(Files.readString(dir.resolve("trace.json" + DeflateSink.INDEX_SUFFIX)));
+        assertThat(index.getLong("uncompressedLength")).isEqualTo(uncompressed.length);
+        JSONArray blocks = index.getJSONArray("blocks");
+        assertThat(blocks.length()).isGreaterThan(1);
+        byte[] compressed = Files.readAllBytes(dir.resolve("trace.json" + DeflateSink.SUFFIX));
+        for (int i = 0; i < blocks.length(); ++i) {
+            JSONObject block = blocks.getJSONObject(i);
+            byte[] content = inflateBlock(compressed, block.getInt("offset"), block.getInt("length"),
+                    block.getInt("uncompressedLength"));
+            int start = block.getInt("uncompressedOffset");
+            assertThat(content).isEqualTo(Arrays.copyOfRange(uncompressed, start, start + content.length));
+
+            // a block holds complete records, the ones of its ids
+            String text = new String(content, StandardCharsets.US_ASCII);
+            String first = text.replaceAll("^[\\[,]", "").split("[,\\]]")[0];
+            assertThat(Long.parseLong(first)).isEqualTo(block.getLong("firstId"));
+            assertThat(text).endsWith(block.getLong("lastId") + (i == blocks.length() - 1 ? "]" : ""));
+        }
+    }
+
+    @Test
+    void compressedTraceIsTheTrace() throws Exception {
+        TracedProgram program = new TracedProgram(dir, """
+                public class Main {
+                    static int square(int x) {
+                        return x * x;
+                    }
+
+                    public static void main(String[] args) {
+                        int sum = 0;
+                        for (int i = 0; i < 2000; i = i + 1) {
+                            sum = sum + square(i);
+                        }
+                        System.out.println(sum);
+                    }
+                }
+                """);
+        assertThat(program.run()).contains("-1630300296");
+        JSONArray expected = new JSONObject(Files.readString(program.file(JsonTraceWriter.TRACE_FILE_NAME)))
+                .getJSONArray("trace");
+        long size = Files.size(program.file(JsonTraceWriter.TRACE_FILE_NAME));
+        Files.delete(program.file(JsonTraceWriter.TRACE_FILE_NAME));
+
+        assertThat(program.run("compress=true", "blockSize=16")).contains("-1630300296");
+        Path compressed = program.file(JsonTraceWriter.TRACE_FILE_NAME + DeflateSink.SUFFIX);
+        assertThat(program.file(JsonTraceWriter.TRACE_FILE_NAME)).doesNotExist();
+        assertThat(Files.size(compressed)).isLessThan(size / 5);
+        try (InputStream in = DeflateSink.inflate(compressed.toString())) {
+            JSONArray trace = new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8)).getJSONArray("trace");
+            assertThat(trace.similar(expected)).isTrue();
+        }
+    }
+
+    /*******************************************************
+     **************** helpers ******************
+     *******************************************************/
+
+    private static void write(DeflateSink sink, long id) throws IOException {
+        byte[] chunk = ascii("," + id);
+        sink.write(chunk, 0, chunk.length, id, id);
+    }
+
+    private static byte[] inflateBlock(byte[] compressed, int offset, int length, int uncompressedLength)
+            throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(compressed, offset, length);
+        byte[] content = new byte[uncompressedLength];
+        int n = 0;
+        while (n < content.length && !inflater.finished())
+            n += inflater.inflate(content, n, content.length - n);
+        inflater.end();
+        assertThat(n).isEqualTo(uncompressedLength);
+        return content;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
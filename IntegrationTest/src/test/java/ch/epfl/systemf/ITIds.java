@@ -0,0 +1,72 @@
+package ch.epfl.systemf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ITIds {
+
+    @Test
+    void idsOfAThreadIncreaseAndAreUnique() throws InterruptedException {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = Thread.ofPlatform().start(() -> {
+                long previous = -1;
+                for (int i = 0; i < 3 * Ids.BLOCK_SIZE; ++i) {
+                    long id = Ids.next();
+                    assertThat(id).isGreaterThan(previous);
+                    previous = id;
+                    ids.add(id);
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertThat(ids).hasSize(threads.length * 3 * Ids.BLOCK_SIZE);
+    }
+
+    // the shared counter is not used for every version
+    @Test
+    void versionsOfAThreadComeFromItsBlock() {
+        long first = ObjectIds.version(new Object());
+        for (int i = 1; i < 100; ++i)
+            assertThat(ObjectIds.version(new Object())).isEqualTo(first + i);
+    }
+
+    @Test
+    void versionsOfAnObjectFollowTheOrderOfItsReferences() throws InterruptedException {
+        Object shared = new Object();
+        AtomicLong behind = new AtomicLong();
+        AtomicLong ahead = new AtomicLong();
+        AtomicLong after = new AtomicLong();
+        CountDownLatch claimed = new CountDownLatch(1);
+        CountDownLatch taken = new CountDownLatch(1);
+
+        // the first thread claims its block before the second one, then takes a reference
+        // to the object after the second thread
+        Thread first = Thread.ofPlatform().start(() -> {
+            behind.set(ObjectIds.version(new Object()));
+            claimed.countDown();
+            try {
+                taken.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            after.set(ObjectIds.version(shared));
+        });
+        claimed.await();
+        Thread second = Thread.ofPlatform().start(() -> ahead.set(ObjectIds.version(shared)));
+        second.join();
+        taken.countDown();
+        first.join();
+
+        assertThat(ahead.get()).isGreaterThan(behind.get());
+        assertThat(after.get()).isGreaterThan(ahead.get());
+    }
+}
@@ -0,0 +1,115 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.ChunkSink.Framing;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ITMappedSegmentSink {
+
+    // a json array, the records are separated by commas
+    private static final Framing ARRAY = new Framing(ascii("["), ascii("]"), 1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void fullSegmentsRollOverAndCanBeReadAlone() throws IOException {
+        MappedSegmentSink sink = new MappedSegmentSink(dir.resolve("trace.json").toString(), ARRAY, 64, null);
+        for (int id = 0; id < 100; ++id)
+            write(sink, id);
+        sink.close();
+
+        JSONArray segments = manifest("trace.json");
+        assertThat(segments.length()).isGreaterThan(1);
+        long next = 0;
+        for (int i = 0; i < segments.length(); ++i) {
+            JSONObject segment = segments.getJSONObject(i);
+            assertThat(segment.getString("file")).isEqualTo(MappedSegmentSink.segmentName("trace.json", i));
+            Path file = dir.resolve(segment.getString("file"));
+            assertThat(Files.size(file)).isEqualTo(segment.getLong("bytes")).isLessThanOrEqualTo(64);
+
+            // every segment is a complete array, the ids follow the ones of the segment before
+            JSONArray records = new JSONArray(Files.readString(file));
+            assertThat(segment.getLong("firstId")).isEqualTo(next);
+            for (int j = 0; j < records.length(); ++j)
+                assertThat(records.getLong(j)).isEqualTo(next++);
+            assertThat(segment.getLong("lastId")).isEqualTo(next - 1);
+        }
+        assertThat(next).isEqualTo(100);
+    }
+
+    @Test
+    void aChunkLargerThanASegmentGetsASegmentOfItsOwn() throws IOException {
+        MappedSegmentSink sink = new MappedSegmentSink(dir.resolve("trace.json").toString(), ARRAY, 16, null);
+        write(sink, 1);
+        byte[] large = ascii(",\"" + "x".repeat(100) + "\"");
+        sink.write(large, 0, large.length, 2, 2);
+        write(sink, 3);
+        sink.close();
+
+        JSONArray segments = manifest("trace.json");
+        assertThat(segments.length()).isEqualTo(3);
+        assertThat(new JSONArray(Files.readString(dir.resolve(segments.getJSONObject(1).getString("file")))).toList())
+                .containsExactly("x".repeat(100));
+    }
+
+    @Test
+    void retentionDeletesTheOldestEpochs() throws IOException {
+        MappedSegmentSink.Retention retention = new MappedSegmentSink.Retention(2, 0);
+        MappedSegmentSink trace = new MappedSegmentSink(dir.resolve("trace.json").toString(), ARRAY, 64, retention);
+        MappedSegmentSink objects = new MappedSegmentSink(dir.resolve("objects.json").toString(), ARRAY, 64, retention);
+        for (int epoch = 0; epoch < 5; ++epoch) {
+            // an epoch is never cut, its segment grows past segmentSize
+            for (int id = 0; id < 50; ++id) {
+                write(trace, epoch * 100 + id);
+                write(objects, epoch * 100 + id);
+            }
+            if (epoch < 4) {
+                trace.rollover();
+                objects.rollover();
+            }
+        }
+        trace.close();
+        objects.close();
+
+        for (String name : List.of("trace.json", "objects.json")) {
+            JSONArray segments = manifest(name);
+            List<String> files = new ArrayList<>();
+            for (int i = 0; i < segments.length(); ++i)
+                files.add(segments.getJSONObject(i).getString("file"));
+            assertThat(files).containsExactly(MappedSegmentSink.segmentName(name, 3), MappedSegmentSink.segmentName(name, 4));
+            assertThat(new JSONArray(Files.readString(dir.resolve(files.get(1))))).hasSize(50);
+            assertThat(dir.resolve(MappedSegmentSink.segmentName(name, 2))).doesNotExist();
+        }
+    }
+
+    /*******************************************************
+     **************** helpers ******************
+     *******************************************************/
+
+    private static void write(MappedSegmentSink sink, long id) throws IOException {
+        byte[] chunk = ascii("," + id);
+        sink.write(chunk, 0, chunk.length, id, id);
+    }
+
+    private JSONArray manifest(String fileName) throws IOException {
+        JSONObject manifest = new JSONObject(Files.readString(dir.resolve(fileName + MappedSegmentSink.MANIFEST_SUFFIX)));
+        assertThat(manifest.getString("file")).isEqualTo(fileName);
+        return manifest.getJSONArray("segments");
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
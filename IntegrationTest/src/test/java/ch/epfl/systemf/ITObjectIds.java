@@ -0,0 +1,109 @@
+package ch.epfl.systemf;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ITObjectIds {
+
+    private static final int COUNT = 20_000;
+
+    @Test
+    void idsAreStableAndDistinct() {
+        List<Object> objects = new ArrayList<>();
+        long[] ids = new long[COUNT];
+        for (int i = 0; i < COUNT; ++i) {
+            Object obj = new Object();
+            objects.add(obj);
+            ids[i] = ObjectIds.id(obj);
+        }
+
+        // the table grew since the ids were given
+        Set<Long> distinct = new HashSet<>();
+        for (int i = 0; i < COUNT; ++i) {
+            assertThat(ObjectIds.id(objects.get(i))).isEqualTo(ids[i]);
+            distinct.add(ids[i]);
+        }
+        assertThat(distinct).hasSize(COUNT);
+    }
+
+    @Test
+    void equalObjectsHaveDistinctIds() {
+        List<Integer> a = new ArrayList<>(List.of(1, 2));
+        List<Integer> b = new ArrayList<>(List.of(1, 2));
+        long id = ObjectIds.id(a);
+
+        assertThat(ObjectIds.id(b)).isNotEqualTo(id);
+        // a change of the hash code of the object does not change its id
+        a.add(3);
+        assertThat(ObjectIds.id(a)).isEqualTo(id);
+    }
+
+    @Test
+    void objectsAreMarkedOncePerEpoch() {
+        Object obj = new Object();
+        long id = ObjectIds.id(obj);
+
+        assertThat(ObjectIds.markRead(obj, 1)).isEqualTo(-id);
+        assertThat(ObjectIds.markRead(obj, 1)).isEqualTo(id);
+        assertThat(ObjectIds.markRead(obj, 2)).isEqualTo(-id);
+        assertThat(ObjectIds.markRead(obj, 2)).isEqualTo(id);
+
+        // the first call to markRead gives the id
+        Object other = new Object();
+        long otherId = -ObjectIds.markRead(other, 2);
+        assertThat(otherId).isPositive();
+        assertThat(ObjectIds.id(other)).isEqualTo(otherId);
+    }
+
+    @Test
+    void lastSnapshotIsKeptWithTheObject() {
+        Object obj = new Object();
+        Object snapshot = new Object();
+
+        assertThat(ObjectIds.lastSnapshot(obj)).isNull();
+        ObjectIds.setLastSnapshot(obj, snapshot);
+        assertThat(ObjectIds.lastSnapshot(obj)).isSameAs(snapshot);
+        assertThat(ObjectIds.lastSnapshot(new Object())).isNull();
+    }
+
+    @Test
+    void collectedObjectsAreRemoved() throws InterruptedException {
+        List<Object> kept = new ArrayList<>();
+        List<Long> keptIds = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < COUNT; ++i) {
+            Object obj = new Object();
+            long id = ObjectIds.id(obj);
+            ids.add(id);
+            if (i % 3 == 0) {
+                kept.add(obj);
+                keptIds.add(id);
+            }
+        }
+        int before = ObjectIds.size();
+        int collected = COUNT - kept.size();
+
+        // the entries are removed once the references are enqueued, after the collection
+        WeakReference<Object> sentinel = new WeakReference<>(new Object());
+        for (int i = 0; i < 100 && (!sentinel.refersTo(null) || ObjectIds.size() > before - collected); ++i) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertThat(ObjectIds.size()).isLessThanOrEqualTo(before - collected);
+
+        // the entries moved by the removals are still found
+        for (int i = 0; i < kept.size(); ++i)
+            assertThat(ObjectIds.id(kept.get(i))).isEqualTo(keptIds.get(i));
+
+        // the ids of the collected objects are not reused
+        for (int i = 0; i < COUNT; ++i)
+            assertThat(ids.add(ObjectIds.id(new Object()))).isTrue();
+    }
+}
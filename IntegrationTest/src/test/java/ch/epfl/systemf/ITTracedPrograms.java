@@ -0,0 +1,1227 @@
+package ch.epfl.systemf;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// programs compiled with the plugin and traced, see TracedProgram
+public class ITTracedPrograms {
+
+    @TempDir
+    Path dir;
+
+    private static final String THREADS = """
+            import java.util.ArrayList;
+            import java.util.List;
+            import java.util.stream.IntStream;
+
+            public class Main {
+                static int square(int x) {
+                    return x * x;
+                }
+
+                static int work(int n) {
+                    int sum = 0;
+                    for (int i = 0; i < n; i = i + 1) {
+                        sum += square(i);
+                    }
+                    return sum;
+                }
+
+                static void run() {
+                    work(300);
+                }
+
+                public static void main(String[] args) throws InterruptedException {
+                    List<Thread> threads = new ArrayList<>();
+                    for (int t = 0; t < 4; t = t + 1) {
+                        Thread thread = new Thread(Main::run);
+                        threads.add(thread);
+                        thread.start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    System.out.println(IntStream.range(0, 200).parallel().map(Main::square).sum());
+                }
+            }
+            """;
+
+    @Test
+    void threadsHaveTheirOwnWellNestedEvents() throws Exception {
+        TracedProgram program = new TracedProgram(dir, THREADS);
+        assertThat(program.run()).contains("2646700");
+
+        List<JSONObject> events = program.events();
+        Map<Long, List<JSONObject>> byThread = events.stream()
+                .collect(Collectors.groupingBy(e -> e.getLong("thread")));
+        assertThat(byThread).hasSizeGreaterThanOrEqualTo(5);
+        byThread.values().forEach(ITTracedPrograms::assertWellNested);
+
+        Set<Long> seqs = new HashSet<>();
+        for (JSONObject event : events)
+            assertThat(seqs.add(event.getLong("seq"))).as("seq of %s", event).isTrue();
+    }
+
+    private static final String VIRTUAL_THREADS = """
+            import java.util.ArrayList;
+            import java.util.List;
+
+            public class Main {
+                static int square(int x) {
+                    return x * x;
+                }
+
+                static void run() {
+                    int sum = 0;
+                    for (int i = 0; i < 3; i = i + 1) {
+                        sum += square(i);
+                    }
+                }
+
+                public static void main(String[] args) throws InterruptedException {
+                    List<Thread> threads = new ArrayList<>();
+                    for (int t = 0; t < 1000; t = t + 1) {
+                        threads.add(Thread.ofVirtual().start(Main::run));
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    System.out.println("done");
+                }
+            }
+            """;
+
+    @Test
+    void virtualThreadsAreTracedWithoutPinning() throws Exception {
+        TracedProgram program = new TracedProgram(dir, VIRTUAL_THREADS);
+        // prints the stack of a virtual thread that blocks while pinned to its carrier
+        String output = program.run("-Djdk.tracePinnedThreads=full", "async=true");
+        assertThat(output).contains("done").doesNotContain("<== monitors");
+
+        Map<Long, List<JSONObject>> byThread = program.events().stream()
+                .collect(Collectors.groupingBy(e -> e.getLong("thread")));
+        assertThat(byThread).hasSizeGreaterThan(1000);
+        byThread.values().forEach(ITTracedPrograms::assertWellNested);
+    }
+
+    private static final String SHARED_OBJECT = """
+            import java.util.ArrayList;
+            import java.util.List;
+
+            public class Main {
+                static class Counter {
+                    int value = 0;
+                }
+
+                static void add(Counter counter, int x) {
+                    synchronized (counter) {
+                        counter.value = counter.value + x;
+                    }
+                }
+
+                static void run(Counter counter) {
+                    for (int i = 0; i < 500; i = i + 1) {
+                        add(counter, i);
+                    }
+                }
+
+                public static void main(String[] args) throws InterruptedException {
+                    Counter counter = new Counter();
+                    List<Thread> threads = new ArrayList<>();
+                    for (int t = 0; t < 4; t = t + 1) {
+                        Thread thread = new Thread(() -> {
+                            run(counter);
+                        });
+                        threads.add(thread);
+                        thread.start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    System.out.println(counter.value);
+                }
+            }
+            """;
+
+    @Test
+    void referencesOfSharedObjectsHaveASnapshot() throws Exception {
+        TracedProgram program = new TracedProgram(dir, SHARED_OBJECT);
+        assertThat(program.run()).contains("499000");
+        assertThat(assertReferencesResolve(program.events(), program.objectData())).isPositive();
+    }
+
+    @Test
+    void objectsHoldTheirIdWithObjectIdField() throws Exception {
+        TracedProgram program = new TracedProgram(dir, SHARED_OBJECT, "objectIdField");
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()}, null)) {
+            assertThat(loader.loadClass("Main$Counter").getDeclaredFields()).extracting(Field::getName)
+                    .contains("$pw$id", "$pw$epoch", "$pw$last", "$pw$version");
+        }
+        assertThat(program.run()).contains("499000");
+
+        List<JSONObject> objectData = program.objectData();
+        assertThat(assertReferencesResolve(program.events(), objectData)).isPositive();
+        // the injected fields are not fields of the program
+        assertThat(objectData).filteredOn(record -> record.has("schema"))
+                .flatExtracting(record -> record.getJSONArray("fields").toList())
+                .isNotEmpty().noneMatch(field -> field.toString().contains("$pw$"));
+    }
+
+    private static final String LOOP = """
+            public class Main {
+                static class Point {
+                    int x = 0;
+                    int y = 0;
+                }
+
+                static void move(Point p, int dx) {
+                    p.x = p.x + dx;
+                    p.y = p.y - dx;
+                }
+
+                public static void main(String[] args) {
+                    Point p = new Point();
+                    for (int i = 0; i < 8000; i = i + 1) {
+                        move(p, i);
+                    }
+                    System.out.println(p.x);
+                }
+            }
+            """;
+
+    @Test
+    void mappedSegmentsCanBeReadAlone() throws Exception {
+        TracedProgram program = new TracedProgram(dir, LOOP);
+        assertThat(program.run("output=mmap", "segmentSize=1")).contains("31996000");
+
+        List<JSONObject> events = new ArrayList<>();
+        List<Path> segments = program.segments(JsonTraceWriter.TRACE_FILE_NAME);
+        assertThat(segments).hasSizeGreaterThan(1);
+        for (Path segment : segments) {
+            JSONArray trace = new JSONObject(Files.readString(segment)).getJSONArray("trace");
+            assertThat(trace.length()).isPositive();
+            for (int i = 0; i < trace.length(); ++i)
+                events.add(trace.getJSONObject(i));
+        }
+        assertWellNested(events);
+
+        List<JSONObject> objectData = new ArrayList<>();
+        for (Path segment : program.segments(JsonTraceWriter.OBJECT_DATA_FILE_NAME)) {
+            JSONArray records = new JSONArray(Files.readString(segment));
+            for (int i = 0; i < records.length(); ++i)
+                objectData.add(records.getJSONObject(i));
+        }
+        assertThat(assertReferencesResolve(events, objectData)).isPositive();
+    }
+
+    private static final String EPOCHS = """
+            import java.util.ArrayList;
+            import java.util.List;
+
+            public class Main {
+                static class Counter {
+                    int value;
+                    int[] history;
+                }
+
+                static int slow(int n) {
+                    int sum = 0;
+                    for (int i = 0; i < n; i = i + 1) {
+                        sum = sum + i;
+                    }
+                    return sum;
+                }
+
+                static void add(Counter counter, int x) {
+                    synchronized (counter) {
+                        counter.value = counter.value + x;
+                        counter.history[x % 8] = counter.value;
+                    }
+                }
+
+                static void run(Counter counter) {
+                    for (int i = 0; i < 200; i = i + 1) {
+                        // the reference to counter is taken before the events of slow
+                        add(counter, slow(i % 20));
+                    }
+                }
+
+                public static void main(String[] args) throws InterruptedException {
+                    Counter counter = new Counter();
+                    counter.history = new int[8];
+                    List<Thread> threads = new ArrayList<>();
+                    for (int t = 0; t < 4; t = t + 1) {
+                        Thread thread = new Thread(() -> {
+                            run(counter);
+                        });
+                        threads.add(thread);
+                        thread.start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    System.out.println(counter.value);
+                }
+            }
+            """;
+
+    @Test
+    void epochsCanBeReadAlone() throws Exception {
+        TracedProgram program = new TracedProgram(dir, EPOCHS);
+        assertThat(program.run("epochSize=2000")).contains("45600");
+        assertEpochsCanBeReadAlone(program);
+        // the events stored in the rings are written in the segments of their epoch
+        assertThat(program.run("epochSize=2000", "async=true")).contains("45600");
+        assertEpochsCanBeReadAlone(program);
+    }
+
+    private static void assertEpochsCanBeReadAlone(TracedProgram program) throws IOException {
+        List<Path> traces = program.segments(JsonTraceWriter.TRACE_FILE_NAME);
+        List<Path> objects = program.segments(JsonTraceWriter.OBJECT_DATA_FILE_NAME);
+        assertThat(traces).hasSizeGreaterThan(5).hasSameSizeAs(objects);
+        int references = 0;
+        for (int i = 0; i < traces.size(); ++i) {
+            JSONArray trace = new JSONObject(Files.readString(traces.get(i))).getJSONArray("trace");
+            List<JSONObject> events = new ArrayList<>();
+            for (int j = 0; j < trace.length(); ++j)
+                events.add(trace.getJSONObject(j));
+            JSONArray records = new JSONArray(Files.readString(objects.get(i)));
+            List<JSONObject> objectData = new ArrayList<>();
+            for (int j = 0; j < records.length(); ++j)
+                objectData.add(records.getJSONObject(j));
+
+            references += assertReferencesResolve(events, objectData);
+            // the base of a delta is in the same epoch
+            Set<String> snapshots = new HashSet<>();
+            for (JSONObject record : objectData) {
+                if (record.has("pointer"))
+                    snapshots.add(record.getLong("pointer") + "@" + record.getLong("version"));
+            }
+            for (JSONObject record : objectData) {
+                if (record.has("base"))
+                    assertThat(snapshots).as("base of %s", record).contains(record.getLong("pointer") + "@" + record.getLong("base"));
+            }
+        }
+        assertThat(references).isPositive();
+    }
+
+    private static final String HALTED = """
+            public class Main {
+                static int square(int x) {
+                    return x * x;
+                }
+
+                public static void main(String[] args) throws InterruptedException {
+                    int sum = 0;
+                    for (int i = 0; i < 100; i = i + 1) {
+                        sum = sum + square(i);
+                    }
+                    System.out.println(sum);
+                    Thread.sleep(500);
+                    if (Boolean.getBoolean("halt")) {
+                        Runtime.getRuntime().halt(0);
+                    }
+                }
+            }
+            """;
+
+    @Test
+    void ndjsonTraceIsTheJsonTraceOnePerLine() throws Exception {
+        TracedProgram program = new TracedProgram(dir, HALTED);
+        assertThat(program.run()).contains("328350");
+        List<JSONObject> expected = program.events();
+
+        assertThat(program.run("format=ndjson")).contains("328350");
+        List<String> lines = Files.readAllLines(program.file(JsonTraceWriter.NDJSON_TRACE_FILE_NAME));
+        assertThat(lines.getLast()).isEqualTo("{\"commit\":true}");
+        assertThat(lines).hasSize(expected.size() + 1);
+        for (int i = 0; i < expected.size(); ++i)
+            assertThat(new JSONObject(lines.get(i)).similar(expected.get(i))).as(lines.get(i)).isTrue();
+        assertThat(Files.readAllLines(program.file(JsonTraceWriter.NDJSON_OBJECT_DATA_FILE_NAME)).getLast())
+                .isEqualTo("{\"commit\":true}");
+    }
+
+    // the events recorded before the last periodic flush survive a crash
+    @Test
+    void haltedNdjsonTraceCanBeReadUpToItsLastLine() throws Exception {
+        TracedProgram program = new TracedProgram(dir, HALTED);
+        assertThat(program.run("format=ndjson", "flushInterval=50")).contains("328350");
+        long loop = loopEvents(Files.readAllLines(program.file(JsonTraceWriter.NDJSON_TRACE_FILE_NAME)));
+
+        // no shutdown hook, the trace is not closed
+        assertThat(program.run("format=ndjson", "flushInterval=50", "-Dhalt=true")).contains("328350");
+        String trace = Files.readString(program.file(JsonTraceWriter.NDJSON_TRACE_FILE_NAME));
+        List<String> lines = List.of(trace.split("\n"));
+        assertThat(lines).doesNotContain("{\"commit\":true}");
+        // every line is complete, the events of the loop were flushed during the sleep
+        assertThat(loopEvents(lines)).isPositive().isEqualTo(loop);
+    }
+
+    private static long loopEvents(List<String> lines) {
+        return lines.stream().map(JSONObject::new)
+                .filter(event -> event.optString("nodeKey").startsWith("Main.java-9:"))
+                .count();
+    }
+
+    private static final String FIELD_WRITES = """
+            public class Main {
+                static class Particle {
+                    int x;
+                    int y;
+                    double mass;
+                    String name;
+                }
+
+                static void step(Particle p, int i) {
+                    p.x = p.x + i;
+                }
+
+                public static void main(String[] args) {
+                    Particle p = new Particle();
+                    p.mass = 2.5;
+                    p.name = "p";
+                    for (int i = 0; i < 40; i = i + 1) {
+                        step(p, i);
+                    }
+                    System.out.println(p.x);
+                }
+            }
+            """;
+
+    @Test
+    void writtenObjectsAreSavedAsDeltas() throws Exception {
+        TracedProgram program = new TracedProgram(dir, FIELD_WRITES);
+        assertThat(program.run()).contains("780");
+
+        List<JSONObject> objectData = program.objectData();
+        long schema = objectData.stream()
+                .filter(record -> record.has("schema") && record.getString("className").equals("Particle"))
+                .findFirst().orElseThrow().getLong("schema");
+        List<JSONObject> particle = objectData.stream()
+                .filter(record -> record.has("pointer") && record.getLong("class") == schema)
+                .toList();
+        // the snapshot of new, the writes of mass, name and 39 changes of x, the reads save nothing
+        assertThat(particle).hasSize(42);
+        JSONArray values = null;
+        int deltas = 0;
+        long version = 0;
+        for (JSONObject record : particle) {
+            if (record.has("base")) {
+                assertThat(record.getLong("base")).isEqualTo(version);
+                assertThat(record.getJSONArray("changes")).hasSize(1);
+                JSONArray change = record.getJSONArray("changes").getJSONArray(0);
+                values.put(change.getInt(0), change.get(1));
+                assertThat(++deltas).isLessThanOrEqualTo(16);
+            } else {
+                values = record.getJSONArray("values");
+                deltas = 0;
+            }
+            version = record.getLong("version");
+        }
+        assertThat(particle).filteredOn(record -> !record.has("base")).hasSize(3);
+        assertThat(values.getInt(0)).isEqualTo(780);
+        assertThat(values.getDouble(2)).isEqualTo(2.5);
+        assertThat(assertReferencesResolve(program.events(), objectData)).isPositive();
+
+        // every snapshot in full
+        assertThat(program.run("deltaInterval=0")).contains("780");
+        assertThat(program.objectData()).noneMatch(record -> record.has("base"));
+    }
+
+    private static final String ARRAY_WRITES = """
+            public class Main {
+                public static void main(String[] args) {
+                    int[] squares = new int[5];
+                    for (int i = 0; i < 5; i = i + 1) {
+                        squares[i] = i * i;
+                        squares[i] += 1;
+                    }
+                    System.out.println(squares[4]);
+                }
+            }
+            """;
+
+    @Test
+    void arrayElementWritesAreSavedAsDeltas() throws Exception {
+        TracedProgram program = new TracedProgram(dir, ARRAY_WRITES);
+        assertThat(program.run()).contains("17");
+
+        // an element has no identifier, its writes are only in the object data
+        List<JSONObject> writes = new ArrayList<>();
+        program.events().forEach(event -> event.optJSONArray("assigns", new JSONArray())
+                .forEach(write -> writes.add((JSONObject) write)));
+        assertThat(writes).extracting(write -> write.getJSONObject("identifier").getString("name"))
+                .containsOnly("squares", "i");
+
+        List<JSONObject> objectData = program.objectData();
+        assertThat(objectData).filteredOn(record -> record.has("values")).hasSize(1);
+        int[] squares = new int[5];
+        long version = 0;
+        for (JSONObject record : objectData) {
+            assertThat(record.getJSONObject("self").getLong("version")).isGreaterThan(version);
+            version = record.getJSONObject("self").getLong("version");
+            if (record.has("index"))
+                squares[record.getInt("index")] = record.getJSONObject("value").getInt("value");
+        }
+        assertThat(squares).containsExactly(1, 2, 5, 10, 17);
+        assertThat(assertReferencesResolve(program.events(), objectData)).isPositive();
+    }
+
+    private static final String ENUM_SITES = """
+            import java.util.function.IntUnaryOperator;
+
+            public class Main {
+                enum Op {
+                    ADD(1), MUL(2);
+
+                    private final int k;
+
+                    Op(int k) {
+                        this.k = k;
+                    }
+
+                    int apply(int x) {
+                        IntUnaryOperator f = (y) -> {
+                            return y * k + 1;
+                        };
+                        int r = 0;
+                        for (int i = 0; i < 3; i = i + 1) {
+                            r = r + f.applyAsInt(x);
+                        }
+                        return r;
+                    }
+                }
+
+                public static void main(String[] args) {
+                    int total = 0;
+                    for (Op op : Op.values()) {
+                        total = total + op.apply(5);
+                    }
+                    System.out.println(total);
+                }
+            }
+            """;
+
+    // the sites of an enum are used by its constants before its static fields are initialized
+    @Test
+    void sitesOfEnumsAreLoggedAsTheirKeys() throws Exception {
+        TracedProgram program = new TracedProgram(dir, ENUM_SITES);
+        assertThat(program.run()).contains("51");
+
+        List<JSONObject> events = program.events();
+        assertThat(events).filteredOn(event -> event.has("kind") && event.get("kind") instanceof JSONObject)
+                .extracting(event -> event.getJSONObject("kind").optString("functionName"))
+                .contains("<init>", "apply", "lambda");
+        // the constructor, the method and its lambda
+        assertThat(events).extracting(event -> event.optString("nodeKey"))
+                .anyMatch(key -> key.startsWith("Main.java-10:"))
+                .anyMatch(key -> key.startsWith("Main.java-15:"))
+                .anyMatch(key -> key.startsWith("Main.java-18:"));
+        assertWellNested(events);
+    }
+
+    private static final String NESTED_CLASSES = """
+            public class Main {
+                int scale;
+
+                static class Point {
+                    int x;
+                    String label;
+                    double weight;
+                }
+
+                class Scaled {
+                    int factor;
+
+                    int scaled(int x) {
+                        int r = x * factor * scale;
+                        return r;
+                    }
+                }
+
+                Scaled make() {
+                    Scaled s = new Scaled();
+                    s.factor = scale;
+                    return s;
+                }
+
+                static int show(Point p, Scaled s) {
+                    int r = s.scaled(p.x);
+                    return r;
+                }
+
+                public static void main(String[] args) {
+                    Main m = new Main();
+                    m.scale = 3;
+                    Point p = new Point();
+                    p.x = 4;
+                    p.label = "four";
+                    p.weight = 0.5;
+                    Scaled s = m.make();
+                    System.out.println(show(p, s));
+                }
+            }
+            """;
+
+    // this$0 is added by javac after the plugin, the fields of Scaled are read by reflection
+    @Test
+    void innerClassesAreSavedWithTheirOuterInstance() throws Exception {
+        TracedProgram program = new TracedProgram(dir, NESTED_CLASSES);
+        assertThat(program.run()).contains("36");
+
+        List<JSONObject> objectData = program.objectData();
+        Map<String, Object> scaled = lastValues(objectData, "Scaled");
+        assertThat(scaled).containsOnlyKeys("factor", "this$0").containsEntry("factor", 3);
+        JSONObject outer = (JSONObject) scaled.get("this$0");
+        assertThat(outer.getString("dataType")).isEqualTo("instanceRef");
+        assertThat(outer.getJSONObject("className").getString("className")).isEqualTo("Main");
+        assertThat(lastValues(objectData, "Main")).containsEntry("scale", 3);
+        assertThat(assertReferencesResolve(program.events(), objectData)).isPositive();
+    }
+
+    @Test
+    void nestedClassesAreSavedByTheirSnapshotMethod() throws Exception {
+        TracedProgram program = new TracedProgram(dir, NESTED_CLASSES);
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()}, FileLogger.class.getClassLoader())) {
+            assertThat(loader.loadClass("Main$Point").getDeclaredMethods()).extracting(Method::getName)
+                    .contains("$pw$snapshot");
+        }
+        assertThat(program.run()).contains("36");
+
+        List<JSONObject> objectData = program.objectData();
+        // the fields in the order of their declaration, with their types
+        assertThat(objectData).filteredOn(record -> record.optString("className").equals("Point"))
+                .singleElement()
+                .extracting(schema -> schema.getJSONArray("fields").toList())
+                .isEqualTo(List.of(Map.of("name", "x", "type", "int"), Map.of("name", "label", "type", "object"),
+                        Map.of("name", "weight", "type", "double")));
+        Map<String, Object> point = lastValues(objectData, "Point");
+        assertThat(point).containsEntry("x", 4);
+        assertThat(((JSONObject) point.get("label")).getString("value")).isEqualTo("four");
+        assertThat(((Number) point.get("weight")).doubleValue()).isEqualTo(0.5);
+    }
+
+    private static final String MANY_OBJECTS = """
+            public class Main {
+                static class Point {
+                    int x;
+                    int y;
+                    String name;
+                }
+
+                static Point point(int i) {
+                    Point p = new Point();
+                    p.x = i;
+                    p.y = i * 2;
+                    p.name = "p" + i;
+                    return p;
+                }
+
+                public static void main(String[] args) {
+                    int sum = 0;
+                    for (int i = 0; i < 50; i = i + 1) {
+                        Point p = point(i);
+                        sum = sum + p.y;
+                    }
+                    System.out.println(sum);
+                }
+            }
+            """;
+
+    @Test
+    void schemasAreDeclaredOncePerClass() throws Exception {
+        TracedProgram program = new TracedProgram(dir, MANY_OBJECTS);
+        assertThat(program.run()).contains("2450");
+
+        List<JSONObject> objectData = program.objectData();
+        List<JSONObject> schemas = objectData.stream().filter(record -> record.has("schema")).toList();
+        assertThat(schemas).extracting(schema -> schema.getString("className")).containsOnlyOnce("Point");
+        JSONObject point = schemas.stream().filter(schema -> schema.getString("className").equals("Point"))
+                .findFirst().orElseThrow();
+        // a schema comes before the snapshots of its class, which only give the values
+        assertThat(objectData.indexOf(point)).isLessThan(objectData.indexOf(objectData.stream()
+                .filter(record -> record.optLong("class", -1) == point.getLong("schema")).findFirst().orElseThrow()));
+        List<JSONObject> snapshots = objectData.stream()
+                .filter(record -> record.optLong("class", -1) == point.getLong("schema") && record.has("values"))
+                .toList();
+        assertThat(snapshots).hasSize(50);
+        for (JSONObject snapshot : snapshots) {
+            assertThat(snapshot.keySet()).containsExactlyInAnyOrder("pointer", "version", "class", "values");
+            assertThat(snapshot.getJSONArray("values").length()).isEqualTo(3);
+        }
+        assertThat(lastValues(objectData, "Point")).containsEntry("x", 49).containsEntry("y", 98);
+    }
+
+    private static final String PRIMITIVE_ARRAYS = """
+            public class Main {
+                static int sizes(double[] ds, long[] ls, char[] cs, boolean[] bs, byte[] bytes) {
+                    int n = ds.length + ls.length;
+                    n = n + cs.length + bs.length + bytes.length;
+                    return n;
+                }
+
+                public static void main(String[] args) {
+                    double[] ds = new double[]{1.5, -2.25};
+                    long[] ls = new long[]{7L, 1L << 40};
+                    char[] cs = new char[]{'a', 'z'};
+                    boolean[] bs = new boolean[]{true, false, true};
+                    byte[] bytes = new byte[]{-1, 2};
+                    System.out.println(sizes(ds, ls, cs, bs, bytes));
+                }
+            }
+            """;
+
+    @Test
+    void primitiveArraysAreSavedWithTheirElements() throws Exception {
+        TracedProgram program = new TracedProgram(dir, PRIMITIVE_ARRAYS);
+        assertThat(program.run()).contains("11");
+
+        Map<String, JSONArray> arrays = new HashMap<>();
+        for (JSONObject record : program.objectData()) {
+            if (record.has("type"))
+                arrays.put(record.getString("type"), record.getJSONArray("values"));
+        }
+        assertThat(arrays).containsOnlyKeys("double", "long", "char", "bool", "byte");
+        assertThat(arrays.get("double").toList()).extracting(v -> ((Number) v).doubleValue()).containsExactly(1.5, -2.25);
+        assertThat(arrays.get("long").toList()).extracting(v -> ((Number) v).longValue()).containsExactly(7L, 1L << 40);
+        assertThat(arrays.get("char").toList()).isEqualTo(List.of("a", "z"));
+        assertThat(arrays.get("bool").toList()).isEqualTo(List.of(true, false, true));
+        assertThat(arrays.get("byte").toList()).isEqualTo(List.of(-1, 2));
+        assertThat(assertReferencesResolve(program.events(), program.objectData())).isPositive();
+    }
+
+    private static final String NESTED_ARRAYS = """
+            public class Main {
+                static int first(int[][][][] cube) {
+                    int[] row = cube[1][1][1];
+                    int r = row[0] + row.length;
+                    return r;
+                }
+
+                static int rows(int[][] grid) {
+                    int[] last = grid[2];
+                    int r = last[49] + grid.length;
+                    return r;
+                }
+
+                public static void main(String[] args) {
+                    int[][][][] cube = new int[2][2][2][2];
+                    int[][] grid = new int[3][50];
+                    System.out.println(first(cube) + rows(grid));
+                }
+            }
+            """;
+
+    @Test
+    void snapshotsStopAtTheirDepthAndSize() throws Exception {
+        TracedProgram program = new TracedProgram(dir, NESTED_ARRAYS);
+        assertThat(program.run("snapshotDepth=2", "snapshotSize=60")).contains("5");
+
+        List<JSONObject> objectData = program.objectData();
+        List<JSONObject> truncated = new ArrayList<>();
+        objectData.forEach(record -> record.getJSONArray("values").forEach(value -> {
+            if (value instanceof JSONObject ref && ref.optBoolean("truncated"))
+                truncated.add(ref);
+        }));
+        // the arrays of ints at depth 3 in cube and the last row of grid, out of size
+        assertThat(truncated).hasSize(5);
+        List<JSONObject> rows = objectData.stream().filter(record -> record.getString("type").equals("int")).toList();
+        // the first row of grid, the second up to the size, the row read by first, then the last row
+        assertThat(rows).extracting(row -> row.getJSONArray("values").length()).containsExactly(50, 7, 2, 50);
+        assertThat(rows.get(1).getInt("length")).isEqualTo(50);
+        JSONObject last = truncated.getLast();
+        assertThat(rows.getLast().getJSONObject("self").getLong("pointer")).isEqualTo(last.getLong("pointer"));
+        assertThat(assertReferencesResolve(program.events(), objectData)).isPositive();
+    }
+
+    private static final String RING = """
+            public class Main {
+                static class Node {
+                    int value;
+                    Node next;
+                }
+
+                static int count(Node head) {
+                    int c = 1;
+                    Node n = head.next;
+                    while (n != head) {
+                        c = c + 1;
+                        n = n.next;
+                    }
+                    return c;
+                }
+
+                public static void main(String[] args) {
+                    Node head = new Node();
+                    Node last = head;
+                    for (int i = 1; i < 12; i = i + 1) {
+                        Node n = new Node();
+                        n.value = i;
+                        last.next = n;
+                        last = n;
+                    }
+                    last.next = head;
+                    int sum = 0;
+                    for (int i = 0; i < 1000; i = i + 1) {
+                        sum = sum + i;
+                    }
+                    System.out.println(sum + count(head));
+                }
+            }
+            """;
+
+    // in a later epoch the ring is saved again from its head, the snapshot ends at the head
+    @Test
+    void cyclesAreSavedOnce() throws Exception {
+        TracedProgram program = new TracedProgram(dir, RING);
+        assertThat(program.run("epochSize=1000", "snapshotDepth=0")).contains("499512");
+        List<JSONObject> ring = ringSnapshots(program);
+        assertThat(ring).hasSize(12);
+        assertThat(ring).extracting(node -> node.getJSONArray("values").getJSONObject(1).optBoolean("truncated"))
+                .containsOnly(false);
+        assertEpochsCanBeReadAlone(program);
+
+        // 3 nodes per snapshot, the next ones are saved when count reads them
+        assertThat(program.run("epochSize=1000", "snapshotDepth=3")).contains("499512");
+        ring = ringSnapshots(program);
+        assertThat(ring).hasSize(12);
+        // the last node refers to the head, already saved
+        assertThat(ring).extracting(node -> node.getJSONArray("values").getJSONObject(1).optBoolean("truncated"))
+                .containsExactly(true, false, false, true, false, false, true, false, false, false, false, false);
+        assertEpochsCanBeReadAlone(program);
+    }
+
+    // the full snapshots of the nodes in the segment of the call of count, the last one with some
+    private static List<JSONObject> ringSnapshots(TracedProgram program) throws IOException {
+        List<JSONObject> snapshots = new ArrayList<>();
+        for (Path segment : program.segments(JsonTraceWriter.OBJECT_DATA_FILE_NAME)) {
+            JSONArray records = new JSONArray(Files.readString(segment));
+            List<JSONObject> full = new ArrayList<>();
+            for (int i = 0; i < records.length(); ++i) {
+                if (records.getJSONObject(i).has("values"))
+                    full.add(records.getJSONObject(i));
+            }
+            if (!full.isEmpty())
+                snapshots = full;
+        }
+        return snapshots;
+    }
+
+    private static final String COLLECTIONS = """
+            import java.util.ArrayList;
+            import java.util.HashMap;
+            import java.util.List;
+            import java.util.Map;
+
+            public class Main {
+                static int total(List<String> names, Map<String, Integer> ages) {
+                    int n = names.size();
+                    int t = n + ages.get("z");
+                    return t;
+                }
+
+                public static void main(String[] args) {
+                    List<String> names = new ArrayList<>(List.of("x", "y"));
+                    Map<String, Integer> ages = new HashMap<>(Map.of("z", 3));
+                    System.out.println(total(names, ages));
+                }
+            }
+            """;
+
+    // without --add-opens, the fields of the JDK collections are not accessible
+    @Test
+    void collectionsAreSavedAsTheirContents() throws Exception {
+        TracedProgram program = new TracedProgram(dir, COLLECTIONS);
+        assertThat(program.run()).contains("5");
+
+        List<JSONObject> objectData = program.objectData();
+        assertThat(objectData).filteredOn(record -> record.optString("className").equals("ArrayList"))
+                .singleElement()
+                .extracting(schema -> schema.getJSONArray("fields").toList())
+                .isEqualTo(List.of(Map.of("name", "elements", "type", "object")));
+        JSONObject names = (JSONObject) lastValues(objectData, "ArrayList").get("elements");
+        assertThat(names.getString("dataType")).isEqualTo("sequence");
+        assertThat(names.getJSONArray("values").toList()).extracting(value -> (Object) ((Map<?, ?>) value).get("value"))
+                .containsExactly("x", "y");
+
+        JSONObject ages = (JSONObject) lastValues(objectData, "HashMap").get("entries");
+        JSONArray entry = ages.getJSONArray("values").getJSONObject(0).getJSONArray("values");
+        assertThat(ages.getJSONArray("values").length()).isEqualTo(1);
+        assertThat(entry.getJSONObject(0).getString("value")).isEqualTo("z");
+        assertThat(entry.getJSONObject(1).getInt("value")).isEqualTo(3);
+        assertThat(assertReferencesResolve(program.events(), objectData)).isPositive();
+    }
+
+    private static final String RECORDS = """
+            public class Main {
+                record Pair(int a, String b) {
+                }
+
+                enum Color {
+                    RED, GREEN
+                }
+
+                static int weight(Pair p, Color c) {
+                    int w = p.a() * c.ordinal();
+                    return w;
+                }
+
+                public static void main(String[] args) {
+                    Pair p = new Pair(2, "two");
+                    int sum = 0;
+                    for (int i = 0; i < 10; i = i + 1) {
+                        sum = sum + weight(p, Color.GREEN);
+                    }
+                    System.out.println(sum);
+                }
+            }
+            """;
+
+    @Test
+    void recordsAreSavedOnceAndEnumsAreConstants() throws Exception {
+        TracedProgram program = new TracedProgram(dir, RECORDS);
+        assertThat(program.run()).contains("20");
+
+        List<JSONObject> objectData = program.objectData();
+        // a record never changes, its reads in the loop refer to the same snapshot
+        assertThat(objectData).filteredOn(record -> record.has("schema"))
+                .extracting(schema -> schema.getString("className")).containsExactly("Pair");
+        assertThat(objectData).filteredOn(record -> record.has("pointer")).hasSize(1);
+        assertThat(lastValues(objectData, "Pair")).containsEntry("a", 2);
+
+        List<JSONObject> calls = program.events().stream()
+                .filter(event -> event.has("argsValues") && event.getString("nodeKey").startsWith("Main.java-18:"))
+                .toList();
+        assertThat(calls).hasSize(10);
+        for (JSONObject call : calls) {
+            JSONObject color = call.getJSONArray("argsValues").getJSONObject(1);
+            assertThat(color.getString("dataType")).isEqualTo("enum");
+            assertThat(color.getString("name")).isEqualTo("GREEN");
+            assertThat(color.getInt("ordinal")).isEqualTo(1);
+        }
+        assertThat(assertReferencesResolve(program.events(), objectData)).isPositive();
+    }
+
+    private static final String PRIMITIVES = """
+            public class Main {
+                static long mix(long a, char b, float c, byte d, short e) {
+                    long r = a + b + (long) c + d + e;
+                    return r;
+                }
+
+                public static void main(String[] args) {
+                    long a = 1L << 40;
+                    char b = 'c';
+                    float c = 2.5f;
+                    byte d = -3;
+                    short e = 300;
+                    double f = 0.125;
+                    boolean g = f < c;
+                    System.out.println(mix(a, b, c, d, e) + " " + g);
+                }
+            }
+            """;
+
+    @Test
+    void primitiveValuesKeepTheirType() throws Exception {
+        TracedProgram program = new TracedProgram(dir, PRIMITIVES);
+        assertThat(program.run()).contains("1099511628174 true");
+
+        List<JSONObject> events = program.events();
+        Map<String, JSONObject> writes = new HashMap<>();
+        events.forEach(event -> event.optJSONArray("assigns", new JSONArray()).forEach(write -> writes.put(
+                ((JSONObject) write).getJSONObject("identifier").getString("name"),
+                ((JSONObject) write).getJSONObject("value"))));
+        assertThat(writes.get("a").toMap()).isEqualTo(Map.of("dataType", "long", "value", 1L << 40));
+        assertThat(writes.get("b").toMap()).isEqualTo(Map.of("dataType", "char", "value", "c"));
+        assertThat(writes.get("c").getString("dataType")).isEqualTo("float");
+        assertThat(writes.get("c").getDouble("value")).isEqualTo(2.5);
+        assertThat(writes.get("d").toMap()).isEqualTo(Map.of("dataType", "byte", "value", -3));
+        assertThat(writes.get("e").toMap()).isEqualTo(Map.of("dataType", "short", "value", 300));
+        assertThat(writes.get("f").getString("dataType")).isEqualTo("double");
+        assertThat(writes.get("f").getDouble("value")).isEqualTo(0.125);
+        assertThat(writes.get("g").toMap()).isEqualTo(Map.of("dataType", "bool", "value", true));
+
+        JSONObject call = events.stream().filter(event -> event.has("argsValues")
+                && event.getJSONArray("argsValues").length() == 5).findFirst().orElseThrow();
+        assertThat(call.getJSONArray("argsValues").toList()).extracting(arg -> (Object) ((Map<?, ?>) arg).get("dataType"))
+                .containsExactly("long", "char", "float", "byte", "short");
+        assertThat(writes.get("r").toMap()).isEqualTo(Map.of("dataType", "long", "value", 1099511628174L));
+    }
+
+    private static final String ARITIES = """
+            public class Main {
+                static int total;
+
+                static int f0() {
+                    int r = 0;
+                    return r;
+                }
+
+                static int f1(int a) {
+                    int r = a;
+                    return r;
+                }
+
+                static int f6(int a, int b, int c, int d, int e, int f) {
+                    int r = a + b + c + d + e + f;
+                    return r;
+                }
+
+                static int f8(int a, int b, int c, int d, int e, int f, int g, int h) {
+                    int r = a + b + c + d + e + f + g + h;
+                    return r;
+                }
+
+                static void v2(int a, int b) {
+                    total = total + a + b;
+                }
+
+                static void v7(int a, int b, int c, int d, int e, int f, int g) {
+                    total = total + a + b + c + d + e + f + g;
+                }
+
+                public static void main(String[] args) {
+                    int sum = f0();
+                    sum = sum + f1(1);
+                    sum = sum + f6(1, 2, 3, 4, 5, 6);
+                    sum = sum + f8(1, 2, 3, 4, 5, 6, 7, 8);
+                    v2(1, 2);
+                    v7(1, 2, 3, 4, 5, 6, 7);
+                    System.out.println(sum + total);
+                }
+            }
+            """;
+
+    // up to 6 arguments the calls are logged without an array, above with one
+    @Test
+    void callsLogTheirArguments() throws Exception {
+        TracedProgram program = new TracedProgram(dir, ARITIES);
+        assertThat(program.run()).contains("89");
+
+        List<JSONObject> calls = program.events().stream()
+                .filter(event -> event.has("argsValues") && event.getString("nodeKey").matches("Main\\.java-3[3-8]:.*"))
+                .toList();
+        assertThat(calls).extracting(call -> call.getJSONArray("argsValues").toList().stream()
+                        .map(arg -> ((Number) ((Map<?, ?>) arg).get("value")).intValue()).toList())
+                .containsExactly(List.of(), List.of(1), List.of(1, 2, 3, 4, 5, 6), List.of(1, 2, 3, 4, 5, 6, 7, 8),
+                        List.of(1, 2), List.of(1, 2, 3, 4, 5, 6, 7));
+        // the results of the calls, the void calls have none
+        Map<Long, Integer> results = new HashMap<>();
+        for (JSONObject event : program.events()) {
+            if (event.has("result") && event.has("stepId"))
+                results.put(event.getLong("stepId"), event.getJSONObject("result").getInt("value"));
+        }
+        assertThat(calls).extracting(call -> results.get(call.getLong("stepId")))
+                .containsExactly(0, 1, 21, 36, null, null);
+        assertWellNested(program.events());
+    }
+
+    private static final String EARLY_EXITS = """
+            public class Main {
+                static int check(int x) {
+                    if (x > 3) {
+                        throw new IllegalArgumentException("too big");
+                    }
+                    int r = x * 2;
+                    return r;
+                }
+
+                static int find(int[] values, int target) {
+                    for (int i = 0; i < values.length; i = i + 1) {
+                        if (values[i] == target) {
+                            return i;
+                        }
+                    }
+                    return -1;
+                }
+
+                public static void main(String[] args) {
+                    int sum = 0;
+                    for (int i = 0; i < 6; i = i + 1) {
+                        try {
+                            sum = sum + check(i);
+                        } catch (IllegalArgumentException e) {
+                            sum = sum + 100;
+                        }
+                    }
+                    int[] values = new int[]{4, 8, 15};
+                    sum = sum + find(values, 8) + find(values, 16);
+                    System.out.println(sum);
+                }
+            }
+            """;
+
+    // the groups left by an exception or a return in a loop are ended
+    @Test
+    void groupsEndOnExceptionsAndReturns() throws Exception {
+        TracedProgram program = new TracedProgram(dir, EARLY_EXITS);
+        assertThat(program.run()).contains("212");
+
+        List<JSONObject> events = program.events();
+        assertWellNested(events);
+        Map<String, Long> functions = events.stream()
+                .filter(event -> event.opt("kind") instanceof JSONObject kind && kind.has("functionName"))
+                .collect(Collectors.groupingBy(event -> event.getJSONObject("kind").getString("functionName")
+                        + "-" + event.getString("pos"), Collectors.counting()));
+        assertThat(functions).containsEntry("check-start", 6L).containsEntry("check-end", 6L)
+                .containsEntry("find-start", 2L).containsEntry("find-end", 2L);
+    }
+
+    private static final String STRINGS = """
+            public class Main {
+                static String label(String name, int i) {
+                    String label = name + i;
+                    return label;
+                }
+
+                public static void main(String[] args) {
+                    String name = "a name longer than the limit";
+                    int total = 0;
+                    for (int i = 0; i < 200; i = i + 1) {
+                        String label = label(name, i % 3);
+                        total = total + label.length();
+                    }
+                    System.out.println(total);
+                }
+            }
+            """;
+
+    // the node keys and names are written once per chunk, the export gives the json trace back
+    @Test
+    void binaryTraceIsExportedAsTheJsonTrace() throws Exception {
+        TracedProgram program = new TracedProgram(dir, STRINGS);
+        assertThat(program.run("maxStringLength=10")).contains("5800");
+        List<JSONObject> expectedEvents = program.events();
+        List<JSONObject> expectedObjects = program.objectData();
+        Files.delete(program.file(JsonTraceWriter.TRACE_FILE_NAME));
+        Files.delete(program.file(JsonTraceWriter.OBJECT_DATA_FILE_NAME));
+
+        assertThat(program.run("maxStringLength=10", "format=binary")).contains("5800");
+        String binary = Files.readString(program.file(BinaryTraceWriter.TRACE_FILE_NAME), StandardCharsets.ISO_8859_1);
+        assertThat(binary.split("Main\\.java-", -1).length - 1).isLessThan(expectedEvents.size() / 20);
+        TraceExport.main(new String[]{dir.toString()});
+
+        List<JSONObject> events = program.events();
+        assertThat(events).hasSameSizeAs(expectedEvents);
+        for (int i = 0; i < events.size(); ++i)
+            assertThat(events.get(i).similar(expectedEvents.get(i))).as("%s%n%s", events.get(i), expectedEvents.get(i)).isTrue();
+        assertThat(new JSONArray(program.objectData()).similar(new JSONArray(expectedObjects))).isTrue();
+
+        // the name is cut, its length is kept
+        JSONObject name = events.stream().flatMap(event -> event.optJSONArray("assigns", new JSONArray()).toList().stream())
+                .map(write -> new JSONObject((Map<?, ?>) write))
+                .filter(write -> write.getJSONObject("identifier").getString("name").equals("name"))
+                .findFirst().orElseThrow().getJSONObject("value");
+        assertThat(name.getString("value")).isEqualTo("a name lon");
+        assertThat(name.getInt("length")).isEqualTo(28);
+    }
+
+    /*******************************************************
+     **************** helpers ******************
+     *******************************************************/
+
+    // in the order of their sequence numbers, every group ends after the groups it contains
+    static void assertWellNested(List<JSONObject> events) {
+        List<JSONObject> sorted = new ArrayList<>(events);
+        sorted.sort(Comparator.comparingLong(e -> e.getLong("seq")));
+        Deque<Long> open = new ArrayDeque<>();
+        for (JSONObject event : sorted) {
+            if (!event.getString("type").equals("GroupEvent"))
+                continue;
+            if (event.getString("pos").equals("start"))
+                open.push(event.getLong("eventId"));
+            else
+                assertThat(open.poll()).as("end of %s", event).isEqualTo(event.getLong("eventId"));
+        }
+        assertThat(open).isEmpty();
+    }
+
+    // every reference of the events has a snapshot of its object with a version at most its
+    // version, the snapshot the frontend shows for it, returns the number of references
+    static int assertReferencesResolve(List<JSONObject> events, List<JSONObject> objectData) {
+        Map<Long, List<Long>> versions = new HashMap<>();
+        for (JSONObject record : objectData) {
+            // the records of arrays give their reference
+            JSONObject self = record.optJSONObject("self", record);
+            if (self.has("pointer"))
+                versions.computeIfAbsent(self.getLong("pointer"), p -> new ArrayList<>()).add(self.getLong("version"));
+        }
+        List<JSONObject> references = new ArrayList<>();
+        events.forEach(event -> collectReferences(event, references));
+        for (JSONObject ref : references) {
+            List<Long> snapshots = versions.getOrDefault(ref.getLong("pointer"), List.of());
+            assertThat(snapshots).as("snapshots of %s", ref).anyMatch(v -> v <= ref.getLong("version"));
+        }
+        return references.size();
+    }
+
+    // the fields of the last object of the class, its snapshot with its deltas applied
+    static Map<String, Object> lastValues(List<JSONObject> objectData, String className) {
+        Map<Long, List<String>> fields = new HashMap<>();
+        Map<Long, Object[]> objects = new HashMap<>();
+        long last = -1;
+        for (JSONObject record : objectData) {
+            if (record.has("schema")) {
+                if (record.getString("className").equals(className))
+                    fields.put(record.getLong("schema"), record.getJSONArray("fields").toList().stream()
+                            .map(field -> (String) ((Map<?, ?>) field).get("name")).toList());
+            } else if (record.has("class") && fields.containsKey(record.getLong("class"))) {
+                long pointer = record.getLong("pointer");
+                if (record.has("values")) {
+                    JSONArray values = record.getJSONArray("values");
+                    Object[] object = new Object[values.length()];
+                    for (int i = 0; i < object.length; ++i)
+                        object[i] = values.get(i);
+                    objects.put(pointer, object);
+                } else {
+                    JSONArray changes = record.getJSONArray("changes");
+                    for (int i = 0; i < changes.length(); ++i)
+                        objects.get(pointer)[changes.getJSONArray(i).getInt(0)] = changes.getJSONArray(i).get(1);
+                }
+                last = pointer;
+            }
+        }
+        assertThat(objects).as("objects of %s", className).isNotEmpty();
+        List<String> names = fields.values().iterator().next();
+        Object[] object = objects.get(last);
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < names.size(); ++i)
+            values.put(names.get(i), object[i]);
+        return values;
+    }
+
+    private static void collectReferences(Object json, List<JSONObject> references) {
+        if (json instanceof JSONObject object) {
+            String type = object.optString("dataType");
+            if ((type.equals("instanceRef") || type.equals("arrayRef")) && !object.optBoolean("truncated"))
+                references.add(object);
+            object.keySet().forEach(key -> collectReferences(object.get(key), references));
+        } else if (json instanceof JSONArray array) {
+            array.forEach(element -> collectReferences(element, references));
+        }
+    }
+}
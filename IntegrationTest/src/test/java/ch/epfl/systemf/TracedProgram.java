@@ -0,0 +1,118 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.InstrumentationPlugin.SampleJavacPlugin;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// a program compiled with the plugin and run with the logger, in a directory of its own
+// the classes are compiled from the source of Main, the trace is written in the directory
+final class TracedProgram {
+
+    private static final String JAVA_BIN = Path.of(System.getProperty("java.home"), "bin").toString();
+    private static final List<String> JAVAC_OPTIONS = List.of(
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.code=ALL-UNNAMED",
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED",
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.file=ALL-UNNAMED",
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.main=ALL-UNNAMED",
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.model=ALL-UNNAMED",
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.parser=ALL-UNNAMED",
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.processing=ALL-UNNAMED",
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.tree=ALL-UNNAMED",
+            "-J--add-exports=jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED",
+            "-J--add-opens=jdk.compiler/com.sun.tools.javac.code=ALL-UNNAMED",
+            "-J--add-opens=jdk.compiler/com.sun.tools.javac.comp=ALL-UNNAMED");
+
+    private static final String PLUGIN = location(SampleJavacPlugin.class);
+    private static final String LOGGER = location(FileLogger.class) + File.pathSeparator + location(JSONObject.class);
+
+    final Path dir;
+
+    // pluginOptions are given to the plugin, e.g. objectIdField
+    TracedProgram(Path dir, String source, String... pluginOptions) throws IOException, InterruptedException {
+        this.dir = dir;
+        Files.writeString(dir.resolve("Main.java"), source);
+
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(JAVA_BIN, "javac").toString(),
+                "-processorpath", PLUGIN + File.pathSeparator + location(JSONObject.class),
+                "-g",
+                "-Xplugin:" + String.join(" ", "MyPlugin", String.join(" ", pluginOptions)).trim(),
+                "-cp", "." + File.pathSeparator + LOGGER));
+        command.addAll(JAVAC_OPTIONS);
+        command.add("Main.java");
+        String output = execute(command);
+        assertThat(Files.exists(dir.resolve("Main.class"))).as(output).isTrue();
+    }
+
+    // runs Main with the options of the logger, e.g. "format=binary" for -Dprintwizard.format=binary,
+    // an option starting with - is an option of the JVM, returns what it printed
+    String run(String... options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(Path.of(JAVA_BIN, "java").toString()));
+        for (String option : options)
+            command.add(option.startsWith("-") ? option : "-Dprintwizard." + option);
+        command.addAll(List.of("-cp", "." + File.pathSeparator + LOGGER, "Main"));
+        return execute(command);
+    }
+
+    Path file(String name) {
+        return dir.resolve(name);
+    }
+
+    // the segments of a file written with output=mmap, in the order of their manifest
+    List<Path> segments(String fileName) throws IOException {
+        JSONArray segments = new JSONObject(Files.readString(file(fileName + MappedSegmentSink.MANIFEST_SUFFIX)))
+                .getJSONArray("segments");
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < segments.length(); ++i)
+            files.add(file(segments.getJSONObject(i).getString("file")));
+        return files;
+    }
+
+    // the events of eventTrace.json
+    List<JSONObject> events() throws IOException {
+        JSONArray trace = new JSONObject(Files.readString(file(JsonTraceWriter.TRACE_FILE_NAME))).getJSONArray("trace");
+        List<JSONObject> events = new ArrayList<>();
+        for (int i = 0; i < trace.length(); ++i)
+            events.add(trace.getJSONObject(i));
+        return events;
+    }
+
+    // the records of objectData.json, schemas included
+    List<JSONObject> objectData() throws IOException {
+        JSONArray data = new JSONArray(Files.readString(file(JsonTraceWriter.OBJECT_DATA_FILE_NAME)));
+        List<JSONObject> records = new ArrayList<>();
+        for (int i = 0; i < data.length(); ++i)
+            records.add(data.getJSONObject(i));
+        return records;
+    }
+
+    private String execute(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes());
+        assertThat(process.waitFor(2, TimeUnit.MINUTES)).isTrue();
+        assertThat(process.exitValue()).as("%s%n%s", command, output).isZero();
+        return output;
+    }
+
+    private static String location(Class<?> clazz) {
+        try {
+            return Path.of(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.*;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// moves the encoding and the I/O out of the traced threads
+// the traced threads store their events in bounded rings and a background
+// thread drains the rings into the underlying writer
+//
+// there is a small pool of rings (see Stripes) rather than one ring per thread,
+// millions of short-lived virtual threads do not allocate millions of rings
+// a traced thread keeps using the same ring and claims it for each event, so a ring
+// has a single producer at a time and a single consumer, see claim
+// the events of a thread are written in the order it stored them
+//
+// an event is copied into the preallocated arrays of a ring, the traced threads
+// allocate nothing to store it
+//
+// when a ring is full the overflow policy applies to expressions and void calls,
+// group events, calls, returns and object data are always kept, otherwise the
+// trace would not be well nested anymore
+// the number of dropped events is written in the trace, see TraceWriter.dropped
+class AsyncTraceWriter implements TraceWriter {
+
+    private static final long IDLE_PARK_NANOS = 200_000;
+    private static final long BLOCKED_PARK_NANOS = 10_000;
+
+    private final TraceWriter out;
+    private final int capacity;
+    private final TraceConfig.Overflow overflow;
+    private final int sampleRate;
+
+    private final Ring[] rings;
+    private final int mask;
+    private final ThreadLocal<Affinity> affinity;
+    private final LongAdder dropped = new LongAdder();
+    // the drops already written in the trace, used by the writer thread only
+    private long reported = 0;
+
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // set by the writer thread once it will not drain the rings anymore
+    private volatile boolean stopped = false;
+    private volatile Throwable failure = null;
+
+    AsyncTraceWriter(TraceWriter out, int capacity, TraceConfig.Overflow overflow, int sampleRate) {
+        this.out = out;
+        this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.overflow = overflow;
+        this.sampleRate = Math.max(sampleRate, 1);
+
+        rings = new Ring[Stripes.count()];
+        mask = rings.length - 1;
+        for (int i = 0; i < rings.length; ++i)
+            rings[i] = new Ring(this.capacity);
+        affinity = ThreadLocal.withInitial(() -> new Affinity(Stripes.index() & mask));
+
+        writer = new Thread(this::drainLoop, "printwizard-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*******************************************************
+     **************** events ******************
+     *******************************************************/
+
+    // an event is stored in the slot of a ring as its kind, three longs, two ints and its
+    // references, no object is allocated for it, see Ring
+    //   group            : thread, seq, event id, type and start, -, control flow kind
+    //   expression       : thread, seq, -, site, count, result then writes
+    //   call and return  : thread, seq, step id, site, count, result then values
+    //   object data      : -, -, -, -, -, the data
+    // more than INLINE writes or values are copied to an array stored after the result
+    private static final int GROUP = 0;
+    private static final int EXPRESSION = 1;
+    private static final int EXPRESSION_WITHOUT_RETURN = 2;
+    private static final int CALL = 3;
+    private static final int VOID_CALL = 4;
+    private static final int RETURN = 5;
+    private static final int OBJECT_DATA = 6;
+    private static final int OBJECT_DELTA = 7;
+    private static final int ARRAY_DATA = 8;
+    private static final int ARRAY_DELTA = 9;
+
+    private static final int INLINE = 6;
+    private static final Object[] NO_ITEMS = {};
+    private static final GroupEventType[] GROUP_TYPES = GroupEventType.values();
+
+    // used by the writer thread only, the writes or values of the event being written
+    private final Value[] values = new Value[INLINE];
+    private final Write[] writes = new Write[INLINE];
+
+    /*******************************************************
+     **************** producer side ******************
+     *******************************************************/
+
+    @Override
+    public void groupEvent(long thread, long seq, long eventId, GroupEventType type, ControlFlowKind kind, boolean start) {
+        keep(GROUP, thread, seq, eventId, type.ordinal() << 1 | (start ? 1 : 0), 0, kind, NO_ITEMS);
+    }
+
+    @Override
+    public void expression(long thread, long seq, int site, Value result, Write[] assigns, int count) {
+        mayDrop(EXPRESSION, thread, seq, 0, site, count, result, assigns);
+    }
+
+    @Override
+    public void expressionWithoutReturn(long thread, long seq, int site, Write[] assigns, int count) {
+        mayDrop(EXPRESSION_WITHOUT_RETURN, thread, seq, 0, site, count, null, assigns);
+    }
+
+    // the frontend matches a return with its call, so both are always kept
+    @Override
+    public void call(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        keep(CALL, thread, seq, stepId, site, count, null, argValues);
+    }
+
+    @Override
+    public void voidCall(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        mayDrop(VOID_CALL, thread, seq, stepId, site, count, null, argValues);
+    }
+
+    @Override
+    public void callReturn(long thread, long seq, int site, long stepId, Value result) {
+        keep(RETURN, thread, seq, stepId, site, 0, result, NO_ITEMS);
+    }
+
+    // an object is saved only once, dropping it would leave dangling references
+    @Override
+    public void objectData(ObjectData data) {
+        keep(OBJECT_DATA, 0, 0, 0, 0, 0, data, NO_ITEMS);
+    }
+
+    @Override
+    public void objectDelta(ObjectDelta delta) {
+        keep(OBJECT_DELTA, 0, 0, 0, 0, 0, delta, NO_ITEMS);
+    }
+
+    @Override
+    public void arrayData(ArrayData data) {
+        keep(ARRAY_DATA, 0, 0, 0, 0, 0, data, NO_ITEMS);
+    }
+
+    @Override
+    public void arrayDelta(ArrayDelta delta) {
+        keep(ARRAY_DELTA, 0, 0, 0, 0, 0, delta, NO_ITEMS);
+    }
+
+    @Override
+    public void dropped(long count) {
+        out.dropped(count);
+    }
+
+    // the ring of the current thread and the position after its last event in the ring
+    private static final class Affinity {
+        int ring;
+        long written = 0;
+
+        Affinity(int ring) {
+            this.ring = ring;
+        }
+    }
+
+    // the ring of the thread, released once the event is stored
+    // the thread moves to another ring when its ring is used by another thread, only once
+    // its events in the ring are written, the events of different rings are written in
+    // any order
+    // the ring is never held while waiting, virtual threads are never pinned
+    private Ring claim(Affinity a) {
+        while (true) {
+            Ring r = rings[a.ring];
+            if (r.tryClaim())
+                return r;
+            if (r.head() >= a.written) {
+                for (int i = 1; i < rings.length; ++i) {
+                    int index = (a.ring + i) & mask;
+                    if (rings[index].tryClaim()) {
+                        a.ring = index;
+                        a.written = 0;
+                        return rings[index];
+                    }
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private void keep(int kind, long thread, long seq, long id, int site, int count, Object ref, Object[] items) {
+        if (!offer(kind, thread, seq, id, site, count, ref, items))
+            block(kind, thread, seq, id, site, count, ref, items);
+    }
+
+    private boolean offer(int kind, long thread, long seq, long id, int site, int count, Object ref, Object[] items) {
+        Affinity a = affinity.get();
+        Ring r = claim(a);
+        try {
+            return r.offer(kind, thread, seq, id, site, count, ref, items, a);
+        } finally {
+            r.release();
+        }
+    }
+
+    private void mayDrop(int kind, long thread, long seq, long id, int site, int count, Object ref, Object[] items) {
+        switch (overflow) {
+            case BLOCK -> keep(kind, thread, seq, id, site, count, ref, items);
+            case DROP -> {
+                if (!offer(kind, thread, seq, id, site, count, ref, items))
+                    dropped.increment();
+            }
+            case SAMPLE -> {
+                Affinity a = affinity.get();
+                Ring r = claim(a);
+                try {
+                    if (r.sampling && r.size() <= capacity / 2)
+                        r.sampling = false;
+                    if (r.sampling && ++r.sampleCount % sampleRate != 0) {
+                        dropped.increment();
+                        return;
+                    }
+                    if (!r.offer(kind, thread, seq, id, site, count, ref, items, a)) {
+                        r.sampling = true;
+                        dropped.increment();
+                    }
+                } finally {
+                    r.release();
+                }
+            }
+        }
+    }
+
+    private void block(int kind, long thread, long seq, long id, int site, int count, Object ref, Object[] items) {
+        while (!offer(kind, thread, seq, id, site, count, ref, items)) {
+            // nobody will drain the rings anymore
+            if (stopped) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+        }
+    }
+
+    /*******************************************************
+     **************** consumer side ******************
+     *******************************************************/
+
+    private void drainLoop() {
+        try {
+            while (true) {
+                // read before draining, so that the last pass sees every event
+                // published before close
+                boolean last = closed;
+                int drained = drainAll();
+                reportDropped();
+                if (last && drained == 0)
+                    return;
+                if (drained == 0)
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            stopped = true;
+        }
+    }
+
+    private int drainAll() {
+        int drained = 0;
+        for (Ring r : rings)
+            drained += r.drainTo(this);
+        return drained;
+    }
+
+    // the drops are written in the trace, a reader knows where it is incomplete
+    // called by the writer thread, or by close once it is stopped
+    private void reportDropped() {
+        long lost = dropped.sum();
+        if (lost > reported) {
+            out.dropped(lost - reported);
+            reported = lost;
+        }
+    }
+
+    // writes the event stored in the slot of the ring
+    private void write(Ring r, int slot) {
+        long[] longs = r.longs;
+        int[] ints = r.ints;
+        Object[] refs = r.refs;
+        int l = slot * Ring.LONGS;
+        int i = slot * Ring.INTS;
+        int o = slot * Ring.REFS;
+        long thread = longs[l];
+        long seq = longs[l + 1];
+        long id = longs[l + 2];
+        int site = ints[i + 1];
+        int count = ints[i + 2];
+        Object ref = refs[o];
+        switch (ints[i]) {
+            case GROUP -> out.groupEvent(thread, seq, id, GROUP_TYPES[site >> 1], (ControlFlowKind) ref, (site & 1) == 1);
+            case EXPRESSION, EXPRESSION_WITHOUT_RETURN -> {
+                Write[] assigns = count > INLINE ? (Write[]) refs[o + 1] : writes;
+                if (count <= INLINE)
+                    for (int k = 0; k < count; ++k)
+                        writes[k] = (Write) refs[o + 1 + k];
+                if (ints[i] == EXPRESSION)
+                    out.expression(thread, seq, site, (Value) ref, assigns, count);
+                else
+                    out.expressionWithoutReturn(thread, seq, site, assigns, count);
+                Arrays.fill(writes, null);
+            }
+            case CALL, VOID_CALL -> {
+                Value[] args = count > INLINE ? (Value[]) refs[o + 1] : values;
+                if (count <= INLINE)
+                    for (int k = 0; k < count; ++k)
+                        values[k] = (Value) refs[o + 1 + k];
+                if (ints[i] == CALL)
+                    out.call(thread, seq, site, id, args, count);
+                else
+                    out.voidCall(thread, seq, site, id, args, count);
+                Arrays.fill(values, null);
+            }
+            case RETURN -> out.callReturn(thread, seq, site, id, (Value) ref);
+            case OBJECT_DATA -> out.objectData((ObjectData) ref);
+            case OBJECT_DELTA -> out.objectDelta((ObjectDelta) ref);
+            case ARRAY_DATA -> out.arrayData((ArrayData) ref);
+            case ARRAY_DELTA -> out.arrayDelta((ArrayDelta) ref);
+            default -> throw new IllegalStateException("unknown event kind " + ints[i]);
+        }
+        Arrays.fill(refs, o, o + Ring.REFS, null);
+    }
+
+    // the events stored concurrently by other threads can go to either segment, with
+    // epochs no event is stored during a rollover, see Epochs
+    @Override
+    public void rollover() {
+        awaitWritten();
+        out.rollover();
+    }
+
+    @Override
+    public void flush() {
+        awaitWritten();
+        out.flush();
+    }
+
+    // waits until the events stored before the call are written to the underlying writer
+    private void awaitWritten() {
+        long[] tails = new long[rings.length];
+        for (int i = 0; i < rings.length; ++i)
+            tails[i] = rings[i].tail();
+        for (int i = 0; i < rings.length; ++i) {
+            while (rings[i].head() < tails[i] && !stopped) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // the events dropped after the writer thread stopped
+        if (failure == null)
+            reportDropped();
+        out.close();
+
+        if (failure != null)
+            throw new IOException("trace writer thread failed", failure);
+    }
+
+    /*******************************************************
+     **************** ring ******************
+     *******************************************************/
+
+    private static final class Ring {
+        private static final VarHandle HEAD;
+        private static final VarHandle TAIL;
+        private static final VarHandle CLAIMED;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                HEAD = lookup.findVarHandle(Ring.class, "head", long.class);
+                TAIL = lookup.findVarHandle(Ring.class, "tail", long.class);
+                CLAIMED = lookup.findVarHandle(Ring.class, "claimed", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        static final int LONGS = 3;
+        static final int INTS = 3;
+        static final int REFS = 1 + INLINE;
+
+        private final int capacity;
+        private final int mask;
+
+        // the fields of the events, LONGS longs, INTS ints and REFS references per slot,
+        // allocated when the ring is first used, see the events above
+        long[] longs;
+        int[] ints;
+        Object[] refs;
+
+        // next slot to read, written by the consumer only
+        private long head = 0;
+        // next slot to write, written by the producer only
+        private long tail = 0;
+        // set while a producer uses the ring
+        private boolean claimed = false;
+
+        // sampling state, used by the producer only
+        boolean sampling = false;
+        long sampleCount = 0;
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            mask = capacity - 1;
+        }
+
+        boolean tryClaim() {
+            return !(boolean) CLAIMED.getOpaque(this) && CLAIMED.compareAndSet(this, false, true);
+        }
+
+        // publishes the events stored while the ring was claimed to the next producer
+        void release() {
+            CLAIMED.setRelease(this, false);
+        }
+
+        // the arrays are published to the consumer with the tail
+        boolean offer(int kind, long thread, long seq, long id, int site, int count, Object ref, Object[] items,
+                      Affinity producer) {
+            long t = tail;
+            if (t - (long) HEAD.getAcquire(this) == capacity)
+                return false;
+            if (refs == null) {
+                longs = new long[capacity * LONGS];
+                ints = new int[capacity * INTS];
+                refs = new Object[capacity * REFS];
+            }
+            int slot = (int) t & mask;
+            int l = slot * LONGS;
+            longs[l] = thread;
+            longs[l + 1] = seq;
+            longs[l + 2] = id;
+            int i = slot * INTS;
+            ints[i] = kind;
+            ints[i + 1] = site;
+            ints[i + 2] = count;
+            int o = slot * REFS;
+            refs[o] = ref;
+            if (count > INLINE)
+                refs[o + 1] = Arrays.copyOf(items, count);
+            else
+                System.arraycopy(items, 0, refs, o + 1, count);
+            TAIL.setRelease(this, t + 1);
+            producer.written = t + 1;
+            return true;
+        }
+
+        int size() {
+            return (int) (tail() - head());
+        }
+
+        long head() {
+            return (long) HEAD.getAcquire(this);
+        }
+
+        long tail() {
+            return (long) TAIL.getAcquire(this);
+        }
+
+        int drainTo(AsyncTraceWriter writer) {
+            long h = head;
+            long t = (long) TAIL.getAcquire(this);
+            for (long i = h; i < t; ++i) {
+                writer.write(this, (int) i & mask);
+                HEAD.setRelease(this, i + 1);
+            }
+            return (int) (t - h);
+        }
+    }
+}
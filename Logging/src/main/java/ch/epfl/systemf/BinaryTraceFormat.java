@@ -0,0 +1,723 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// compact encoding of the trace, each file is
+//   header : magic "PWBT", format version, stream kind
+//   records : tag byte followed by the record fields, events of the trace
+//             start with the id of their thread and their sequence number
+//   END tag
+// numbers are LEB128 varints (zigzag for signed values), strings are
+// a varint header followed by utf-8 bytes, see Encoder.string
+final class BinaryTraceFormat {
+
+    private BinaryTraceFormat() {
+    }
+
+    static final byte[] MAGIC = {'P', 'W', 'B', 'T'};
+    static final int VERSION = 14;
+
+    /**************
+     ********* stream kinds
+     **************/
+
+    static final int STREAM_TRACE = 0;
+    static final int STREAM_OBJECT_DATA = 1;
+
+    /**************
+     ********* record tags
+     **************/
+
+    static final int END = 0;
+    static final int GROUP_START = 1;
+    static final int GROUP_END = 2;
+    static final int EXPRESSION = 3;
+    static final int EXPRESSION_WITHOUT_RETURN = 4;
+    static final int CALL = 5;
+    static final int VOID_CALL = 6;
+    static final int RETURN = 7;
+    // the schema of the class, then the pointer, the version and the values of the fields
+    // in the order of the schema, the values of primitive fields have no tag
+    static final int OBJECT_DATA = 8;
+    // the type of the elements like the types of a ClassSchema, the length of the array, the
+    // number of saved elements then the elements, see ArrayData
+    // the elements of a primitive array have no tag and are written in bulk, little endian
+    static final int ARRAY_DATA = 9;
+    // like OBJECT_DATA with the base version, then the changed values with their index,
+    // see ObjectDelta
+    static final int OBJECT_DELTA = 10;
+    // written in a chunk before the first record that uses it, see ClassSchema
+    static final int CLASS_SCHEMA = 11;
+    // the array reference, the index then the value of the element, see ArrayDelta
+    static final int ARRAY_DELTA = 12;
+    // the id and the descriptor of a site, written in a chunk before the first event that
+    // uses it, the events then only give the id, see Sites
+    static final int SITE = 13;
+    // the number of events dropped by AsyncTraceWriter, without thread and seq
+    static final int DROPPED = 14;
+
+    /**************
+     ********* control flow kinds
+     **************/
+
+    static final int NO_KIND = 0;
+    static final int DEFAULT_CONTEXT = 1;
+    static final int FUNCTION_CONTEXT = 2;
+
+    /**************
+     ********* value tags
+     **************/
+
+    static final int NULL = 0;
+    static final int INT = 1;
+    static final int LONG = 2;
+    static final int BOOL = 3;
+    static final int STRING = 4;
+    static final int CHAR = 5;
+    static final int BYTE = 6;
+    static final int SHORT = 7;
+    static final int FLOAT = 8;
+    static final int FLOAT_NAN = 9;
+    static final int DOUBLE = 10;
+    static final int DOUBLE_NAN = 11;
+    static final int INSTANCE_REF = 12;
+    static final int ARRAY_REF = 13;
+    // the prefix then the length of the string, see TruncatedString
+    static final int TRUNCATED_STRING = 14;
+    // like INSTANCE_REF and ARRAY_REF, see InstanceReference.truncated
+    static final int TRUNCATED_INSTANCE_REF = 15;
+    static final int TRUNCATED_ARRAY_REF = 16;
+    // the length, the number of saved values then the values, see Sequence
+    static final int SEQUENCE = 17;
+    // the class, the ordinal then the name of the constant, see EnumConstant
+    static final int ENUM_CONSTANT = 18;
+
+    /**************
+     ********* identifier tags
+     **************/
+
+    static final int LOCAL_IDENTIFIER = 0;
+    static final int STATIC_IDENTIFIER = 1;
+    static final int FIELD_IDENTIFIER = 2;
+
+    /**************
+     ********* string kinds
+     **************/
+
+    // the two low bits of the header of a string, the other bits are the byte length of an
+    // inline string or the id of a string of the table
+    static final int INLINE_STRING = 0;
+    static final int TABLE_STRING = 1;
+    // the id, then the string inline, the next uses in the chunk are TABLE_STRING
+    static final int DECLARED_STRING = 2;
+
+    /*******************************************************
+     **************** string table ******************
+     *******************************************************/
+
+    // the ids of the strings written often : class and package names, field and variable
+    // names, the node keys of the sites and the short string values
+    // a string gets an id the first time it is written, until the table holds capacity
+    // strings, the later strings are always written in full
+    static final class StringTable {
+        // a longer string is rarely written twice, a message built by the program
+        static final int MAX_LENGTH = 256;
+
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int capacity;
+
+        StringTable(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // -1 if the string has no id
+        int id(String s) {
+            Integer id = ids.get(s);
+            if (id != null)
+                return id;
+            // two threads can both take the last places, the table is then a bit larger
+            if (s.length() > MAX_LENGTH || size.get() >= capacity)
+                return -1;
+            return ids.computeIfAbsent(s, k -> size.getAndIncrement());
+        }
+    }
+
+    /*******************************************************
+     **************** Encoder ******************
+     *******************************************************/
+
+    static byte[] header(int streamKind) {
+        byte[] header = Arrays.copyOf(MAGIC, MAGIC.length + 2);
+        header[MAGIC.length] = VERSION;
+        header[MAGIC.length + 1] = (byte) streamKind;
+        return header;
+    }
+
+    static final byte[] TRAILER = {END};
+
+    // records are encoded in the buffer of the current thread, see ChunkedOutput
+    static final class Encoder extends ChunkedOutput.Buffer {
+
+        private final StringTable strings;
+
+        Encoder(StringTable strings) {
+            this.strings = strings;
+        }
+
+        /********
+         **** primitives
+         ********/
+
+        void varLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                u8((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            u8((int) v);
+        }
+
+        void zigZag(long v) {
+            varLong((v << 1) ^ (v >> 63));
+        }
+
+        void fixed32(int v) {
+            u8(v);
+            u8(v >>> 8);
+            u8(v >>> 16);
+            u8(v >>> 24);
+        }
+
+        void fixed64(long v) {
+            fixed32((int) v);
+            fixed32((int) (v >>> 32));
+        }
+
+        // a string of the table is declared the first time a chunk uses it, the next times
+        // only its id is written, a chunk can still be read alone
+        void string(String s) {
+            int id = strings.id(s);
+            if (id < 0) {
+                inline(s);
+            } else if (declareString(id)) {
+                varLong((long) id << 2 | DECLARED_STRING);
+                inline(s);
+            } else {
+                varLong((long) id << 2 | TABLE_STRING);
+            }
+        }
+
+        private void inline(String s) {
+            int length = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; ++i)
+                ascii = s.charAt(i) < 0x80;
+
+            if (ascii) {
+                varLong((long) length << 2 | INLINE_STRING);
+                for (int i = 0; i < length; ++i)
+                    u8(s.charAt(i));
+            } else {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                varLong((long) utf8.length << 2 | INLINE_STRING);
+                bytes(utf8, 0, utf8.length);
+            }
+        }
+
+        /********
+         **** data
+         ********/
+
+        void value(Value value) {
+            switch (value) {
+                case Literal lit -> literal(lit);
+                case TruncatedString s -> {
+                    u8(TRUNCATED_STRING);
+                    string(s.prefix());
+                    varLong(s.length());
+                }
+                case Sequence sequence -> {
+                    u8(SEQUENCE);
+                    varLong(sequence.length());
+                    varLong(sequence.values().length);
+                    for (Value v : sequence.values())
+                        value(v);
+                }
+                case EnumConstant constant -> {
+                    u8(ENUM_CONSTANT);
+                    string(constant.clazz().packageName());
+                    string(constant.clazz().className());
+                    varLong(constant.ordinal());
+                    string(constant.name());
+                }
+                case InstanceReference ref -> {
+                    u8(ref.truncated() ? TRUNCATED_INSTANCE_REF : INSTANCE_REF);
+                    instanceRef(ref);
+                }
+                case ArrayReference ref -> {
+                    u8(ref.truncated() ? TRUNCATED_ARRAY_REF : ARRAY_REF);
+                    arrayRef(ref);
+                }
+            }
+        }
+
+        private void literal(Literal lit) {
+            Object v = lit.value();
+            switch (lit.type()) {
+                case "null" -> u8(NULL);
+                case "int" -> {
+                    u8(INT);
+                    zigZag((Integer) v);
+                }
+                case "long" -> {
+                    u8(LONG);
+                    zigZag((Long) v);
+                }
+                case "bool" -> {
+                    u8(BOOL);
+                    u8((Boolean) v ? 1 : 0);
+                }
+                case "string" -> {
+                    u8(STRING);
+                    string((String) v);
+                }
+                case "char" -> {
+                    u8(CHAR);
+                    varLong((Character) v);
+                }
+                case "byte" -> {
+                    u8(BYTE);
+                    zigZag((Byte) v);
+                }
+                case "short" -> {
+                    u8(SHORT);
+                    zigZag((Short) v);
+                }
+                case "float" -> {
+                    if (v instanceof Float f) {
+                        u8(FLOAT);
+                        fixed32(Float.floatToRawIntBits(f));
+                    } else {
+                        u8(FLOAT_NAN);
+                    }
+                }
+                case "double" -> {
+                    if (v instanceof Double d) {
+                        u8(DOUBLE);
+                        fixed64(Double.doubleToRawLongBits(d));
+                    } else {
+                        u8(DOUBLE_NAN);
+                    }
+                }
+                default -> throw new IllegalArgumentException("unknown literal type " + lit.type());
+            }
+        }
+
+        // the value of a primitive field, its type is given by the schema
+        private void primitive(Literal lit) {
+            Object v = lit.value();
+            switch (lit.type()) {
+                case "int" -> zigZag((Integer) v);
+                case "long" -> zigZag((Long) v);
+                case "bool" -> u8((Boolean) v ? 1 : 0);
+                case "char" -> varLong((Character) v);
+                case "byte" -> zigZag((Byte) v);
+                case "short" -> zigZag((Short) v);
+                // NaN and the infinities
+                case "float" -> fixed32(Float.floatToRawIntBits(v instanceof Float f ? f : Float.NaN));
+                case "double" -> fixed64(Double.doubleToRawLongBits(v instanceof Double d ? d : Double.NaN));
+                default -> throw new IllegalArgumentException("unknown primitive type " + lit.type());
+            }
+        }
+
+        void field(ClassSchema schema, int index, Value value) {
+            if (schema.primitive(index))
+                primitive((Literal) value);
+            else
+                value(value);
+        }
+
+        void schema(ClassSchema schema) {
+            varLong(schema.id());
+            string(schema.clazz().packageName());
+            string(schema.clazz().className());
+            varLong(schema.names().size());
+            for (int i = 0; i < schema.names().size(); ++i) {
+                string(schema.names().get(i));
+                string(schema.types().get(i));
+            }
+            varLong(schema.inaccessible().size());
+            for (String name : schema.inaccessible())
+                string(name);
+        }
+
+        // the view of the next length * size bytes of the buffer
+        private ByteBuffer bulk(int length, int size) {
+            // reserve can replace the buffer
+            int offset = reserve(length * size);
+            return ByteBuffer.wrap(buffer, offset, length * size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void array(ArrayData data) {
+            string(data.type());
+            varLong(data.length());
+            switch (data.values()) {
+                case int[] a -> {
+                    varLong(a.length);
+                    bulk(a.length, Integer.BYTES).asIntBuffer().put(a);
+                }
+                case long[] a -> {
+                    varLong(a.length);
+                    bulk(a.length, Long.BYTES).asLongBuffer().put(a);
+                }
+                case double[] a -> {
+                    varLong(a.length);
+                    bulk(a.length, Double.BYTES).asDoubleBuffer().put(a);
+                }
+                case float[] a -> {
+                    varLong(a.length);
+                    bulk(a.length, Float.BYTES).asFloatBuffer().put(a);
+                }
+                case char[] a -> {
+                    varLong(a.length);
+                    bulk(a.length, Character.BYTES).asCharBuffer().put(a);
+                }
+                case short[] a -> {
+                    varLong(a.length);
+                    bulk(a.length, Short.BYTES).asShortBuffer().put(a);
+                }
+                case byte[] a -> {
+                    varLong(a.length);
+                    bytes(a, 0, a.length);
+                }
+                case boolean[] a -> {
+                    varLong(a.length);
+                    for (boolean b : a)
+                        u8(b ? 1 : 0);
+                }
+                case Value[] a -> {
+                    varLong(a.length);
+                    for (Value v : a)
+                        value(v);
+                }
+                default -> throw new IllegalArgumentException();
+            }
+        }
+
+        void instanceRef(InstanceReference ref) {
+            string(ref.clazz().packageName());
+            string(ref.clazz().className());
+            varLong(ref.pointer());
+            varLong(ref.timeStamp());
+        }
+
+        void arrayRef(ArrayReference ref) {
+            string(ref.elemType());
+            varLong(ref.pointer());
+            varLong(ref.timeStamp());
+        }
+
+        void identifier(Identifier identifier) {
+            switch (identifier) {
+                case LocalIdentifier local -> {
+                    u8(LOCAL_IDENTIFIER);
+                    string(local.parentNodeId());
+                    string(local.name());
+                }
+                case StaticIdentifier stat -> {
+                    u8(STATIC_IDENTIFIER);
+                    string(stat.clazz().packageName());
+                    string(stat.clazz().className());
+                    string(stat.name());
+                }
+                case FieldIdentifier field -> {
+                    u8(FIELD_IDENTIFIER);
+                    instanceRef(field.owner());
+                    string(field.name());
+                }
+            }
+        }
+
+        void write(Write write) {
+            identifier(write.identifier());
+            value(write.value());
+        }
+    }
+
+    /*******************************************************
+     **************** Decoder ******************
+     *******************************************************/
+
+    static final class Decoder implements Closeable {
+        private final InputStream in;
+        final int streamKind;
+        // the strings of the table declared so far, by id
+        private final Map<Integer, String> strings = new HashMap<>();
+
+        Decoder(InputStream in) throws IOException {
+            this.in = in;
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("not a binary trace file");
+            int version = u8();
+            if (version != VERSION)
+                throw new IOException("unsupported binary trace version " + version);
+            streamKind = u8();
+        }
+
+        /********
+         **** primitives
+         ********/
+
+        int u8() throws IOException {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            return b;
+        }
+
+        long varLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return result;
+            }
+            throw new IOException("malformed varint");
+        }
+
+        long zigZag() throws IOException {
+            long v = varLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        int fixed32() throws IOException {
+            return u8() | (u8() << 8) | (u8() << 16) | (u8() << 24);
+        }
+
+        long fixed64() throws IOException {
+            return (fixed32() & 0xFFFFFFFFL) | ((long) fixed32() << 32);
+        }
+
+        String string() throws IOException {
+            long header = varLong();
+            int value = (int) (header >>> 2);
+            switch ((int) header & 3) {
+                case INLINE_STRING -> {
+                    byte[] utf8 = in.readNBytes(value);
+                    if (utf8.length != value)
+                        throw new EOFException();
+                    return new String(utf8, StandardCharsets.UTF_8);
+                }
+                case TABLE_STRING -> {
+                    String s = strings.get(value);
+                    if (s == null)
+                        throw new IOException("unknown string " + value);
+                    return s;
+                }
+                case DECLARED_STRING -> {
+                    String s = string();
+                    strings.put(value, s);
+                    return s;
+                }
+                default -> throw new IOException("unknown string kind " + (header & 3));
+            }
+        }
+
+        /********
+         **** data
+         ********/
+
+        Value value() throws IOException {
+            int tag = u8();
+            return switch (tag) {
+                case NULL -> new Literal("null", "");
+                case INT -> new Literal("int", (int) zigZag());
+                case LONG -> new Literal("long", zigZag());
+                case BOOL -> new Literal("bool", u8() != 0);
+                case STRING -> new Literal("string", string());
+                case CHAR -> new Literal("char", (char) varLong());
+                case BYTE -> new Literal("byte", (byte) zigZag());
+                case SHORT -> new Literal("short", (short) zigZag());
+                case FLOAT -> new Literal("float", Float.intBitsToFloat(fixed32()));
+                case FLOAT_NAN -> new Literal("float", "NaN");
+                case DOUBLE -> new Literal("double", Double.longBitsToDouble(fixed64()));
+                case DOUBLE_NAN -> new Literal("double", "NaN");
+                case INSTANCE_REF -> instanceRef();
+                case ARRAY_REF -> arrayRef();
+                case TRUNCATED_STRING -> new TruncatedString(string(), (int) varLong());
+                case TRUNCATED_INSTANCE_REF -> {
+                    InstanceReference ref = instanceRef();
+                    yield new InstanceReference(ref.clazz(), ref.pointer(), ref.timeStamp(), true);
+                }
+                case TRUNCATED_ARRAY_REF -> {
+                    ArrayReference ref = arrayRef();
+                    yield new ArrayReference(ref.pointer(), ref.timeStamp(), ref.elemType(), true);
+                }
+                case SEQUENCE -> {
+                    int length = (int) varLong();
+                    Value[] values = new Value[(int) varLong()];
+                    for (int i = 0; i < values.length; ++i)
+                        values[i] = value();
+                    yield new Sequence(values, length);
+                }
+                case ENUM_CONSTANT -> new EnumConstant(new ClassIdentifier(string(), string()), (int) varLong(), string());
+                default -> throw new IOException("unknown value tag " + tag);
+            };
+        }
+
+        private Literal primitive(String type) throws IOException {
+            return switch (type) {
+                case "int" -> new Literal("int", (int) zigZag());
+                case "long" -> new Literal("long", zigZag());
+                case "bool" -> new Literal("bool", u8() != 0);
+                case "char" -> new Literal("char", (char) varLong());
+                case "byte" -> new Literal("byte", (byte) zigZag());
+                case "short" -> new Literal("short", (short) zigZag());
+                case "float" -> {
+                    float f = Float.intBitsToFloat(fixed32());
+                    yield Float.isFinite(f) ? new Literal("float", f) : new Literal("float", "NaN");
+                }
+                case "double" -> {
+                    double d = Double.longBitsToDouble(fixed64());
+                    yield Double.isFinite(d) ? new Literal("double", d) : new Literal("double", "NaN");
+                }
+                default -> throw new IOException("unknown primitive type " + type);
+            };
+        }
+
+        Value field(ClassSchema schema, int index) throws IOException {
+            return schema.primitive(index) ? primitive(schema.types().get(index)) : value();
+        }
+
+        ClassSchema schema() throws IOException {
+            int id = (int) varLong();
+            ClassIdentifier clazz = new ClassIdentifier(string(), string());
+            int size = (int) varLong();
+            List<String> names = new ArrayList<>(size);
+            List<String> types = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) {
+                names.add(string());
+                types.add(string());
+            }
+            int skipped = (int) varLong();
+            List<String> inaccessible = new ArrayList<>(skipped);
+            for (int i = 0; i < skipped; ++i)
+                inaccessible.add(string());
+            return new ClassSchema(id, clazz, names, types, inaccessible);
+        }
+
+        private ByteBuffer bulk(int length, int size) throws IOException {
+            byte[] bytes = in.readNBytes(length * size);
+            if (bytes.length != length * size)
+                throw new EOFException();
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        ArrayData array(ArrayReference self) throws IOException {
+            String type = string();
+            int length = (int) varLong();
+            return new ArrayData(self, values(type), length);
+        }
+
+        // the saved elements of an ArrayData
+        private Object values(String type) throws IOException {
+            int length = (int) varLong();
+            switch (type) {
+                case "int" -> {
+                    int[] a = new int[length];
+                    bulk(length, Integer.BYTES).asIntBuffer().get(a);
+                    return a;
+                }
+                case "long" -> {
+                    long[] a = new long[length];
+                    bulk(length, Long.BYTES).asLongBuffer().get(a);
+                    return a;
+                }
+                case "double" -> {
+                    double[] a = new double[length];
+                    bulk(length, Double.BYTES).asDoubleBuffer().get(a);
+                    return a;
+                }
+                case "float" -> {
+                    float[] a = new float[length];
+                    bulk(length, Float.BYTES).asFloatBuffer().get(a);
+                    return a;
+                }
+                case "char" -> {
+                    char[] a = new char[length];
+                    bulk(length, Character.BYTES).asCharBuffer().get(a);
+                    return a;
+                }
+                case "short" -> {
+                    short[] a = new short[length];
+                    bulk(length, Short.BYTES).asShortBuffer().get(a);
+                    return a;
+                }
+                case "byte" -> {
+                    return bulk(length, Byte.BYTES).array();
+                }
+                case "bool" -> {
+                    boolean[] a = new boolean[length];
+                    for (int i = 0; i < length; ++i)
+                        a[i] = u8() != 0;
+                    return a;
+                }
+                case ClassSchema.OBJECT -> {
+                    Value[] a = new Value[length];
+                    for (int i = 0; i < length; ++i)
+                        a[i] = value();
+                    return a;
+                }
+                default -> throw new IOException("unknown array type " + type);
+            }
+        }
+
+        InstanceReference instanceRef() throws IOException {
+            String packageName = string();
+            String className = string();
+            return new InstanceReference(
+                    new ClassIdentifier(packageName, className),
+                    varLong(),
+                    varLong());
+        }
+
+        ArrayReference arrayRef() throws IOException {
+            String elemType = string();
+            return new ArrayReference(varLong(), varLong(), elemType);
+        }
+
+        Identifier identifier() throws IOException {
+            int tag = u8();
+            return switch (tag) {
+                case LOCAL_IDENTIFIER -> new LocalIdentifier(string(), string());
+                case STATIC_IDENTIFIER -> new StaticIdentifier(new ClassIdentifier(string(), string()), string());
+                case FIELD_IDENTIFIER -> new FieldIdentifier(instanceRef(), string());
+                default -> throw new IOException("unknown identifier tag " + tag);
+            };
+        }
+
+        Write write() throws IOException {
+            Identifier identifier = identifier();
+            return new Write(identifier, value());
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
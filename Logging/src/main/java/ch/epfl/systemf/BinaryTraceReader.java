@@ -0,0 +1,170 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.*;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ch.epfl.systemf.BinaryTraceFormat.*;
+
+// decodes a file written by BinaryTraceWriter and sends every record to another writer
+class BinaryTraceReader {
+
+    private final Decoder in;
+    // the schemas read so far, by id
+    private final Map<Integer, ClassSchema> schemas = new HashMap<>();
+    // the sites read so far, the ids of the file to the ids registered in Sites when they
+    // are declared the first time
+    private final Map<Integer, Integer> sites = new HashMap<>();
+
+    BinaryTraceReader(String fileName) throws IOException {
+        in = new Decoder(new BufferedInputStream(open(fileName), 1 << 16));
+    }
+
+    // a file compressed by DeflateSink is inflated while it is read
+    private static InputStream open(String fileName) throws IOException {
+        return fileName.endsWith(DeflateSink.SUFFIX) ? DeflateSink.inflate(fileName) : new FileInputStream(fileName);
+    }
+
+    // returns false if the file was truncated, every complete record before
+    // the truncation has been replayed
+    boolean replay(TraceWriter out) throws IOException {
+        try (in) {
+            while (true) {
+                int tag = in.u8();
+                if (tag == END)
+                    return true;
+                record(tag, out);
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private void record(int tag, TraceWriter out) throws IOException {
+        long thread = 0;
+        long seq = 0;
+        if (tag != OBJECT_DATA && tag != OBJECT_DELTA && tag != ARRAY_DATA && tag != ARRAY_DELTA && tag != CLASS_SCHEMA
+                && tag != SITE && tag != DROPPED) {
+            thread = in.varLong();
+            seq = in.varLong();
+        }
+
+        switch (tag) {
+            case GROUP_START, GROUP_END -> {
+                long eventId = in.varLong();
+                GroupEventType type = GroupEventType.values()[in.u8()];
+                int kind = in.u8();
+                ControlFlowKind flowKind = switch (kind) {
+                    case NO_KIND -> null;
+                    case DEFAULT_CONTEXT -> new ControlFlowKind.Default();
+                    case FUNCTION_CONTEXT -> new ControlFlowKind.FunctionContext(in.string());
+                    default -> throw new IOException("unknown control flow kind " + kind);
+                };
+                out.groupEvent(thread, seq, eventId, type, flowKind, tag == GROUP_START);
+            }
+            case EXPRESSION -> {
+                int site = site();
+                Value result = in.value();
+                Write[] writes = writes();
+                out.expression(thread, seq, site, result, writes, writes.length);
+            }
+            case EXPRESSION_WITHOUT_RETURN -> {
+                int site = site();
+                Write[] writes = writes();
+                out.expressionWithoutReturn(thread, seq, site, writes, writes.length);
+            }
+            case CALL, VOID_CALL -> {
+                int site = site();
+                long stepId = in.varLong();
+                Value[] args = values();
+                if (tag == CALL)
+                    out.call(thread, seq, site, stepId, args, args.length);
+                else
+                    out.voidCall(thread, seq, site, stepId, args, args.length);
+            }
+            case RETURN -> {
+                int site = site();
+                long stepId = in.varLong();
+                out.callReturn(thread, seq, site, stepId, in.value());
+            }
+            case SITE -> {
+                int id = (int) in.varLong();
+                String descriptor = in.string();
+                sites.computeIfAbsent(id, i -> Sites.register(new String[]{descriptor})[0]);
+            }
+            case CLASS_SCHEMA -> {
+                ClassSchema schema = in.schema();
+                schemas.put(schema.id(), schema);
+            }
+            case OBJECT_DATA -> {
+                ClassSchema schema = schema();
+                InstanceReference self = new InstanceReference(schema.clazz(), in.varLong(), in.varLong());
+                List<Value> values = new ArrayList<>(schema.names().size());
+                for (int i = 0; i < schema.names().size(); ++i)
+                    values.add(in.field(schema, i));
+                out.objectData(new ObjectData(self, schema, values));
+            }
+            case OBJECT_DELTA -> {
+                ClassSchema schema = schema();
+                InstanceReference self = new InstanceReference(schema.clazz(), in.varLong(), in.varLong());
+                long base = in.varLong();
+                int size = (int) in.varLong();
+                List<ObjectDelta.Change> changes = new ArrayList<>(size);
+                for (int i = 0; i < size; ++i) {
+                    int index = (int) in.varLong();
+                    changes.add(new ObjectDelta.Change(index, in.field(schema, index)));
+                }
+                out.objectDelta(new ObjectDelta(self, schema, base, changes));
+            }
+            case ARRAY_DATA -> {
+                ArrayReference self = in.arrayRef();
+                out.arrayData(in.array(self));
+            }
+            case ARRAY_DELTA -> {
+                ArrayReference self = in.arrayRef();
+                int index = (int) in.varLong();
+                out.arrayDelta(new ArrayDelta(self, index, in.value()));
+            }
+            case DROPPED -> out.dropped(in.varLong());
+            default -> throw new IOException("unknown record tag " + tag);
+        }
+    }
+
+    private int site() throws IOException {
+        int id = (int) in.varLong();
+        Integer site = sites.get(id);
+        if (site == null)
+            throw new IOException("unknown site " + id);
+        return site;
+    }
+
+    private ClassSchema schema() throws IOException {
+        int id = (int) in.varLong();
+        ClassSchema schema = schemas.get(id);
+        if (schema == null)
+            throw new IOException("unknown class schema " + id);
+        return schema;
+    }
+
+    private Write[] writes() throws IOException {
+        Write[] writes = new Write[(int) in.varLong()];
+        for (int i = 0; i < writes.length; ++i)
+            writes[i] = in.write();
+        return writes;
+    }
+
+    private Value[] values() throws IOException {
+        Value[] values = new Value[(int) in.varLong()];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = in.value();
+        return values;
+    }
+}
@@ -0,0 +1,210 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.ChunkSink.Framing;
+import ch.epfl.systemf.FileLogger.*;
+
+import java.io.IOException;
+
+import static ch.epfl.systemf.BinaryTraceFormat.*;
+
+// writes the events with BinaryTraceFormat, events are encoded directly
+// from their fields, no intermediate json object is built
+class BinaryTraceWriter implements TraceWriter {
+
+    static final String TRACE_FILE_NAME = "eventTrace.bin";
+    static final String OBJECT_DATA_FILE_NAME = "objectData.bin";
+
+    private final ChunkedOutput<Encoder> trace;
+    private final ChunkedOutput<Encoder> objectData;
+
+    BinaryTraceWriter(String traceFileName, String objectDataFileName) throws IOException {
+        // shared by the two files, a chunk declares the strings it uses
+        StringTable strings = new StringTable(TraceConfig.stringTableSize);
+        trace = new ChunkedOutput<>(
+                ChunkSink.open(traceFileName, new Framing(header(STREAM_TRACE), TRAILER, 0)),
+                Encoder[]::new, () -> new Encoder(strings));
+        objectData = new ChunkedOutput<>(
+                ChunkSink.open(objectDataFileName, new Framing(header(STREAM_OBJECT_DATA), TRAILER, 0)),
+                Encoder[]::new, () -> new Encoder(strings));
+    }
+
+    /*******************************************************
+     **************** trace ******************
+     *******************************************************/
+
+    private Encoder begin(int tag, long thread, long seq) {
+        return begin(trace.beginRecord(), tag, thread, seq);
+    }
+
+    private static Encoder begin(Encoder out, int tag, long thread, long seq) {
+        out.id(seq);
+        out.u8(tag);
+        out.varLong(thread);
+        out.varLong(seq);
+        return out;
+    }
+
+    @Override
+    public void groupEvent(long thread, long seq, long eventId, GroupEventType type, ControlFlowKind kind, boolean start) {
+        Encoder out = begin(start ? GROUP_START : GROUP_END, thread, seq);
+        out.varLong(eventId);
+        out.u8(type.ordinal());
+        switch (kind) {
+            case null -> out.u8(NO_KIND);
+            case ControlFlowKind.Default def -> out.u8(DEFAULT_CONTEXT);
+            case ControlFlowKind.FunctionContext fun -> {
+                out.u8(FUNCTION_CONTEXT);
+                out.string(fun.fullName());
+            }
+        }
+        trace.endRecord(out);
+    }
+
+    // the site is written before the event if the chunk does not have it yet
+    private Encoder begin(int tag, long thread, long seq, int site) {
+        Encoder out = trace.beginRecord();
+        if (out.declareSite(site)) {
+            out.u8(SITE);
+            out.varLong(site);
+            out.string(Sites.descriptor(site));
+        }
+        begin(out, tag, thread, seq);
+        out.varLong(site);
+        return out;
+    }
+
+    @Override
+    public void expression(long thread, long seq, int site, Value result, Write[] assigns, int count) {
+        Encoder out = begin(EXPRESSION, thread, seq, site);
+        out.value(result);
+        writes(out, assigns, count);
+        trace.endRecord(out);
+    }
+
+    @Override
+    public void expressionWithoutReturn(long thread, long seq, int site, Write[] assigns, int count) {
+        Encoder out = begin(EXPRESSION_WITHOUT_RETURN, thread, seq, site);
+        writes(out, assigns, count);
+        trace.endRecord(out);
+    }
+
+    @Override
+    public void call(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        call(CALL, thread, seq, site, stepId, argValues, count);
+    }
+
+    @Override
+    public void voidCall(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        call(VOID_CALL, thread, seq, site, stepId, argValues, count);
+    }
+
+    private void call(int tag, long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        Encoder out = begin(tag, thread, seq, site);
+        out.varLong(stepId);
+        out.varLong(count);
+        for (int i = 0; i < count; ++i)
+            out.value(argValues[i]);
+        trace.endRecord(out);
+    }
+
+    @Override
+    public void callReturn(long thread, long seq, int site, long stepId, Value result) {
+        Encoder out = begin(RETURN, thread, seq, site);
+        out.varLong(stepId);
+        out.value(result);
+        trace.endRecord(out);
+    }
+
+    @Override
+    public void dropped(long count) {
+        Encoder out = trace.beginRecord();
+        out.id(Ids.fresh());
+        out.u8(DROPPED);
+        out.varLong(count);
+        trace.endRecord(out);
+    }
+
+    private static void writes(Encoder out, Write[] assigns, int count) {
+        out.varLong(count);
+        for (int i = 0; i < count; ++i)
+            out.write(assigns[i]);
+    }
+
+    /*******************************************************
+     **************** object data ******************
+     *******************************************************/
+
+    // the schema is written before the object if the chunk does not have it yet
+    private Encoder object(int tag, ClassSchema schema, InstanceReference self) {
+        Encoder out = objectData.beginRecord();
+        out.id(self.timeStamp());
+        if (out.declare(schema.id())) {
+            out.u8(CLASS_SCHEMA);
+            out.schema(schema);
+        }
+        out.u8(tag);
+        out.varLong(schema.id());
+        out.varLong(self.pointer());
+        out.varLong(self.timeStamp());
+        return out;
+    }
+
+    @Override
+    public void objectData(ObjectData data) {
+        Encoder out = object(OBJECT_DATA, data.schema(), data.self());
+        for (int i = 0; i < data.values().size(); ++i)
+            out.field(data.schema(), i, data.values().get(i));
+        objectData.endRecord(out);
+    }
+
+    @Override
+    public void objectDelta(ObjectDelta delta) {
+        Encoder out = object(OBJECT_DELTA, delta.schema(), delta.self());
+        out.varLong(delta.base());
+        out.varLong(delta.changes().size());
+        for (ObjectDelta.Change change : delta.changes()) {
+            out.varLong(change.index());
+            out.field(delta.schema(), change.index(), change.value());
+        }
+        objectData.endRecord(out);
+    }
+
+    @Override
+    public void arrayData(ArrayData data) {
+        Encoder out = objectData.beginRecord();
+        out.id(data.ref().timeStamp());
+        out.u8(ARRAY_DATA);
+        out.arrayRef(data.ref());
+        out.array(data);
+        objectData.endRecord(out);
+    }
+
+    @Override
+    public void arrayDelta(ArrayDelta delta) {
+        Encoder out = objectData.beginRecord();
+        out.id(delta.ref().timeStamp());
+        out.u8(ARRAY_DELTA);
+        out.arrayRef(delta.ref());
+        out.varLong(delta.index());
+        out.value(delta.value());
+        objectData.endRecord(out);
+    }
+
+    @Override
+    public void rollover() {
+        trace.rollover();
+        objectData.rollover();
+    }
+
+    @Override
+    public void flush() {
+        trace.flush();
+        objectData.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        trace.close();
+        objectData.close();
+    }
+}
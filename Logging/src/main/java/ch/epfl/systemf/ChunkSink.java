@@ -0,0 +1,81 @@
+package ch.epfl.systemf;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// where the chunks of a ChunkedOutput are written, calls are never concurrent
+// a chunk holds complete records, firstId and lastId are the smallest and
+// largest ids (sequence numbers or versions) of its records
+interface ChunkSink {
+
+    void write(byte[] chunk, int off, int len, long firstId, long lastId) throws IOException;
+
+    // closes the current segment and starts a new one, the segments of a single
+    // file cannot be cut
+    void rollover() throws IOException;
+
+    // forces the chunks written so far to the disk
+    void sync() throws IOException;
+
+    void close() throws IOException;
+
+    // what surrounds the records of a file
+    // the first leadingSkip bytes of the first record of a file are skipped, used for separators
+    record Framing(byte[] header, byte[] trailer, int leadingSkip) {
+    }
+
+    // one file per output or segments, see TraceConfig.output
+    // epochs are always written in segments, one per epoch
+    static ChunkSink open(String fileName, Framing framing) throws IOException {
+        if (TraceConfig.compress) {
+            if (TraceConfig.epochSize > 0 || TraceConfig.output != TraceConfig.Output.STREAM)
+                throw new IllegalArgumentException("printwizard.compress is only supported with printwizard.output=stream and without epochs");
+            return new DeflateSink(fileName, framing, TraceConfig.blockSize << 10, TraceConfig.compressionLevel);
+        }
+        long segmentSize = (long) TraceConfig.segmentSize << 20;
+        if (TraceConfig.epochSize > 0)
+            return new MappedSegmentSink(fileName, framing, segmentSize, MappedSegmentSink.Retention.EPOCHS);
+        return switch (TraceConfig.output) {
+            case STREAM -> new FileSink(fileName, framing);
+            case MMAP -> new MappedSegmentSink(fileName, framing, segmentSize, null);
+        };
+    }
+
+    /*******************************************************
+     **************** single file ******************
+     *******************************************************/
+
+    final class FileSink implements ChunkSink {
+        private final FileOutputStream out;
+        private final Framing framing;
+        private boolean empty = true;
+
+        FileSink(String fileName, Framing framing) throws IOException {
+            this.out = new FileOutputStream(fileName);
+            this.framing = framing;
+            out.write(framing.header());
+        }
+
+        @Override
+        public void write(byte[] chunk, int off, int len, long firstId, long lastId) throws IOException {
+            int skip = empty ? framing.leadingSkip() : 0;
+            empty = false;
+            out.write(chunk, off + skip, len - skip);
+        }
+
+        @Override
+        public void rollover() {
+        }
+
+        @Override
+        public void sync() throws IOException {
+            out.getFD().sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write(framing.trailer());
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package ch.epfl.systemf;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+// a file written by several threads
+// records are encoded in a buffer and a buffer is appended to the file in one
+// piece once it is large enough, records of different buffers are never mixed
+// and the shared file is only locked once per chunk, see ChunkSink for where
+// the chunks are written
+//
+// the buffers are not owned by a thread, there can be millions of (virtual)
+// threads, instead a thread claims one buffer of a small pool for each record,
+// there are enough buffers for every processor so claiming rarely fails
+// the records of one thread can be in different buffers, they are ordered
+// by their sequence number, see TraceWriter
+final class ChunkedOutput<B extends ChunkedOutput.Buffer> {
+
+    static final int CHUNK_SIZE = 1 << 16;
+
+    private final ChunkSink sink;
+    private final ReentrantLock fileLock = new ReentrantLock();
+    // guarded by fileLock
+    private boolean closed = false;
+
+    private final B[] buffers;
+    private final int mask;
+
+    ChunkedOutput(ChunkSink sink, IntFunction<B[]> newArray, Supplier<B> newBuffer) {
+        this.sink = sink;
+        buffers = newArray.apply(Stripes.count());
+        mask = buffers.length - 1;
+        for (int i = 0; i < buffers.length; ++i)
+            buffers[i] = newBuffer.get();
+    }
+
+    /*******************************************************
+     **************** records ******************
+     *******************************************************/
+
+    // a free buffer, locked until endRecord
+    // ReentrantLock and not synchronized, a virtual thread waiting for a
+    // buffer does not pin its carrier
+    B beginRecord() {
+        int start = Stripes.index();
+        for (int i = 0; i < buffers.length; ++i) {
+            B b = buffers[(start + i) & mask];
+            if (b.lock.tryLock())
+                return b;
+        }
+        B b = buffers[start & mask];
+        b.lock.lock();
+        return b;
+    }
+
+    void endRecord(B b) {
+        try {
+            if (b.position >= CHUNK_SIZE)
+                flush(b);
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    private void flush(Buffer b) {
+        if (b.position == 0)
+            return;
+        fileLock.lock();
+        try {
+            sink.write(b.buffer, 0, b.position, b.firstId, b.lastId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            fileLock.unlock();
+        }
+        b.position = 0;
+        b.firstId = Long.MAX_VALUE;
+        b.lastId = Long.MIN_VALUE;
+        b.schemas.clear();
+        b.sites.clear();
+        b.strings.clear();
+    }
+
+    private void flushAll() {
+        for (B b : buffers) {
+            b.lock.lock();
+            try {
+                flush(b);
+            } finally {
+                b.lock.unlock();
+            }
+        }
+    }
+
+    // the records ended before are written to the current segment, the next ones
+    // to a new segment, records ended concurrently can be in either, with epochs no
+    // record is written during a rollover, see Epochs
+    void rollover() {
+        flushAll();
+        fileLock.lock();
+        try {
+            sink.rollover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    // the records ended before are written to the sink and forced to the disk
+    // calls after close are ignored, a periodic flush can race with the shutdown
+    void flush() {
+        flushAll();
+        fileLock.lock();
+        try {
+            if (!closed)
+                sink.sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    // flushes every buffer then closes the sink
+    void close() throws IOException {
+        flushAll();
+        fileLock.lock();
+        try {
+            closed = true;
+            sink.close();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /*******************************************************
+     **************** buffer ******************
+     *******************************************************/
+
+    // growable, a record is always written entirely in one chunk
+    // allocated on first use, most buffers stay empty for small programs
+    static class Buffer {
+        private static final int INITIAL_SIZE = CHUNK_SIZE + (CHUNK_SIZE >> 2);
+
+        final ReentrantLock lock = new ReentrantLock();
+        byte[] buffer = new byte[0];
+        int position = 0;
+        // range of the ids of the records in the buffer
+        long firstId = Long.MAX_VALUE;
+        long lastId = Long.MIN_VALUE;
+        // the class schemas written in the chunk, a chunk does not depend on the chunks
+        // before it, a segment can be read alone, see FileLogger.ClassSchema
+        private final BitSet schemas = new BitSet();
+        // the sites written in the chunk, see Sites
+        private final BitSet sites = new BitSet();
+        // the strings of the table declared in the chunk, see BinaryTraceFormat.StringTable
+        private final BitSet strings = new BitSet();
+
+        // true if the schema is not written in the chunk yet, it must then be written before
+        // the record that uses it
+        final boolean declare(int schema) {
+            if (schemas.get(schema))
+                return false;
+            schemas.set(schema);
+            return true;
+        }
+
+        // like declare for the site of an event
+        final boolean declareSite(int site) {
+            if (sites.get(site))
+                return false;
+            sites.set(site);
+            return true;
+        }
+
+        // like declare for a string of the table
+        final boolean declareString(int string) {
+            if (strings.get(string))
+                return false;
+            strings.set(string);
+            return true;
+        }
+
+        // the sequence number or version of the record being written
+        final void id(long id) {
+            firstId = Math.min(firstId, id);
+            lastId = Math.max(lastId, id);
+        }
+
+        final void u8(int b) {
+            if (position == buffer.length)
+                grow(1);
+            buffer[position++] = (byte) b;
+        }
+
+        final void bytes(byte[] b, int off, int len) {
+            if (len > buffer.length - position)
+                grow(len);
+            System.arraycopy(b, off, buffer, position, len);
+            position += len;
+        }
+
+        // the offset of len bytes added at the end of the buffer, written by the caller
+        final int reserve(int len) {
+            if (len > buffer.length - position)
+                grow(len);
+            int offset = position;
+            position += len;
+            return offset;
+        }
+
+        private void grow(int needed) {
+            int size = Math.max(Math.max(buffer.length * 2, INITIAL_SIZE), position + needed);
+            buffer = Arrays.copyOf(buffer, size);
+        }
+    }
+}
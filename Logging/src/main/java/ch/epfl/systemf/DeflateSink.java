@@ -0,0 +1,212 @@
+package ch.epfl.systemf;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// compresses a file in blocks, eventTrace.json is written as eventTrace.json.deflate
+// the chunks are gathered until blockSize bytes then compressed as an independent raw
+// deflate stream, a block can be inflated without the previous ones and always holds
+// complete records, the header is at the start of the first block and the trailer
+// at the end of the last one
+//
+// the index <file name>.deflate.index.json lists the blocks in order with their offset
+// in the compressed file, their offset in the uncompressed file and the smallest and
+// largest id of their records, so a reader can seek to a block, see inflate for
+// reading the whole file
+final class DeflateSink implements ChunkSink {
+
+    static final String SUFFIX = ".deflate";
+    static final String INDEX_SUFFIX = SUFFIX + ".index.json";
+
+    private record Block(long offset, long length, long uncompressedOffset, long uncompressedLength,
+                         long firstId, long lastId) {
+        JSONObject json() {
+            return new JSONObject(Map.of(
+                    "offset", offset,
+                    "length", length,
+                    "uncompressedOffset", uncompressedOffset,
+                    "uncompressedLength", uncompressedLength,
+                    "firstId", firstId,
+                    "lastId", lastId));
+        }
+    }
+
+    private final Path file;
+    private final Path index;
+    private final FileOutputStream out;
+    private final Framing framing;
+    private final int blockSize;
+    private final Deflater deflater;
+
+    private final List<Block> blocks = new ArrayList<>();
+    private long offset = 0;
+    private long uncompressedOffset = 0;
+
+    // the block being gathered
+    private byte[] block;
+    private int position = 0;
+    private boolean empty = true;
+    private long firstId = Long.MAX_VALUE;
+    private long lastId = Long.MIN_VALUE;
+    private final byte[] compressed = new byte[1 << 16];
+
+    DeflateSink(String fileName, Framing framing, int blockSize, int level) throws IOException {
+        this.file = Path.of(fileName + SUFFIX).toAbsolutePath();
+        this.index = Path.of(fileName + INDEX_SUFFIX).toAbsolutePath();
+        this.out = new FileOutputStream(file.toFile());
+        this.framing = framing;
+        this.blockSize = blockSize;
+        this.deflater = new Deflater(level, true);
+        block = new byte[blockSize + ChunkedOutput.CHUNK_SIZE];
+        append(framing.header(), 0, framing.header().length);
+    }
+
+    /*******************************************************
+     **************** chunks ******************
+     *******************************************************/
+
+    @Override
+    public void write(byte[] chunk, int off, int len, long firstId, long lastId) throws IOException {
+        int skip = empty ? framing.leadingSkip() : 0;
+        empty = false;
+        append(chunk, off + skip, len - skip);
+        this.firstId = Math.min(this.firstId, firstId);
+        this.lastId = Math.max(this.lastId, lastId);
+        if (position >= blockSize)
+            compressBlock();
+    }
+
+    private void append(byte[] bytes, int off, int len) {
+        if (len > block.length - position)
+            block = Arrays.copyOf(block, position + len);
+        System.arraycopy(bytes, off, block, position, len);
+        position += len;
+    }
+
+    private void compressBlock() throws IOException {
+        deflater.reset();
+        deflater.setInput(block, 0, position);
+        deflater.finish();
+        long length = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(compressed);
+            out.write(compressed, 0, n);
+            length += n;
+        }
+
+        boolean noRecord = firstId > lastId;
+        blocks.add(new Block(offset, length, uncompressedOffset, position,
+                noRecord ? -1 : firstId, noRecord ? -1 : lastId));
+        offset += length;
+        uncompressedOffset += position;
+        position = 0;
+        firstId = Long.MAX_VALUE;
+        lastId = Long.MIN_VALUE;
+    }
+
+    @Override
+    public void rollover() {
+    }
+
+    // the block gathered so far is compressed, a smaller block compresses less well
+    @Override
+    public void sync() throws IOException {
+        if (position > 0)
+            compressBlock();
+        out.getFD().sync();
+        writeIndex();
+    }
+
+    @Override
+    public void close() throws IOException {
+        append(framing.trailer(), 0, framing.trailer().length);
+        compressBlock();
+        out.close();
+        deflater.end();
+        writeIndex();
+    }
+
+    private void writeIndex() throws IOException {
+        JSONObject json = new JSONObject()
+                .put("file", file.getFileName().toString())
+                .put("uncompressedLength", uncompressedOffset)
+                .put("blocks", new JSONArray(blocks.stream().map(Block::json).toList()));
+
+        Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+        Files.writeString(tmp, json.toString());
+        Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*******************************************************
+     **************** reading ******************
+     *******************************************************/
+
+    // the uncompressed content of a file written by a DeflateSink, the blocks are
+    // inflated one after the other, the index is not needed
+    // a file cut during a block ends with the part of the block that could be inflated
+    static InputStream inflate(String compressedFileName) throws IOException {
+        return new InputStream() {
+            private final InputStream in = new BufferedInputStream(new FileInputStream(compressedFileName), 1 << 16);
+            private final Inflater inflater = new Inflater(true);
+            private final byte[] input = new byte[1 << 16];
+            // end of the bytes given to the inflater in input
+            private int inputEnd = 0;
+            private final byte[] one = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                try {
+                    while (true) {
+                        int n = inflater.inflate(b, off, len);
+                        if (n > 0)
+                            return n;
+                        if (inflater.finished()) {
+                            // the next block starts with the input left by this one
+                            int remaining = inflater.getRemaining();
+                            inflater.reset();
+                            inflater.setInput(input, inputEnd - remaining, remaining);
+                        }
+                        if (inflater.needsInput()) {
+                            int read = in.read(input);
+                            if (read < 0)
+                                return -1;
+                            inflater.setInput(input, 0, read);
+                            inputEnd = read;
+                        }
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException(compressedFileName + " is corrupted", e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                inflater.end();
+                in.close();
+            }
+        };
+    }
+}
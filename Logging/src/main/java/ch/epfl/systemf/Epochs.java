@@ -0,0 +1,273 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.*;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// with TraceConfig.epochSize the trace is cut in epochs of about epochSize ids,
+// by the thread whose sequence number crosses the limit
+// each epoch is written in its own segments and the objects are saved again on
+// their first read in the epoch, so an epoch can be read without the previous ones
+// and the oldest epochs can be deleted, see MappedSegmentSink.Retention
+//
+// an epoch is self-contained only if what FileLogger decides from the epoch (an object is
+// already saved in the epoch, a delta is written against a snapshot of the epoch) is written
+// in the segments of that epoch, the decisions and the records they write are made in a
+// section, the read side of a lock, and a new epoch only starts when no thread is in a
+// section, see enter and reached
+// a section never runs the traced program, so a thread waiting for the cut never holds
+// what a thread in a section waits for
+//
+// a reference is taken in a section but logged by an event later, other events can be
+// logged in between (computing the other values of a call), the epoch can change before
+// the event is written, the last references of each thread are remembered with their
+// object and an event saves again the objects of its references of a previous epoch, in
+// its own epoch and with the version of the reference, see Writer
+// a reference evicted from the last ones is not saved again, an event rarely has more
+// than RECENT references taken before it
+//
+// only used with epochs, the sections and the references cost nothing otherwise
+final class Epochs {
+
+    static final boolean ENABLED = TraceConfig.epochSize > 0;
+
+    static final int RECENT = 64;
+
+    private static volatile long next = ENABLED ? TraceConfig.epochSize : Long.MAX_VALUE;
+
+    // the objects are saved on their first read in each epoch, see ObjectIds.markRead
+    private static volatile int current = 1;
+
+    // ReentrantReadWriteLock and not synchronized, see ChunkedOutput.beginRecord
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // the depth of the sections of the thread, a nested section (an object saved while
+    // saving another one) does not take the lock again, and its last references
+    private static final class Section {
+        int depth = 0;
+        final Value[] refs = new Value[RECENT];
+        final Object[] objects = new Object[RECENT];
+        final int[] epochs = new int[RECENT];
+        int next = 0;
+        // the number of last references taken in the epoch streakEpoch, once every
+        // reference is of the current epoch there is nothing to save again
+        int streak = 0;
+        int streakEpoch = 0;
+    }
+
+    private static final ThreadLocal<Section> sections = ThreadLocal.withInitial(Section::new);
+
+    private Epochs() {
+    }
+
+    // stable in a section
+    static int current() {
+        return current;
+    }
+
+    static void enter() {
+        if (!ENABLED)
+            return;
+        Section section = sections.get();
+        if (section.depth++ == 0)
+            lock.readLock().lock();
+    }
+
+    static void exit() {
+        if (!ENABLED)
+            return;
+        Section section = sections.get();
+        if (--section.depth == 0)
+            lock.readLock().unlock();
+    }
+
+    // seq was just allocated outside a section, the records written before are in the
+    // previous epoch and the ones written after in the new one
+    static void reached(long seq, TraceWriter writer) {
+        if (seq < next)
+            return;
+        // a section never logs events, but a cut from a section would wait for itself
+        if (lock.getReadHoldCount() > 0)
+            return;
+        lock.writeLock().lock();
+        try {
+            if (seq < next)
+                return;
+            writer.rollover();
+            current += 1;
+            next = seq + TraceConfig.epochSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ref was taken in the section for obj, not for the snapshot of another object
+    static void taken(Value ref, Object obj) {
+        if (!ENABLED)
+            return;
+        Section section = sections.get();
+        if (section.depth != 1)
+            return;
+        int i = section.next;
+        section.refs[i] = ref;
+        section.objects[i] = obj;
+        int epoch = current;
+        section.epochs[i] = epoch;
+        section.next = (i + 1) % RECENT;
+        if (section.streakEpoch == epoch) {
+            section.streak = Math.min(section.streak + 1, RECENT);
+        } else {
+            section.streakEpoch = epoch;
+            section.streak = 1;
+        }
+    }
+
+    // in a section, saves again the object of ref if ref was taken in a previous epoch
+    private static void resave(Value value) {
+        if (!(value instanceof InstanceReference) && !(value instanceof ArrayReference))
+            return;
+        Section section = sections.get();
+        if (section.streak == RECENT && section.streakEpoch == current)
+            return;
+        for (int i = 0; i < RECENT; ++i) {
+            if (section.refs[i] == value) {
+                if (section.epochs[i] != current) {
+                    section.epochs[i] = current;
+                    FileLogger.resave(value, section.objects[i]);
+                }
+                return;
+            }
+        }
+    }
+
+    private static void resave(Write write) {
+        if (write.identifier() instanceof FieldIdentifier field)
+            resave(field.owner());
+        resave(write.value());
+    }
+
+    /*******************************************************
+     **************** writer ******************
+     *******************************************************/
+
+    // writes each event in a section, after saving again the objects of its references
+    // taken in a previous epoch, the object data is written by the sections of FileLogger
+    static final class Writer implements TraceWriter {
+        private final TraceWriter out;
+
+        Writer(TraceWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        public void groupEvent(long thread, long seq, long eventId, GroupEventType type, ControlFlowKind kind, boolean start) {
+            enter();
+            try {
+                out.groupEvent(thread, seq, eventId, type, kind, start);
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void expression(long thread, long seq, int site, Value result, Write[] assigns, int count) {
+            enter();
+            try {
+                resave(result);
+                for (int i = 0; i < count; ++i)
+                    resave(assigns[i]);
+                out.expression(thread, seq, site, result, assigns, count);
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void expressionWithoutReturn(long thread, long seq, int site, Write[] assigns, int count) {
+            enter();
+            try {
+                for (int i = 0; i < count; ++i)
+                    resave(assigns[i]);
+                out.expressionWithoutReturn(thread, seq, site, assigns, count);
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void call(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+            enter();
+            try {
+                for (int i = 0; i < count; ++i)
+                    resave(argValues[i]);
+                out.call(thread, seq, site, stepId, argValues, count);
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void voidCall(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+            enter();
+            try {
+                for (int i = 0; i < count; ++i)
+                    resave(argValues[i]);
+                out.voidCall(thread, seq, site, stepId, argValues, count);
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void callReturn(long thread, long seq, int site, long stepId, Value result) {
+            enter();
+            try {
+                resave(result);
+                out.callReturn(thread, seq, site, stepId, result);
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void dropped(long count) {
+            out.dropped(count);
+        }
+
+        @Override
+        public void objectData(ObjectData data) {
+            out.objectData(data);
+        }
+
+        @Override
+        public void objectDelta(ObjectDelta delta) {
+            out.objectDelta(delta);
+        }
+
+        @Override
+        public void arrayData(ArrayData data) {
+            out.arrayData(data);
+        }
+
+        @Override
+        public void arrayDelta(ArrayDelta delta) {
+            out.arrayDelta(delta);
+        }
+
+        @Override
+        public void rollover() {
+            out.rollover();
+        }
+
+        @Override
+        public void flush() {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -3,12 +3,12 @@ package ch.epfl.systemf;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.json.JSONWriter;
 
 import java.io.*;
 import java.lang.reflect.Array;
 import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileLogger {
 
@@ -29,24 +29,48 @@ public class FileLogger {
      **** api
      ********/
 
-    public static DefaultControlFlow controlFlow() {
-        return new DefaultControlFlow();
+    // a group event is opened by an enter method and closed by exit with the token returned
+    // by enter, the token is the id of the event, the open events of a thread are in its
+    // ThreadState, no object is built for an event
+
+    public static long enterControlFlow() {
+        return enter(GroupEventType.ControlFlow, ControlFlowKind.DEFAULT);
+    }
+
+    public static long enterFunction(int site) {
+        return enter(GroupEventType.ControlFlow, ControlFlowKind.function(site));
     }
 
-    public static FunctionContext functionFlow(String fullName) {
-        return new FunctionContext(fullName);
+    public static long enterStatement() {
+        return enter(GroupEventType.Statement, null);
     }
 
-    public static TryCatch tryCatch() {
-        return new TryCatch();
+    public static long enterSubStatement() {
+        return enter(GroupEventType.SubStatement, null);
     }
 
-    public static Statment statment(String info) {
-        return new Statment(info);
+    // a function is closed with the events still open in it, by a return nested in a loop
+    // or a statement, any other event must be the last one opened
+    public static int exit(long token) {
+        ThreadState state = threadState.get();
+        int index = state.indexOf(token);
+        if (index < 0 || index < state.size() - 1 && !(state.kind(index) instanceof ControlFlowKind.FunctionContext))
+            throw new IllegalStateException();
+        exitUpTo(state, index);
+        dropIfEmpty(state);
+        return 0;
     }
 
-    public static SubStatment subStatment(String info) {
-        return new SubStatment(info);
+    // closes the event of token and the events opened after it, the events left open by an
+    // exception caught by a catch, see TreeInstrumenter.visitTry
+    public static int exitUpTo(long token) {
+        ThreadState state = threadState.get();
+        int index = state.indexOf(token);
+        if (index < 0)
+            throw new IllegalStateException();
+        exitUpTo(state, index);
+        dropIfEmpty(state);
+        return 0;
     }
 
     /********
@@ -65,257 +89,214 @@ public class FileLogger {
         }
     }
 
-    private final static Stack<GroupEvent> eventStack = new Stack<>();
-
-    private static long nextId() {
-        return eventCounter++;
-    }
-
-    private static long eventCounter = 0;
-
-
-    public sealed interface GroupEvent {
-        long eventId();
-
-        GroupEventType type();
-
-        static void enter(GroupEvent event) {
-            eventStack.push(event);
-            traceWriter.value(eventRep(event, "start"));
-        }
-
-        static JSONObject eventRep(GroupEvent event, String pos) {
-            JSONObject base = new JSONObject(Map.of(
-                    "type", "GroupEvent",
-                    "pos", pos,
-                    "eventId", event.eventId(),
-                    "eventType", event.type().repr
-            ));
-
-            switch (event) {
-                case ControlFlow flow:
-                    return switch (flow.kind()) {
-                        case ControlFlowKind.Default def -> {
-                            base.put("kind", new JSONObject(Map.of("type", "DefaultContext")));
-                            yield base;
-                        }
-                        case ControlFlowKind.FunctionContext fun -> {
-                            base.put("kind", new JSONObject(Map.of(
-                                    "type", "FunctionContext",
-                                    "functionName", fun.fullName)));
-                            yield base;
-                        }
-                    };
-                default:
-                    return base;
+    // each thread has its own stack of group events
+    // the state of a thread only exists while it has open events, it is created
+    // on the first enter and dropped on the last exit, so that millions of
+    // short-lived virtual threads do not keep millions of states
+    // the states with open events are kept to close them at shutdown, see exitAll
+    private static final class ThreadState {
+        final Thread thread = Thread.currentThread();
+        final long threadId = thread.threadId();
+        // the id, the type and the kind of each open event, the kind of a statement is null
+        private long[] ids = new long[8];
+        private GroupEventType[] types = new GroupEventType[8];
+        private ControlFlowKind[] kinds = new ControlFlowKind[8];
+        private int size = 0;
+
+        void push(long id, GroupEventType type, ControlFlowKind kind) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                types = Arrays.copyOf(types, size * 2);
+                kinds = Arrays.copyOf(kinds, size * 2);
             }
+            ids[size] = id;
+            types[size] = type;
+            kinds[size] = kind;
+            size += 1;
         }
 
-        static void exitUpTo(GroupEvent event) {
-            while (!eventStack.peek().equals(event)) {
-                exit(eventStack.peek());
-            }
-            exit(event);
+        void pop() {
+            size -= 1;
+            kinds[size] = null;
         }
 
-        static void exitAll() {
-            while (!eventStack.empty()) {
-                exit(eventStack.peek());
+        // the index of the open event id, the last opened is the most likely, -1 if it is not open
+        int indexOf(long id) {
+            for (int i = size - 1; i >= 0; --i) {
+                if (ids[i] == id)
+                    return i;
             }
+            return -1;
         }
 
-        static void exit(GroupEvent event) {
-            //To handle return with complex control flow
-            //TODO make it better
-            if (event instanceof FunctionContext && !event.equals(eventStack.peek())) {
-                exitUpTo(event);
-                return;
-            }
-
-            traceWriter.value(eventRep(event, "end"));
-            GroupEvent top = eventStack.pop();
-            if (!top.equals(event))
-                throw new IllegalStateException();
+        long id(int index) {
+            return ids[index];
         }
 
-        default int enter() {
-            GroupEvent.enter(this);
-            return 0;
+        GroupEventType type(int index) {
+            return types[index];
         }
 
-        default int exit() {
-            GroupEvent.exit(this);
-            return 0;
+        ControlFlowKind kind(int index) {
+            return kinds[index];
         }
-    }
-
-    /********
-     ****  Control Flow
-     ********/
-
 
-    public sealed interface ControlFlow extends GroupEvent {
-        ControlFlowKind kind();
-
-        @Override
-        default GroupEventType type() {
-            return GroupEventType.ControlFlow;
-        }
-    }
-
-    public sealed interface ControlFlowKind {
-        record Default() implements ControlFlowKind {
+        int size() {
+            return size;
         }
 
-        record FunctionContext(String fullName) implements ControlFlowKind {
+        boolean isEmpty() {
+            return size == 0;
         }
     }
 
-    public final static class DefaultControlFlow implements ControlFlow {
-        private final long eventId = nextId();
+    private static final Set<ThreadState> threadStates = ConcurrentHashMap.newKeySet();
 
-        @Override
-        public long eventId() {
-            return eventId;
-        }
+    private static final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
 
-        @Override
-        public ControlFlowKind kind() {
-            return new ControlFlowKind.Default();
-        }
+    // event ids and sequence numbers share the same ids, see Ids
+    private static long nextId() {
+        return Ids.next();
     }
 
-    public final static class FunctionContext implements ControlFlow {
-        private final long eventId = nextId();
-        private final String fullFunctionName;
-
-        public FunctionContext(String fullFunctionName) {
-            this.fullFunctionName = fullFunctionName;
-        }
-
-
-        @Override
-        public long eventId() {
-            return eventId;
-        }
-
-        @Override
-        public ControlFlowKind kind() {
-            return new ControlFlowKind.FunctionContext(fullFunctionName);
-        }
+    // order of the events of a thread, may start a new epoch, see Epochs
+    private static long nextSeq() {
+        long seq = Ids.next();
+        Epochs.reached(seq, traceWriter);
+        return seq;
     }
 
-    /********
-     ****  Try catch
-     ********/
-
+    private static long currentThread() {
+        return Thread.currentThread().threadId();
+    }
 
-    public static final class TryCatch {
-        private final ControlFlow tryFlow = new DefaultControlFlow();
-        private final ControlFlow catchFlow = new DefaultControlFlow();
 
+    private static long enter(GroupEventType type, ControlFlowKind kind) {
+        ThreadState state = threadState.get();
+        if (state.isEmpty())
+            threadStates.add(state);
+        long id = nextId();
+        state.push(id, type, kind);
+        groupEvent(state, state.size() - 1, true);
+        return id;
+    }
 
-        public int enterTry() {
-            GroupEvent.enter(tryFlow);
-            return 0;
-        }
+    private static void groupEvent(ThreadState state, int index, boolean start) {
+        // at shutdown the events of other threads are closed after all their other events
+        long seq = state.threadId == currentThread() ? nextSeq() : Ids.fresh();
+        traceWriter.groupEvent(state.threadId, seq, state.id(index), state.type(index), state.kind(index), start);
+    }
 
-        public int exitTry() {
-            GroupEvent.exit(tryFlow);
-            return 0;
+    private static void exitUpTo(ThreadState state, int index) {
+        while (state.size() > index) {
+            groupEvent(state, state.size() - 1, false);
+            state.pop();
         }
+        if (state.isEmpty())
+            threadStates.remove(state);
+    }
 
-        public int enterCatch() {
-            GroupEvent.exitUpTo(TryCatch.this.tryFlow);
-            GroupEvent.enter(catchFlow);
-            return 0;
+    // called at shutdown, closes the events left open by the threads that have terminated (an
+    // uncaught exception), isAlive makes their last writes to their state visible
+    // a thread still running can push and pop concurrently, its events are left open, the
+    // frontend closes them, see balanceEvents
+    private static void exitAll() {
+        for (ThreadState state : threadStates) {
+            if (!state.thread.isAlive())
+                exitUpTo(state, 0);
         }
+    }
 
-        public int exitCatch() {
-            GroupEvent.exit(catchFlow);
-            return 0;
-        }
+    // only for the state of the current thread
+    private static void dropIfEmpty(ThreadState state) {
+        if (state.isEmpty())
+            threadState.remove();
     }
 
     /********
-     ****  Statment
+     ****  Control Flow
      ********/
 
-    public static final class Statment implements GroupEvent {
-        private final long eventId;
-        private String info;
+    // the kinds are shared, the kind of a function is built once per site
+    public sealed interface ControlFlowKind {
+        ControlFlowKind DEFAULT = new Default();
 
-        private Statment(String info) {
-            eventId = nextId();
-            this.info = info;
+        static ControlFlowKind function(int site) {
+            return Sites.cached(site, FunctionContext::new);
         }
 
-
-        @Override
-        public long eventId() {
-            return eventId;
+        record Default() implements ControlFlowKind {
         }
 
-        @Override
-        public GroupEventType type() {
-            return GroupEventType.Statement;
+        record FunctionContext(String fullName) implements ControlFlowKind {
         }
     }
 
+    /**************
+     ********* execution step
+     **************/
+
     /********
-     ****  SubStatment
+     **** api
      ********/
 
-    public static final class SubStatment implements GroupEvent {
-        private final long eventId;
-        private String info;
+    // the node keys, function names and local variable names of a class, called once by its
+    // static initializer, the returned ids are given instead of the strings, see Sites
+    public static int[] registerSites(String[] sites) {
+        return Sites.register(sites);
+    }
 
-        private SubStatment(String info) {
-            this.info = info;
-            eventId = nextId();
-        }
+    // the ids of the sites of an enum, registered on first use, called once at the entry of
+    // each of its methods, see Sites.of
+    public static int[] classSites(Class<?> clazz) {
+        return Sites.of(clazz);
+    }
 
-        @Override
-        public long eventId() {
-            return eventId;
-        }
+    // the plugin calls the overloads without array for an expression with no or one
+    // assignment, see Logger.logSimpleExpression
 
-        @Override
-        public GroupEventType type() {
-            return GroupEventType.SubStatement;
-        }
+    public static int logSimpleExpression(int site, Value result, Write[] assigns) {
+        traceWriter.expression(currentThread(), nextSeq(), site, result, assigns, assigns.length);
+        return 0;
     }
 
-    /**************
-     ********* execution step
-     **************/
+    public static int logSimpleExpression(int site, Value result) {
+        traceWriter.expression(currentThread(), nextSeq(), site, result, NO_WRITES, 0);
+        return 0;
+    }
 
-    /********
-     **** api
-     ********/
+    public static int logSimpleExpression(int site, Value result, Write assign) {
+        Write[] writes = arguments.get().writes;
+        writes[0] = assign;
+        traceWriter.expression(currentThread(), nextSeq(), site, result, writes, 1);
+        writes[0] = null;
+        return 0;
+    }
 
-    public static int logSimpleExpression(String nodeKey, Value result, Write[] assigns) {
-        traceWriter.value(new Expression(nodeKey, result, List.of(assigns)).json());
+    public static int logSimpleExpression(int site, Write[] assigns) {
+        traceWriter.expressionWithoutReturn(currentThread(), nextSeq(), site, assigns, assigns.length);
         return 0;
     }
 
-    public static int logSimpleExpression(String nodeKey, Write[] assigns) {
-        traceWriter.value(new JSONObject(Map.of(
-                "type", ExecutionStep.ExecutionStep,
-                "kind", "expressionWithoutReturn",
-                "nodeKey", nodeKey,
-                "assigns", new JSONArray(Arrays.stream(assigns).map(Write::json).toList())
-        )));
+    public static int logSimpleExpression(int site) {
+        traceWriter.expressionWithoutReturn(currentThread(), nextSeq(), site, NO_WRITES, 0);
         return 0;
     }
 
-    public static Call call(String nodeKey) {
+    public static int logSimpleExpression(int site, Write assign) {
+        Write[] writes = arguments.get().writes;
+        writes[0] = assign;
+        traceWriter.expressionWithoutReturn(currentThread(), nextSeq(), site, writes, 1);
+        writes[0] = null;
+        return 0;
+    }
 
-        return new Call(nodeKey, nextId());
+    public static Call call(int site) {
+        return new Call(site, nextId());
     }
 
-    public static VoidCall voidCall(String nodeKey) {
-        return new VoidCall(nodeKey, 0);
+    public static VoidCall voidCall(int site) {
+        return new VoidCall(site, 0);
     }
 
     /********
@@ -326,96 +307,133 @@ public class FileLogger {
         String ExecutionStep = "ExecutionStep";
     }
 
-    public record Expression(String nodeKey, Value result, List<Write> assigns) implements ExecutionStep {
-        JSONObject json() {
-            return new JSONObject(Map.of(
-                    "type", ExecutionStep,
-                    "kind", "expression",
-                    "result", result.json(),
-                    "nodeKey", nodeKey,
-                    "assigns", new JSONArray(assigns.stream().map(Write::json).toList())
-            ));
-        }
+    // the most arguments of a call given without array, see Logger.MAX_ARITY in the plugin
+    private static final int MAX_ARITY = 6;
+
+    private static final Value[] NO_VALUES = {};
+    private static final Write[] NO_WRITES = {};
+
+    // the values of a call and the write of an expression are given to the trace writer in
+    // the buffers of the thread instead of a new list, the writer only reads them during
+    // the call, see TraceWriter
+    // the buffers are cleared after the call, they do not keep the values alive
+    private static final class Arguments {
+        final Value[] values = new Value[MAX_ARITY];
+        final Write[] writes = new Write[1];
     }
 
-    public static final class Call implements ExecutionStep {
-        private final long id;
-        private final String nodeKey;
+    private static final ThreadLocal<Arguments> arguments = ThreadLocal.withInitial(Arguments::new);
 
-        private Call(String nodeKey, long id) {
+    // the logCall overloads of Call and VoidCall, the plugin calls the overloads without
+    // array for up to MAX_ARITY arguments
+    public abstract static sealed class CallStep implements ExecutionStep {
+        final int site;
+        final long id;
+
+        private CallStep(int site, long id) {
+            this.site = site;
             this.id = id;
-            this.nodeKey = nodeKey;
         }
 
         public int logCall(Value[] argValues) {
-            traceWriter.value(new JSONObject(Map.of(
-                    "type", ExecutionStep,
-                    "kind", "logCall",
-                    "nodeKey", nodeKey,
-                    "stepId", id,
-                    "argsValues", new JSONArray(
-                            Arrays.stream(argValues).map(JsonSerializable::json).toList())
-            )));
+            write(argValues, argValues.length);
             return 0;
         }
 
-        public int logReturn(Value result) {
-            traceWriter.value(new JSONObject(Map.of(
-                    "type", ExecutionStep,
-                    "kind", "logReturn",
-                    "nodeKey", nodeKey,
-                    "stepId", id,
-                    "result", result.json()
-            )));
+        public int logCall() {
+            write(NO_VALUES, 0);
             return 0;
         }
-    }
 
-    public static final class VoidCall implements ExecutionStep {
-        private final long id;
-        private final String nodeKey;
+        public int logCall(Value a0) {
+            Value[] args = arguments.get().values;
+            args[0] = a0;
+            return logArguments(args, 1);
+        }
 
-        private VoidCall(String nodeKey, long id) {
-            this.id = id;
-            this.nodeKey = nodeKey;
+        public int logCall(Value a0, Value a1) {
+            Value[] args = arguments.get().values;
+            args[0] = a0;
+            args[1] = a1;
+            return logArguments(args, 2);
         }
 
-        public int logCall(Value[] argValues) {
-            traceWriter.value(new JSONObject(Map.of(
-                    "type", ExecutionStep,
-                    "kind", "logVoidCall",
-                    "nodeKey", nodeKey,
-                    "stepId", id,
-                    "argsValues", new JSONArray(
-                            Arrays.stream(argValues).map(JsonSerializable::json).toList())
-            )));
-            return 0;
+        public int logCall(Value a0, Value a1, Value a2) {
+            Value[] args = arguments.get().values;
+            args[0] = a0;
+            args[1] = a1;
+            args[2] = a2;
+            return logArguments(args, 3);
         }
 
-        public int logReturn() {
-            throw new UnsupportedOperationException();
+        public int logCall(Value a0, Value a1, Value a2, Value a3) {
+            Value[] args = arguments.get().values;
+            args[0] = a0;
+            args[1] = a1;
+            args[2] = a2;
+            args[3] = a3;
+            return logArguments(args, 4);
+        }
+
+        public int logCall(Value a0, Value a1, Value a2, Value a3, Value a4) {
+            Value[] args = arguments.get().values;
+            args[0] = a0;
+            args[1] = a1;
+            args[2] = a2;
+            args[3] = a3;
+            args[4] = a4;
+            return logArguments(args, 5);
+        }
+
+        public int logCall(Value a0, Value a1, Value a2, Value a3, Value a4, Value a5) {
+            Value[] args = arguments.get().values;
+            args[0] = a0;
+            args[1] = a1;
+            args[2] = a2;
+            args[3] = a3;
+            args[4] = a4;
+            args[5] = a5;
+            return logArguments(args, 6);
+        }
+
+        // args is the buffer of the thread
+        private int logArguments(Value[] args, int count) {
+            write(args, count);
+            Arrays.fill(args, 0, count, null);
+            return 0;
         }
+
+        abstract void write(Value[] args, int count);
     }
 
-    /*******************************************************
-     **************** File logger ******************
-     *******************************************************/
+    public static final class Call extends CallStep {
+        private Call(int site, long id) {
+            super(site, id);
+        }
 
-    static class JsonFileWriter implements AutoCloseable {
-        private final FileWriter file;
-        private final BufferedWriter writer;
-        public final JSONWriter json;
+        @Override
+        void write(Value[] args, int count) {
+            traceWriter.call(currentThread(), nextSeq(), site, id, args, count);
+        }
+
+        public int logReturn(Value result) {
+            traceWriter.callReturn(currentThread(), nextSeq(), site, id, result);
+            return 0;
+        }
+    }
 
-        public JsonFileWriter(String fileName) throws IOException {
-            file = new FileWriter(fileName);
-            writer = new BufferedWriter(file);
-            json = new JSONWriter(writer);
+    public static final class VoidCall extends CallStep {
+        private VoidCall(int site, long id) {
+            super(site, id);
         }
 
         @Override
-        public void close() throws Exception {
-            writer.close();
-            file.close();
+        void write(Value[] args, int count) {
+            traceWriter.voidCall(currentThread(), nextSeq(), site, id, args, count);
+        }
+
+        public int logReturn() {
+            throw new UnsupportedOperationException();
         }
     }
 
@@ -424,11 +442,8 @@ public class FileLogger {
      *******************************************************/
 
 
-    private final static String traceFileName = "eventTrace.json";
-    private final static String objectDataFileName = "objectData.json";
-
-    private final static JSONWriter traceWriter;
-    private final static JSONWriter objectDataWriter;
+    // receives the events and the object data, see TraceConfig.format
+    private final static TraceWriter traceWriter;
 
 
     /*******************************************************
@@ -436,41 +451,50 @@ public class FileLogger {
      *******************************************************/
 
     static {
-        JsonFileWriter trace;
-        JsonFileWriter objectData;
+        TraceWriter writer;
         try {
-            trace = new JsonFileWriter(traceFileName);
-            objectData = new JsonFileWriter(objectDataFileName);
+            writer = switch (TraceConfig.format) {
+                case JSON -> new JsonTraceWriter(JsonTraceWriter.TRACE_FILE_NAME, JsonTraceWriter.OBJECT_DATA_FILE_NAME);
+                case BINARY -> new BinaryTraceWriter(BinaryTraceWriter.TRACE_FILE_NAME, BinaryTraceWriter.OBJECT_DATA_FILE_NAME);
+                case NDJSON -> new JsonTraceWriter(JsonTraceWriter.NDJSON_TRACE_FILE_NAME,
+                        JsonTraceWriter.NDJSON_OBJECT_DATA_FILE_NAME, JsonTraceWriter.Layout.NDJSON);
+            };
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-
-        traceWriter = trace.json;
-        traceWriter.object();
-        // trace field an array
-        traceWriter.key("trace");
-        traceWriter.array();
-
-        objectDataWriter = objectData.json;
-        objectDataWriter.array();
+        if (TraceConfig.async)
+            writer = new AsyncTraceWriter(writer, TraceConfig.ringCapacity, TraceConfig.overflow, TraceConfig.sampleRate);
+        traceWriter = Epochs.ENABLED ? new Epochs.Writer(writer) : writer;
+
+        if (TraceConfig.flushInterval > 0) {
+            Thread flusher = new Thread(FileLogger::flushLoop, "printwizard-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            GroupEvent.exitAll();
+            exitAll();
 
             try {
-                traceWriter.endArray();
-                traceWriter.endObject();
-
-                objectDataWriter.endArray();
-
-                trace.close();
-                objectData.close();
+                traceWriter.close();
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }));
     }
 
+    // a killed program keeps the events recorded until the last flush
+    private static void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(TraceConfig.flushInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            traceWriter.flush();
+        }
+    }
+
     /*******************************************************
      **************** Data ******************
      *******************************************************/
@@ -493,8 +517,6 @@ public class FileLogger {
      **************** Reference ******************
      *******************************************************/
 
-    static long timeStampCounter = 0;
-
     /**************
      ********* Instance Reference
      **************/
@@ -506,33 +528,75 @@ public class FileLogger {
 
     // add a mechanism to save object
     // either on first read or for each write
-    private static final Set<Integer> objHash = new HashSet<>();
-
+    // the version of the snapshot is taken before obj is marked, the version of a reference
+    // taken once obj is marked is larger, also in another thread, so a reference never comes
+    // before the first snapshot of its object, see ObjectIds.markedId
     public static InstanceReference readReference(Object obj) {
-        int hash = System.identityHashCode(obj);
-        InstanceReference ref = reference(obj);
-        if (!objHash.contains(hash)) {
-            objHash.add(hash);
-            ObjectData.saveObject(ref, obj);
+        Epochs.enter();
+        try {
+            InstanceReference ref;
+            long marked = ObjectIds.markedId(obj, Epochs.current());
+            if (marked != 0) {
+                ref = reference(obj, marked);
+            } else {
+                ref = reference(obj, ObjectIds.id(obj));
+                long id = ObjectIds.markRead(obj, Epochs.current());
+                if (id < 0)
+                    ObjectData.saveObject(ref, obj);
+                else
+                    // marked by another thread since
+                    ref = reference(obj, id);
+            }
+            Epochs.taken(ref, obj);
+            return ref;
+        } finally {
+            Epochs.exit();
         }
-
-        return reference(obj);
     }
 
 
+    // obj was just constructed or one of its fields was written, it is saved and marked like
+    // a read object so its reads in the epoch do not save it again, unless untraced code can
+    // change it (a list filled by its methods), see SnapshotPlan.traced
+    // obj was already saved in the epoch after a write or when its constructor passed it to
+    // traced code, it is then saved as a delta, see ObjectData.saveObject
     public static InstanceReference writeReference(Object obj) {
-        InstanceReference ref = reference(obj);
-        ObjectData.saveObject(ref, obj);
-        return ref;
+        Epochs.enter();
+        try {
+            InstanceReference ref = reference(obj, ObjectIds.id(obj));
+            SnapshotPlan plan = SnapshotPlan.of(obj.getClass());
+            if (plan.immutable() || plan.traced())
+                ObjectIds.markRead(obj, Epochs.current());
+            ObjectData.saveObject(ref, obj);
+            Epochs.taken(ref, obj);
+            return ref;
+        } finally {
+            Epochs.exit();
+        }
+    }
+
+    // ref was taken in a previous epoch and is logged in this one, obj is saved again
+    // with the version of ref, see Epochs
+    static void resave(Value ref, Object obj) {
+        ObjectIds.markRead(obj, Epochs.current());
+        if (ref instanceof InstanceReference instance)
+            ObjectData.saveObject(instance, obj, true);
+        else
+            ArrayData.saveArray((ArrayReference) ref, obj);
     }
 
-    private static InstanceReference reference(Object obj) {
+    // initial value of the id field injected by the plugin, see ObjectIds
+    public static long objectId() {
+        return ObjectIds.newId();
+    }
+
+    private static InstanceReference reference(Object obj, long pointer) {
         Class<?> clazz = obj.getClass();
 
         return new InstanceReference(
                 new ClassIdentifier(clazz.getPackageName(), clazz.getSimpleName()),
-                System.identityHashCode(obj),
-                ++timeStampCounter);
+                pointer,
+                ObjectIds.version(obj));
     }
 
     /********
@@ -541,14 +605,22 @@ public class FileLogger {
 
 
     //should only be instanced from Reference.read or Reference.write
-    public record InstanceReference(ClassIdentifier clazz, int hashPointer, long timeStamp) implements Value {
+    // the pointer is the id of the object, see ObjectIds
+    // a truncated reference refers to an object that the snapshot containing the reference
+    // did not save, the object is saved on its next read, see SnapshotBudget
+    public record InstanceReference(ClassIdentifier clazz, long pointer, long timeStamp, boolean truncated) implements Value {
+
+        public InstanceReference(ClassIdentifier clazz, long pointer, long timeStamp) {
+            this(clazz, pointer, timeStamp, false);
+        }
 
         public JSONObject json() {
-            return new JSONObject(Map.of(
+            JSONObject json = new JSONObject(Map.of(
                     "dataType", "instanceRef",
                     "className", clazz.json(),
-                    "pointer", hashPointer,
+                    "pointer", pointer,
                     "version", timeStamp));
+            return truncated ? json.put("truncated", true) : json;
         }
     }
 
@@ -560,49 +632,276 @@ public class FileLogger {
         }
     }
 
-    public record ObjectData(InstanceReference self, List<Field> fields) implements JsonSerializable {
+    // the class of the objects and their fields in the order of their snapshots, the snapshots
+    // only give the values of the fields by position, see ObjectData
+    // a schema is written in each chunk of the object data before the first snapshot that uses
+    // it, see ChunkedOutput.Buffer.declare
+    // the type of a primitive field is the type of its literals, the values of the other fields
+    // can be any value and have the type OBJECT
+    // inaccessible are the names of the fields that cannot be read (a package of the JDK that is
+    // not open), they are not in the snapshots, see SnapshotPlan
+    public record ClassSchema(int id, ClassIdentifier clazz, List<String> names, List<String> types,
+                              List<String> inaccessible) implements JsonSerializable {
+
+        static final String OBJECT = "object";
+
+        private static final AtomicInteger ids = new AtomicInteger();
+
+        static ClassSchema of(ClassIdentifier clazz, String[] names, String[] types, List<String> inaccessible) {
+            return new ClassSchema(ids.getAndIncrement(), clazz, List.of(names), List.of(types), inaccessible);
+        }
+
+        boolean primitive(int index) {
+            return !types.get(index).equals(OBJECT);
+        }
+
+        // the value of a primitive field is written without its type
+        Object json(int index, Value value) {
+            return primitive(index) ? ((Literal) value).value() : value.json();
+        }
+
+        public JSONObject json() {
+            JSONArray fields = new JSONArray();
+            for (int i = 0; i < names.size(); ++i)
+                fields.put(new JSONObject(Map.of("name", names.get(i), "type", types.get(i))));
+            JSONObject json = new JSONObject()
+                    .put("schema", id)
+                    .put("packageName", clazz.packageName())
+                    .put("className", clazz.className())
+                    .put("fields", fields);
+            if (!inaccessible.isEmpty())
+                json.put("inaccessible", new JSONArray(inaccessible));
+            return json;
+        }
+    }
+
+    // the values of the fields of self, in the order of the schema of its class
+    public record ObjectData(InstanceReference self, ClassSchema schema, List<Value> values) implements JsonSerializable {
 
         public static void saveObject(InstanceReference ref, Object obj) {
-            List<Field> fs = fields(obj.getClass())
-                    .map(f -> {
-                        try {
-                            f.setAccessible(true);
-                            Object value = f.get(obj);
-                            f.setAccessible(false);
-                            return new Field(
-                                    new FieldIdentifier(ref, f.getName()),
-                                    value);
-                        } catch (IllegalAccessException e) {
-                            throw new RuntimeException(e);
-                        }
-                    })
-                    .toList();
-            ObjectData data = new ObjectData(ref, fs);
-            objectDataWriter.value(data.json());
-        }
-
-
-        //TODO return field from interface but who use static interface fields
-        public static Stream<java.lang.reflect.Field> fields(Class<?> clazz) {
-            if (clazz == null) {
-                return Stream.empty();
-            } else {
-                return Stream.concat(Arrays.stream(clazz.getDeclaredFields()), fields(clazz.getSuperclass()));
-            }
+            saveObject(ref, obj, false);
         }
 
-        record Field(FieldIdentifier identifier, Object value) {
-            public JSONObject json() {
-                return new JSONObject()
-                        .put("identifier", identifier.json())
-                        .put("value", valueRepr(value).json());
+        // again for an object saved again in another epoch, the snapshot is always written in
+        // full and is not the base of the next deltas, see FileLogger.resave
+        static void saveObject(InstanceReference ref, Object obj, boolean again) {
+            // the values of the fields are computed before the object is written,
+            // the objects they refer to are saved before this one
+            SnapshotPlan plan = SnapshotPlan.of(obj.getClass());
+            SnapshotBudget budget = SnapshotBudget.current();
+            FieldSink sink = new FieldSink(plan.size(), plan.schema() == null, budget);
+            budget.enter(plan.size());
+            try {
+                plan.snapshot(obj, sink);
+            } finally {
+                budget.exit();
+            }
+            ClassSchema schema = plan.schema(sink);
+            Value[] values = sink.values();
+            // an immutable object is only saved again in another epoch, it has no deltas
+            if (TraceConfig.deltaInterval == 0 || plan.immutable() || again) {
+                traceWriter.objectData(new ObjectData(ref, schema, Arrays.asList(values)));
+                return;
+            }
+
+            // a delta is only written against a snapshot of the same epoch, an epoch is read alone
+            int current = Epochs.current();
+            LastSnapshot last = (LastSnapshot) ObjectIds.lastSnapshot(obj);
+            if (last == null || last.epoch() != current || last.deltas() >= TraceConfig.deltaInterval) {
+                ObjectIds.setLastSnapshot(obj, new LastSnapshot(current, ref.timeStamp(), values, 0));
+                traceWriter.objectData(new ObjectData(ref, schema, Arrays.asList(values)));
+                return;
+            }
+
+            List<ObjectDelta.Change> changes = new ArrayList<>();
+            for (int i = 0; i < values.length; ++i) {
+                if (!sameValue(last.values()[i], values[i]))
+                    changes.add(new ObjectDelta.Change(i, values[i]));
             }
+            // the last snapshot is also the one of this version, see searchObject in the frontend,
+            // unless another thread saved it with a later version since ref was taken
+            if (changes.isEmpty() && last.version() <= ref.timeStamp())
+                return;
+            ObjectIds.setLastSnapshot(obj, new LastSnapshot(current, ref.timeStamp(), values, last.deltas() + 1));
+            traceWriter.objectDelta(new ObjectDelta(ref, schema, last.version(), changes));
+        }
+
+        // the values of the last snapshot written for an object, version is the version of the
+        // snapshot and deltas the number of deltas written since the last full snapshot
+        record LastSnapshot(int epoch, long version, Value[] values, int deltas) {
+        }
+
+        // a reference is unchanged while it designates the same object, the readers give it
+        // the version of the delta, see ObjectDelta
+        private static boolean sameValue(Value previous, Value value) {
+            return switch (previous) {
+                case InstanceReference ref -> value instanceof InstanceReference other && ref.pointer() == other.pointer();
+                case ArrayReference ref -> value instanceof ArrayReference other && ref.pointer() == other.pointer();
+                case Sequence sequence -> {
+                    if (!(value instanceof Sequence other) || sequence.length() != other.length()
+                            || sequence.values().length != other.values().length)
+                        yield false;
+                    for (int i = 0; i < sequence.values().length; ++i) {
+                        if (!sameValue(sequence.values()[i], other.values()[i]))
+                            yield false;
+                    }
+                    yield true;
+                }
+                default -> previous.equals(value);
+            };
+        }
+
+        public JSONObject json() {
+            JSONArray json = new JSONArray();
+            for (int i = 0; i < values.size(); ++i)
+                json.put(schema.json(i, values.get(i)));
+            return new JSONObject()
+                    .put("class", schema.id())
+                    .put("pointer", self.pointer())
+                    .put("version", self.timeStamp())
+                    .put("values", json);
+        }
+    }
+
+    // the fields of an object that changed since the snapshot of version base, of the same object
+    // and of the same epoch, a full snapshot is written every TraceConfig.deltaInterval deltas
+    // the snapshot of version self.timeStamp is the snapshot base where the value of each change
+    // replaces the value at its index, the references kept from the base get the version
+    // self.timeStamp
+    public record ObjectDelta(InstanceReference self, ClassSchema schema, long base, List<Change> changes) implements JsonSerializable {
+
+        record Change(int index, Value value) {
         }
 
+        // a change is [index, value]
         public JSONObject json() {
+            JSONArray json = new JSONArray();
+            for (Change change : changes)
+                json.put(new JSONArray().put(change.index()).put(schema.json(change.index(), change.value())));
             return new JSONObject()
-                    .put("self", self.json())
-                    .put("fields", new JSONArray(fields.stream().map(Field::json).toList()));
+                    .put("class", schema.id())
+                    .put("pointer", self.pointer())
+                    .put("version", self.timeStamp())
+                    .put("base", base)
+                    .put("changes", json);
+        }
+    }
+
+    // receives the fields of an object, from the snapshot method generated by the plugin
+    // or from the getters of the classes compiled without it, see SnapshotPlan
+    // the number of fields given by a serializer is only known after its first snapshot,
+    // the sink then grows, see Serializers
+    public static final class FieldSink {
+        private Value[] values;
+        // the names and types of the fields, only recorded until the class has a schema
+        private String[] names;
+        private String[] types;
+        private final SnapshotBudget budget;
+        private int size = 0;
+
+        FieldSink(int size, boolean schema, SnapshotBudget budget) {
+            this.values = new Value[size];
+            this.names = schema ? new String[size] : null;
+            this.types = schema ? new String[size] : null;
+            this.budget = budget;
+        }
+
+        public void intField(String name, int value) {
+            add(name, "int", valueRepr(value));
+        }
+
+        public void longField(String name, long value) {
+            add(name, "long", valueRepr(value));
+        }
+
+        public void floatField(String name, float value) {
+            add(name, "float", valueRepr(value));
+        }
+
+        public void doubleField(String name, double value) {
+            add(name, "double", valueRepr(value));
+        }
+
+        public void booleanField(String name, boolean value) {
+            add(name, "bool", valueRepr(value));
+        }
+
+        public void charField(String name, char value) {
+            add(name, "char", valueRepr(value));
+        }
+
+        public void byteField(String name, byte value) {
+            add(name, "byte", valueRepr(value));
+        }
+
+        public void shortField(String name, short value) {
+            add(name, "short", valueRepr(value));
+        }
+
+        public void objectField(String name, Object value) {
+            add(name, ClassSchema.OBJECT, nestedValueRepr(value, budget));
+        }
+
+        // the elements of a collection, see Sequence
+        // only the elements within the budget of the snapshot are read
+        public void collectionField(String name, Collection<?> collection) {
+            int size = collection.size();
+            Object[] elements = Serializers.firstElements(collection, budget.spend(size));
+            Value[] values = new Value[elements.length];
+            for (int i = 0; i < elements.length; ++i)
+                values[i] = nestedValueRepr(elements[i], budget);
+            add(name, ClassSchema.OBJECT, new Sequence(values, size));
+        }
+
+        // the entries of a map, each entry is the sequence of its key and its value
+        public void mapField(String name, Map<?, ?> map) {
+            int size = map.size();
+            Object[] entries = Serializers.firstElements(map.entrySet(), budget.spend(size));
+            Value[] values = new Value[entries.length];
+            for (int i = 0; i < entries.length; ++i) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entries[i];
+                values[i] = new Sequence(new Value[]{
+                        nestedValueRepr(entry.getKey(), budget),
+                        nestedValueRepr(entry.getValue(), budget)}, 2);
+            }
+            add(name, ClassSchema.OBJECT, new Sequence(values, size));
+        }
+
+        // a primitive field read by a getter, the value is boxed
+        void primitiveField(String name, Object value) {
+            Literal literal = (Literal) valueRepr(value);
+            add(name, literal.type(), literal);
+        }
+
+        private void add(String name, String type, Value value) {
+            if (size == values.length)
+                grow();
+            if (names != null) {
+                names[size] = name;
+                types[size] = type;
+            }
+            values[size++] = value;
+        }
+
+        private void grow() {
+            int capacity = Math.max(4, size * 2);
+            values = Arrays.copyOf(values, capacity);
+            if (names != null) {
+                names = Arrays.copyOf(names, capacity);
+                types = Arrays.copyOf(types, capacity);
+            }
+        }
+
+        Value[] values() {
+            return size == values.length ? values : Arrays.copyOf(values, size);
+        }
+
+        String[] names() {
+            return names == null || size == names.length ? names : Arrays.copyOf(names, size);
+        }
+
+        String[] types() {
+            return types == null || size == types.length ? types : Arrays.copyOf(types, size);
         }
     }
 
@@ -615,31 +914,76 @@ public class FileLogger {
      ********/
 
 
-    private static final Set<Integer> arrayHash = new HashSet<>();
-
+    // versions taken like in readReference
     public static ArrayReference readArray(Object obj) {
-        ArrayReference ref = arrayRef(obj);
-        if(!arrayHash.contains(ref.hashPointer)){
-            arrayHash.add(ref.hashPointer);
-            ArrayData.saveArray(ref, obj);
+        Epochs.enter();
+        try {
+            ArrayReference ref;
+            long marked = ObjectIds.markedId(obj, Epochs.current());
+            if (marked != 0) {
+                ref = arrayRef(obj, marked);
+            } else {
+                ref = arrayRef(obj);
+                long id = ObjectIds.markRead(obj, Epochs.current());
+                if (id < 0)
+                    ArrayData.saveArray(ref, obj);
+                else
+                    ref = arrayRef(obj, id);
+            }
+            Epochs.taken(ref, obj);
+            return ref;
+        } finally {
+            Epochs.exit();
+        }
+    }
+
+    // array[index] was written, only the new value of the element is saved, or the whole
+    // array the first time it is seen in the epoch, see ArrayDelta
+    public static int writeElement(Object array, int index, Value value) {
+        Epochs.enter();
+        try {
+            long marked = ObjectIds.markedId(array, Epochs.current());
+            if (marked != 0) {
+                traceWriter.arrayDelta(new ArrayDelta(arrayRef(array, marked), index, value));
+                return 0;
+            }
+
+            ArrayReference ref = arrayRef(array);
+            long id = ObjectIds.markRead(array, Epochs.current());
+            if (id < 0)
+                ArrayData.saveArray(ref, array);
+            else
+                traceWriter.arrayDelta(new ArrayDelta(arrayRef(array, id), index, value));
+            return 0;
+        } finally {
+            Epochs.exit();
         }
-        return ref;
     }
 
     public static ArrayReference writeArray(Object obj) {
-        ArrayReference ref = arrayRef(obj);
-        ArrayData.saveArray(ref, obj);
-        return ref;
+        Epochs.enter();
+        try {
+            ArrayReference ref = arrayRef(obj);
+            ArrayData.saveArray(ref, obj);
+            Epochs.taken(ref, obj);
+            return ref;
+        } finally {
+            Epochs.exit();
+        }
     }
 
     public static ArrayReference arrayRef(Object obj) {
+        return arrayRef(obj, ObjectIds.id(obj));
+    }
+
+    private static ArrayReference arrayRef(Object obj, long pointer) {
         Class<?> clazz = obj.getClass();
         if (!clazz.isArray())
             throw new IllegalArgumentException();
 
         return new ArrayReference(
-                System.identityHashCode(obj),
-                ++timeStampCounter,
+                pointer,
+                ObjectIds.version(obj),
                 clazz.arrayType().toString());
     }
 
@@ -649,33 +993,159 @@ public class FileLogger {
 
 
     //should only be instanced from Reference.read or Reference.write
-    public record ArrayReference(int hashPointer, long timeStamp, String elemType) implements Value {
+    // the pointer is the id of the array, see ObjectIds
+    // truncated like InstanceReference
+    public record ArrayReference(long pointer, long timeStamp, String elemType, boolean truncated) implements Value {
+
+        public ArrayReference(long pointer, long timeStamp, String elemType) {
+            this(pointer, timeStamp, elemType, false);
+        }
 
         public JSONObject json() {
-            return new JSONObject(Map.of(
+            JSONObject json = new JSONObject(Map.of(
                     "dataType", "arrayRef",
                     "elemType", elemType,
-                    "pointer", hashPointer,
+                    "pointer", pointer,
                     "version", timeStamp));
+            return truncated ? json.put("truncated", true) : json;
         }
     }
 
-    public record ArrayData(ArrayReference ref, List<Value> values) implements JsonSerializable {
+    // the values of an array, a copy of a primitive array or, for an array of objects, a Value[]
+    // with the value of each element, see type
+    // only the first elements of a nested array longer than the remaining size of the snapshot
+    // are saved, length is the length of the array, see SnapshotBudget
+    public record ArrayData(ArrayReference ref, Object values, int length) {
 
         public static void saveArray(ArrayReference ref, Object array) {
+            SnapshotBudget budget = SnapshotBudget.current();
             int length = Array.getLength(array);
-            List<Value> values = new ArrayList<>();
-            for (int i = 0; i < length; ++i) {
-                values.add(valueRepr(Array.get(array, i)));
+            int saved = budget.elements(length);
+            budget.enter(saved);
+            try {
+                traceWriter.arrayData(new ArrayData(ref, copy(array, saved, budget), length));
+            } finally {
+                budget.exit();
+            }
+        }
+
+        // a primitive array is copied in bulk, its elements are never boxed
+        private static Object copy(Object array, int length, SnapshotBudget budget) {
+            return switch (array) {
+                case int[] a -> Arrays.copyOf(a, length);
+                case long[] a -> Arrays.copyOf(a, length);
+                case double[] a -> Arrays.copyOf(a, length);
+                case float[] a -> Arrays.copyOf(a, length);
+                case boolean[] a -> Arrays.copyOf(a, length);
+                case char[] a -> Arrays.copyOf(a, length);
+                case byte[] a -> Arrays.copyOf(a, length);
+                case short[] a -> Arrays.copyOf(a, length);
+                case Object[] a -> {
+                    Value[] values = new Value[length];
+                    for (int i = 0; i < length; ++i)
+                        values[i] = nestedValueRepr(a[i], budget);
+                    yield values;
+                }
+                default -> throw new IllegalArgumentException();
+            };
+        }
+
+        boolean truncated() {
+            return Array.getLength(values) < length;
+        }
+
+        // the type of the literals of a primitive array, ClassSchema.OBJECT for an array of objects
+        String type() {
+            return switch (values) {
+                case int[] a -> "int";
+                case long[] a -> "long";
+                case double[] a -> "double";
+                case float[] a -> "float";
+                case boolean[] a -> "bool";
+                case char[] a -> "char";
+                case byte[] a -> "byte";
+                case short[] a -> "short";
+                default -> ClassSchema.OBJECT;
+            };
+        }
+
+        // written directly, a json array of a million ints would box every element
+        // the values of a primitive array are written without their type, like the fields
+        // of a ClassSchema
+        String json() {
+            StringBuilder json = new StringBuilder()
+                    .append("{\"self\":").append(ref.json())
+                    .append(",\"type\":\"").append(type())
+                    .append("\",");
+            if (truncated())
+                json.append("\"length\":").append(length).append(",");
+            json.append("\"values\":[");
+            switch (values) {
+                case int[] a -> {
+                    for (int i = 0; i < a.length; ++i)
+                        json.append(i == 0 ? "" : ",").append(a[i]);
+                }
+                case long[] a -> {
+                    for (int i = 0; i < a.length; ++i)
+                        json.append(i == 0 ? "" : ",").append(a[i]);
+                }
+                case double[] a -> {
+                    for (int i = 0; i < a.length; ++i) {
+                        json.append(i == 0 ? "" : ",");
+                        if (Double.isFinite(a[i]))
+                            json.append(a[i]);
+                        else
+                            json.append("\"NaN\"");
+                    }
+                }
+                case float[] a -> {
+                    for (int i = 0; i < a.length; ++i) {
+                        json.append(i == 0 ? "" : ",");
+                        if (Float.isFinite(a[i]))
+                            json.append(a[i]);
+                        else
+                            json.append("\"NaN\"");
+                    }
+                }
+                case boolean[] a -> {
+                    for (int i = 0; i < a.length; ++i)
+                        json.append(i == 0 ? "" : ",").append(a[i]);
+                }
+                case char[] a -> {
+                    for (int i = 0; i < a.length; ++i)
+                        json.append(i == 0 ? "" : ",").append(JSONObject.quote(String.valueOf(a[i])));
+                }
+                case byte[] a -> {
+                    for (int i = 0; i < a.length; ++i)
+                        json.append(i == 0 ? "" : ",").append(a[i]);
+                }
+                case short[] a -> {
+                    for (int i = 0; i < a.length; ++i)
+                        json.append(i == 0 ? "" : ",").append(a[i]);
+                }
+                case Value[] a -> {
+                    for (int i = 0; i < a.length; ++i)
+                        json.append(i == 0 ? "" : ",").append(a[i].json());
+                }
+                default -> throw new IllegalStateException();
             }
-            objectDataWriter.value(new ArrayData(ref, values).json());
+            return json.append("]}").toString();
         }
+    }
+
+
+    // the array of version ref.timeStamp is the version before it, of the same array, where the
+    // element at index is replaced by value, the readers give the references kept from the
+    // previous version the version ref.timeStamp
+    // an array is saved in full the first time it is seen in an epoch, an epoch is read alone
+    public record ArrayDelta(ArrayReference ref, int index, Value value) implements JsonSerializable {
 
         @Override
         public JSONObject json() {
             return new JSONObject()
                     .put("self", ref.json())
-                    .put("values", new JSONArray(values.stream().map(JsonSerializable::json).toList()));
+                    .put("index", index)
+                    .put("value", value.json());
         }
     }
 
@@ -689,8 +1159,9 @@ public class FileLogger {
      ********/
 
 
-    public static LocalIdentifier localIdentifier(String parentNodeId, String name) {
-        return new LocalIdentifier(parentNodeId, name);
+    // the site of a local variable is its name, see Logger.localIdentifier in the plugin
+    public static LocalIdentifier localIdentifier(int site) {
+        return Sites.cached(site, name -> new LocalIdentifier("-", name));
     }
 
     public static StaticIdentifier staticIdentifier(String packageName, String className, String name) {
@@ -752,27 +1223,25 @@ public class FileLogger {
 
     public static Value valueRepr(Object value) {
         return switch (value) {
-            case null -> new Literal("null", "");
-            case Integer i -> new Literal("int", i);
-            case Long l -> new Literal("long", l);
-            case Boolean b -> new Literal("bool", b);
-            case String s -> new Literal("string", s);
-            case Character c -> new Literal("char", c);
-            case Byte b -> new Literal("byte", b);
-            case Short s -> new Literal("short", s);
-            case Float f -> {
-                if (Float.isFinite(f)) {
-                    yield new Literal("float", f);
+            case null -> NULL;
+            case Integer i -> valueRepr(i.intValue());
+            case Long l -> valueRepr(l.longValue());
+            case Boolean b -> valueRepr(b.booleanValue());
+            case String s -> {
+                if (TraceConfig.maxStringLength > 0 && s.length() > TraceConfig.maxStringLength) {
+                    yield new TruncatedString(s.substring(0, TraceConfig.maxStringLength), s.length());
                 } else {
-                    yield new Literal("float", "NaN");
+                    yield new Literal("string", s);
                 }
             }
-            case Double d -> {
-                if (Double.isFinite(d)) {
-                    yield new Literal("double", d);
-                } else {
-                    yield new Literal("double", "NaN");
-                }
+            case Character c -> valueRepr(c.charValue());
+            case Byte b -> valueRepr(b.byteValue());
+            case Short s -> valueRepr(s.shortValue());
+            case Float f -> valueRepr(f.floatValue());
+            case Double d -> valueRepr(d.doubleValue());
+            case Enum<?> e -> {
+                Class<?> clazz = e.getDeclaringClass();
+                yield new EnumConstant(new ClassIdentifier(clazz.getPackageName(), clazz.getSimpleName()), e.ordinal(), e.name());
             }
             case Object obj -> {
                 Class<?> clazz = obj.getClass();
@@ -785,6 +1254,90 @@ public class FileLogger {
         };
     }
 
+    // the overloads of the primitive types, the plugin calls the one of the static type of
+    // the expression, see Logger.valueRepr, the value is not boxed and pattern matched
+    // the literals of the small values are shared, they are built once, see SMALL
+
+    public static Value valueRepr(int value) {
+        return value >= -SMALL && value < SMALL ? INTS[value + SMALL] : new Literal("int", value);
+    }
+
+    public static Value valueRepr(long value) {
+        return value >= -SMALL && value < SMALL ? LONGS[(int) value + SMALL] : new Literal("long", value);
+    }
+
+    public static Value valueRepr(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    public static Value valueRepr(char value) {
+        return value < SMALL ? CHARS[value] : new Literal("char", value);
+    }
+
+    public static Value valueRepr(byte value) {
+        return BYTES[value - Byte.MIN_VALUE];
+    }
+
+    public static Value valueRepr(short value) {
+        return value >= -SMALL && value < SMALL ? SHORTS[value + SMALL] : new Literal("short", value);
+    }
+
+    public static Value valueRepr(float value) {
+        return Float.isFinite(value) ? new Literal("float", value) : FLOAT_NAN;
+    }
+
+    public static Value valueRepr(double value) {
+        return Double.isFinite(value) ? new Literal("double", value) : DOUBLE_NAN;
+    }
+
+    // the shared literals are those of the values in [-SMALL, SMALL), of the chars in [0, SMALL)
+    // and of every byte
+    private static final int SMALL = 1024;
+
+    private static final Literal NULL = new Literal("null", "");
+    private static final Literal TRUE = new Literal("bool", true);
+    private static final Literal FALSE = new Literal("bool", false);
+    private static final Literal FLOAT_NAN = new Literal("float", "NaN");
+    private static final Literal DOUBLE_NAN = new Literal("double", "NaN");
+    private static final Literal[] INTS = new Literal[2 * SMALL];
+    private static final Literal[] LONGS = new Literal[2 * SMALL];
+    private static final Literal[] SHORTS = new Literal[2 * SMALL];
+    private static final Literal[] CHARS = new Literal[SMALL];
+    private static final Literal[] BYTES = new Literal[1 << Byte.SIZE];
+
+    static {
+        for (int i = 0; i < 2 * SMALL; ++i) {
+            INTS[i] = new Literal("int", i - SMALL);
+            LONGS[i] = new Literal("long", (long) (i - SMALL));
+            SHORTS[i] = new Literal("short", (short) (i - SMALL));
+        }
+        for (int i = 0; i < SMALL; ++i)
+            CHARS[i] = new Literal("char", (char) i);
+        for (int i = 0; i < BYTES.length; ++i)
+            BYTES[i] = new Literal("byte", (byte) (i + Byte.MIN_VALUE));
+    }
+
+    // the value of a field or an element saved by a snapshot, the object it refers to is
+    // left out when the snapshot is out of budget, see SnapshotBudget
+    private static Value nestedValueRepr(Object value, SnapshotBudget budget) {
+        if (value == null || budget.allows() || LITERALS.contains(value.getClass()) || value instanceof Enum<?>)
+            return valueRepr(value);
+        // already saved in the epoch, the end of a cycle, nothing left to save
+        if (ObjectIds.markedId(value, Epochs.current()) != 0)
+            return valueRepr(value);
+        // not marked, saved on its next read
+        long pointer = ObjectIds.id(value);
+        Class<?> clazz = value.getClass();
+        if (clazz.isArray())
+            return new ArrayReference(pointer, ObjectIds.version(value), clazz.arrayType().toString(), true);
+        return new InstanceReference(new ClassIdentifier(clazz.getPackageName(), clazz.getSimpleName()), pointer, ObjectIds.version(value), true);
+    }
+
+    // the classes of the values that valueRepr represents by a literal
+    private static final Set<Class<?>> LITERALS = Set.of(
+            Integer.class, Long.class, Boolean.class, String.class, Character.class,
+            Byte.class, Short.class, Float.class, Double.class);
+
     /********
      **** value definition
      ********/
@@ -801,5 +1354,48 @@ public class FileLogger {
         }
     }
 
+    // the elements of a collection or the entries of a map saved by a serializer, see
+    // Serializers, only the first elements are saved when the snapshot is out of budget,
+    // length is the number of elements, see SnapshotBudget
+    public record Sequence(Value[] values, int length) implements Value {
+
+        boolean truncated() {
+            return values.length < length;
+        }
+
+        @Override
+        public JSONObject json() {
+            JSONArray json = new JSONArray();
+            for (Value value : values)
+                json.put(value.json());
+            JSONObject sequence = new JSONObject()
+                    .put("dataType", "sequence")
+                    .put("values", json);
+            return truncated() ? sequence.put("length", length) : sequence;
+        }
+    }
+
+    // a constant of an enum, its fields are not saved, the enums are only compared by identity
+    public record EnumConstant(ClassIdentifier clazz, int ordinal, String name) implements Value {
+
+        @Override
+        public JSONObject json() {
+            return new JSONObject(Map.of(
+                    "dataType", "enum",
+                    "className", clazz.json(),
+                    "ordinal", ordinal,
+                    "name", name));
+        }
+    }
+
+    // the first TraceConfig.maxStringLength chars of a string of length chars
+    public record TruncatedString(String prefix, int length) implements Value {
+
+        @Override
+        public JSONObject json() {
+            return new JSONObject(Map.of("dataType", "string", "value", prefix, "length", length));
+        }
+    }
+
 
 }
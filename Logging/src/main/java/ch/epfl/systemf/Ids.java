@@ -0,0 +1,78 @@
+package ch.epfl.systemf;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// allocates the ids of the events, the sequence numbers and the versions of the references
+// a single shared counter would be written by every traced thread for every event,
+// instead each thread claims a block of ids and allocates from it without synchronization
+//
+// guarantees :
+//   - ids are unique, never reused during an execution
+//   - within a thread, ids strictly increase in program order
+//   - blocks are claimed in increasing order, an id of a block claimed after another
+//     block is larger than every id of that block
+// there is no guarantee between two threads that use their blocks at the same time,
+// an id allocated later by a thread can be smaller than an id allocated earlier by
+// another thread, the event ids and sequence numbers of different threads are not ordered
+//
+// the versions of the references are allocated the same way from blocks of their own
+// counter, the frontend looks for the latest snapshot of an object with a version at
+// most the version of a reference to it, so the versions of one object must follow the
+// order in which its references are taken, even by different threads
+// a thread whose block is behind the last version of the object claims a new block,
+// see version and ObjectIds.version, the readers sort the versions of each object
+final class Ids {
+
+    static final int BLOCK_SIZE = 4096;
+    static final int VIRTUAL_BLOCK_SIZE = 256;
+
+    private static final AtomicLong nextBlock = new AtomicLong();
+    // 0 is the version of an object that has no reference yet
+    private static final AtomicLong nextVersionBlock = new AtomicLong(1);
+
+    private static final class Block {
+        long next = 0;
+        long limit = 0;
+        long nextVersion = 0;
+        long versionLimit = 0;
+    }
+
+    private static final ThreadLocal<Block> block = ThreadLocal.withInitial(Block::new);
+
+    private Ids() {
+    }
+
+    static long next() {
+        Block b = block.get();
+        if (b.next == b.limit) {
+            int size = blockSize();
+            b.next = nextBlock.getAndAdd(size);
+            b.limit = b.next + size;
+        }
+        return b.next++;
+    }
+
+    // an id larger than every id allocated so far by any thread, only used on
+    // behalf of another thread (closing its events at shutdown)
+    static long fresh() {
+        return nextBlock.getAndIncrement();
+    }
+
+    // a version larger than after and than every version allocated before by the thread
+    // after is a version allocated before, its block was claimed before, a block claimed
+    // now only has larger versions
+    static long version(long after) {
+        Block b = block.get();
+        if (b.nextVersion == b.versionLimit || b.nextVersion <= after) {
+            int size = blockSize();
+            b.nextVersion = nextVersionBlock.getAndAdd(size);
+            b.versionLimit = b.nextVersion + size;
+        }
+        return b.nextVersion++;
+    }
+
+    // virtual threads are often short-lived, a smaller block wastes less of the id space
+    private static int blockSize() {
+        return Thread.currentThread().isVirtual() ? VIRTUAL_BLOCK_SIZE : BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,238 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.ChunkSink.Framing;
+import ch.epfl.systemf.ChunkedOutput.Buffer;
+import ch.epfl.systemf.FileLogger.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// the format read by the frontend
+// eventTrace.json : {"trace": [event, ...]}
+// objectData.json : [class schema, object data, object delta, array data or array delta, ...]
+// a class schema comes before the object data and deltas that use it, see ClassSchema
+// every event has a thread and a seq field, see TraceWriter
+//
+// with Layout.NDJSON the same values are written one per line, without enclosing
+// array, the last line is a commit marker written when the trace is complete
+// eventTrace.ndjson : event \n event \n ... {"commit":true} \n
+// a file cut at any point can be read up to its last complete line
+class JsonTraceWriter implements TraceWriter {
+
+    static final String TRACE_FILE_NAME = "eventTrace.json";
+    static final String OBJECT_DATA_FILE_NAME = "objectData.json";
+
+    static final String NDJSON_TRACE_FILE_NAME = "eventTrace.ndjson";
+    static final String NDJSON_OBJECT_DATA_FILE_NAME = "objectData.ndjson";
+
+    private static final String COMMIT = "{\"commit\":true}\n";
+
+    enum Layout {
+        // every value is preceded by a comma, the first one is skipped
+        JSON("{\"trace\":[", "]}", "[", "]", ",", ""),
+        NDJSON("", COMMIT, "", COMMIT, "", "\n");
+
+        final Framing trace;
+        final Framing objectData;
+        final byte[] before;
+        final byte[] after;
+
+        Layout(String traceHeader, String traceTrailer, String objectDataHeader, String objectDataTrailer,
+               String before, String after) {
+            this.before = ascii(before);
+            this.after = ascii(after);
+            this.trace = new Framing(ascii(traceHeader), ascii(traceTrailer), this.before.length);
+            this.objectData = new Framing(ascii(objectDataHeader), ascii(objectDataTrailer), this.before.length);
+        }
+    }
+
+    private final Layout layout;
+    private final ChunkedOutput<Buffer> trace;
+    private final ChunkedOutput<Buffer> objectData;
+
+    JsonTraceWriter(String traceFileName, String objectDataFileName) throws IOException {
+        this(traceFileName, objectDataFileName, Layout.JSON);
+    }
+
+    JsonTraceWriter(String traceFileName, String objectDataFileName, Layout layout) throws IOException {
+        this.layout = layout;
+        trace = new ChunkedOutput<>(ChunkSink.open(traceFileName, layout.trace), Buffer[]::new, Buffer::new);
+        objectData = new ChunkedOutput<>(ChunkSink.open(objectDataFileName, layout.objectData), Buffer[]::new, Buffer::new);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void value(ChunkedOutput<Buffer> output, long id, JSONObject value) {
+        value(output, id, value.toString());
+    }
+
+    private void value(ChunkedOutput<Buffer> output, long id, String value) {
+        Buffer out = output.beginRecord();
+        out.id(id);
+        value(out, value);
+        output.endRecord(out);
+    }
+
+    private void value(Buffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.bytes(layout.before, 0, layout.before.length);
+        out.bytes(bytes, 0, bytes.length);
+        out.bytes(layout.after, 0, layout.after.length);
+    }
+
+    // the schema is written before the object if the chunk does not have it yet
+    private void object(long id, ClassSchema schema, JSONObject value) {
+        Buffer out = objectData.beginRecord();
+        out.id(id);
+        if (out.declare(schema.id()))
+            value(out, schema.json().toString());
+        value(out, value.toString());
+        objectData.endRecord(out);
+    }
+
+    private static JSONObject event(long thread, long seq, JSONObject event) {
+        return event.put("thread", thread).put("seq", seq);
+    }
+
+    /*******************************************************
+     **************** trace ******************
+     *******************************************************/
+
+    @Override
+    public void groupEvent(long thread, long seq, long eventId, GroupEventType type, ControlFlowKind kind, boolean start) {
+        JSONObject base = new JSONObject(Map.of(
+                "type", "GroupEvent",
+                "pos", start ? "start" : "end",
+                "eventId", eventId,
+                "eventType", type.repr
+        ));
+
+        switch (kind) {
+            case null -> {
+            }
+            case ControlFlowKind.Default def -> base.put("kind", new JSONObject(Map.of("type", "DefaultContext")));
+            case ControlFlowKind.FunctionContext fun -> base.put("kind", new JSONObject(Map.of(
+                    "type", "FunctionContext",
+                    "functionName", fun.fullName())));
+        }
+        value(trace, seq, event(thread, seq, base));
+    }
+
+    @Override
+    public void expression(long thread, long seq, int site, Value result, Write[] assigns, int count) {
+        value(trace, seq, event(thread, seq, new JSONObject(Map.of(
+                "type", ExecutionStep.ExecutionStep,
+                "kind", "expression",
+                "result", result.json(),
+                "nodeKey", Sites.descriptor(site),
+                "assigns", jsonArray(assigns, count)
+        ))));
+    }
+
+    @Override
+    public void expressionWithoutReturn(long thread, long seq, int site, Write[] assigns, int count) {
+        value(trace, seq, event(thread, seq, new JSONObject(Map.of(
+                "type", ExecutionStep.ExecutionStep,
+                "kind", "expressionWithoutReturn",
+                "nodeKey", Sites.descriptor(site),
+                "assigns", jsonArray(assigns, count)
+        ))));
+    }
+
+    @Override
+    public void call(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        value(trace, seq, event(thread, seq, callRep("logCall", site, stepId, argValues, count)));
+    }
+
+    @Override
+    public void voidCall(long thread, long seq, int site, long stepId, Value[] argValues, int count) {
+        value(trace, seq, event(thread, seq, callRep("logVoidCall", site, stepId, argValues, count)));
+    }
+
+    private static JSONObject callRep(String kind, int site, long stepId, Value[] argValues, int count) {
+        return new JSONObject(Map.of(
+                "type", ExecutionStep.ExecutionStep,
+                "kind", kind,
+                "nodeKey", Sites.descriptor(site),
+                "stepId", stepId,
+                "argsValues", jsonArray(argValues, count)));
+    }
+
+    @Override
+    public void callReturn(long thread, long seq, int site, long stepId, Value result) {
+        value(trace, seq, event(thread, seq, new JSONObject(Map.of(
+                "type", ExecutionStep.ExecutionStep,
+                "kind", "logReturn",
+                "nodeKey", Sites.descriptor(site),
+                "stepId", stepId,
+                "result", result.json()
+        ))));
+    }
+
+    // not an event of a thread, it only tells the reader that the trace is incomplete
+    @Override
+    public void dropped(long count) {
+        value(trace, Ids.fresh(), new JSONObject(Map.of(
+                "type", "Dropped",
+                "count", count
+        )));
+    }
+
+    /*******************************************************
+     **************** object data ******************
+     *******************************************************/
+
+    @Override
+    public void objectData(ObjectData data) {
+        object(data.self().timeStamp(), data.schema(), data.json());
+    }
+
+    @Override
+    public void objectDelta(ObjectDelta delta) {
+        object(delta.self().timeStamp(), delta.schema(), delta.json());
+    }
+
+    @Override
+    public void arrayData(ArrayData data) {
+        value(objectData, data.ref().timeStamp(), data.json());
+    }
+
+    @Override
+    public void arrayDelta(ArrayDelta delta) {
+        value(objectData, delta.ref().timeStamp(), delta.json());
+    }
+
+    /*******************************************************
+     **************** closing ******************
+     *******************************************************/
+
+    @Override
+    public void rollover() {
+        trace.rollover();
+        objectData.rollover();
+    }
+
+    @Override
+    public void flush() {
+        trace.flush();
+        objectData.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        trace.close();
+        objectData.close();
+    }
+
+    private static JSONArray jsonArray(JsonSerializable[] values, int count) {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < count; ++i)
+            array.put(values[i].json());
+        return array;
+    }
+}
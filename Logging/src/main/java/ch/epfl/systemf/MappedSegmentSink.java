@@ -0,0 +1,230 @@
+package ch.epfl.systemf;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// appends the chunks to memory mapped segments of a fixed size, writing a chunk
+// is a copy in memory, the kernel writes the pages back to the file
+// a segment is a complete file (header, records, trailer) that can be read alone
+// eventTrace.json is written as eventTrace.0000.json, eventTrace.0001.json, ...
+//
+// the manifest <file name>.segments.json lists the closed segments in order with
+// the smallest and largest id of their records, it is replaced each time a segment
+// is closed so it never lists a segment still being written
+// the ids are allocated from blocks of each thread (see Ids), a thread still using an
+// older block writes smaller ids than the other threads, the ranges of consecutive
+// segments can overlap, a range bounds the ids of a segment but does not order segments
+//
+// with epochs (a retention is given) a segment only ends on rollover, a full mapping
+// is followed by a mapping of the next segmentSize bytes of the same file
+final class MappedSegmentSink implements ChunkSink {
+
+    static final String MANIFEST_SUFFIX = ".segments.json";
+
+    // a mapping is limited to 2GB
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private record Segment(int index, String file, long firstId, long lastId, long bytes) {
+        JSONObject json() {
+            return new JSONObject(Map.of(
+                    "file", file,
+                    "firstId", firstId,
+                    "lastId", lastId,
+                    "bytes", bytes));
+        }
+    }
+
+    private final Path directory;
+    private final String fileName;
+    private final Framing framing;
+    private final long segmentSize;
+    // null when the segments end when full and are all kept
+    private final Retention retention;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private int nextIndex = 0;
+
+    private Path current;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    // offset of the mapping in the current segment
+    private long mapStart;
+    private boolean empty;
+    private long firstId;
+    private long lastId;
+
+    MappedSegmentSink(String fileName, Framing framing, long segmentSize, Retention retention) throws IOException {
+        Path path = Path.of(fileName).toAbsolutePath();
+        this.directory = path.getParent();
+        this.fileName = path.getFileName().toString();
+        this.framing = framing;
+        this.segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+        this.retention = retention;
+        openSegment();
+    }
+
+    static String segmentName(String fileName, int index) {
+        int dot = fileName.lastIndexOf('.');
+        String base = dot < 0 ? fileName : fileName.substring(0, dot);
+        String extension = dot < 0 ? "" : fileName.substring(dot);
+        return String.format("%s.%04d%s", base, index, extension);
+    }
+
+    /*******************************************************
+     **************** segments ******************
+     *******************************************************/
+
+    private void openSegment() throws IOException {
+        current = directory.resolve(segmentName(fileName, nextIndex));
+        channel = FileChannel.open(current,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        map(0, segmentSize);
+        map.put(framing.header());
+        empty = true;
+        firstId = Long.MAX_VALUE;
+        lastId = Long.MIN_VALUE;
+    }
+
+    private void map(long start, long size) throws IOException {
+        mapStart = start;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+    }
+
+    private void closeSegment() throws IOException {
+        if (map.remaining() < framing.trailer().length)
+            map(mapStart + map.position(), framing.trailer().length);
+        map.put(framing.trailer());
+        long bytes = mapStart + map.position();
+        channel.truncate(bytes);
+        channel.close();
+        map = null;
+
+        int index = nextIndex++;
+        segments.add(new Segment(index, current.getFileName().toString(),
+                empty ? -1 : firstId, empty ? -1 : lastId, bytes));
+        if (retention != null)
+            retention.closed(index, current, bytes);
+        writeManifest();
+    }
+
+    private void writeManifest() throws IOException {
+        // the retention may have deleted the oldest segments, of this file or of the other stream
+        segments.removeIf(segment -> !Files.exists(directory.resolve(segment.file())));
+        JSONObject manifest = new JSONObject()
+                .put("file", fileName)
+                .put("segments", new JSONArray(segments.stream().map(Segment::json).toList()));
+
+        Path target = directory.resolve(fileName + MANIFEST_SUFFIX);
+        Path tmp = directory.resolve(fileName + MANIFEST_SUFFIX + ".tmp");
+        Files.writeString(tmp, manifest.toString());
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*******************************************************
+     **************** chunks ******************
+     *******************************************************/
+
+    @Override
+    public void write(byte[] chunk, int off, int len, long firstId, long lastId) throws IOException {
+        if (!fits(len)) {
+            if (retention != null) {
+                // an epoch is never cut, the segment grows
+                map(mapStart + map.position(), Math.max(segmentSize, len));
+            } else {
+                if (!empty) {
+                    closeSegment();
+                    openSegment();
+                }
+                // a single chunk larger than a segment gets a segment of its own
+                if (!fits(len))
+                    map(0, Math.min(framing.header().length + len + framing.trailer().length, MAX_SEGMENT_SIZE));
+                map.position(framing.header().length);
+            }
+        }
+
+        int skip = empty ? framing.leadingSkip() : 0;
+        map.put(chunk, off + skip, len - skip);
+        empty = false;
+        this.firstId = Math.min(this.firstId, firstId);
+        this.lastId = Math.max(this.lastId, lastId);
+    }
+
+    private boolean fits(int len) {
+        int skip = empty ? framing.leadingSkip() : 0;
+        // with epochs the trailer can be written in a mapping of its own
+        int trailer = retention == null ? framing.trailer().length : 0;
+        return map.remaining() >= len - skip + trailer;
+    }
+
+    // the mapping is written back by the kernel even if the process is killed,
+    // forcing it only matters for a crash of the machine
+    @Override
+    public void sync() {
+        map.force();
+    }
+
+    @Override
+    public void rollover() throws IOException {
+        closeSegment();
+        openSegment();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    /*******************************************************
+     **************** retention ******************
+     *******************************************************/
+
+    // deletes the oldest epochs, the segments with the same index in every stream
+    // form an epoch, the segments of an epoch are deleted together
+    // shared by the sinks of the streams, the most recent epoch is always kept
+    static final class Retention {
+        static final Retention EPOCHS = new Retention(TraceConfig.retainSegments, (long) TraceConfig.retainSize << 20);
+
+        private final int maxEpochs;
+        private final long maxBytes;
+
+        private final TreeMap<Integer, List<Path>> files = new TreeMap<>();
+        private final TreeMap<Integer, Long> bytes = new TreeMap<>();
+
+        Retention(int maxEpochs, long maxBytes) {
+            this.maxEpochs = maxEpochs;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized void closed(int index, Path file, long size) throws IOException {
+            files.computeIfAbsent(index, i -> new ArrayList<>()).add(file);
+            bytes.merge(index, size, Long::sum);
+
+            int kept = 0;
+            long keptBytes = 0;
+            for (int epoch : new ArrayList<>(files.descendingKeySet())) {
+                kept += 1;
+                keptBytes += bytes.get(epoch);
+                boolean keep = kept == 1
+                        || ((maxEpochs == 0 || kept <= maxEpochs) && (maxBytes == 0 || keptBytes <= maxBytes));
+                if (!keep) {
+                    for (Path path : files.remove(epoch))
+                        Files.deleteIfExists(path);
+                    bytes.remove(epoch);
+                }
+            }
+        }
+    }
+}
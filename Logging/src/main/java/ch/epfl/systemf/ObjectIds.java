@@ -0,0 +1,358 @@
+package ch.epfl.systemf;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// gives every traced object an id, the pointer of its references
+// System.identityHashCode is not unique, two live objects can share a hash, so the
+// objects are compared by identity and an id is never reused
+//
+// the instances of the classes compiled with the plugin option objectIdField hold their
+// id, their mark, their last snapshot and their last version in the injected fields
+// ID_FIELD, EPOCH_FIELD, LAST_FIELD and VERSION_FIELD, see TreeInstrumenter.visitClassDef,
+// the other objects (JDK, libraries) are in a table
+//
+// the table does not keep the objects alive, the entry of an object is removed
+// once the object is collected, see ReferenceQueue
+// the table is split in stripes by identity hash, each with its own lock, the
+// entries are probed linearly through the hashes stored in an int array
+final class ObjectIds {
+
+    static final String ID_FIELD = "$pw$id";
+    static final String EPOCH_FIELD = "$pw$epoch";
+    static final String LAST_FIELD = "$pw$last";
+    static final String VERSION_FIELD = "$pw$version";
+
+    // ids are claimed in blocks like in Ids, 0 is the id of an object whose
+    // injected field is not yet initialized
+    private static final int BLOCK_SIZE = 1024;
+    private static final AtomicLong nextBlock = new AtomicLong(1);
+
+    private static final class Block {
+        long next = 0;
+        long limit = 0;
+    }
+
+    private static final ThreadLocal<Block> block = ThreadLocal.withInitial(Block::new);
+
+    private static final Stripe[] stripes = new Stripe[Stripes.count()];
+    private static final int SHIFT = 32 - Integer.numberOfTrailingZeros(Stripes.count());
+
+    static {
+        for (int i = 0; i < stripes.length; ++i)
+            stripes[i] = new Stripe();
+    }
+
+    private ObjectIds() {
+    }
+
+    // the initial value of the injected id field
+    static long newId() {
+        Block b = block.get();
+        if (b.next == b.limit) {
+            b.next = nextBlock.getAndAdd(BLOCK_SIZE);
+            b.limit = b.next + BLOCK_SIZE;
+        }
+        return b.next++;
+    }
+
+    // the id of obj, allocated on the first call
+    static long id(Object obj) {
+        Injected fields = injected.get(obj.getClass());
+        if (fields != Injected.NONE) {
+            long id = (long) fields.id().get(obj);
+            if (id != 0)
+                return id;
+        }
+        return stripe(obj).entry(obj).id;
+    }
+
+    // the id of obj, negated if obj was not yet marked during this epoch, obj is then marked
+    // used to save each object once per epoch, see FileLogger.readReference
+    // epoch must not be 0, the mark of an object never read
+    static long markRead(Object obj, int epoch) {
+        Injected fields = injected.get(obj.getClass());
+        if (fields != Injected.NONE) {
+            long id = (long) fields.id().get(obj);
+            // 0 when obj is read by the constructor of its superclass, before the fields are initialized
+            if (id != 0)
+                return (int) fields.epoch().getAndSet(obj, epoch) == epoch ? id : -id;
+        }
+        return stripe(obj).markRead(obj, epoch);
+    }
+
+    // the id of obj if it was already marked during this epoch, 0 otherwise
+    // a version taken after a call that returns the id is larger than the version taken
+    // by the thread that marked obj before marking it, see FileLogger.readReference
+    static long markedId(Object obj, int epoch) {
+        Injected fields = injected.get(obj.getClass());
+        if (fields != Injected.NONE) {
+            long id = (long) fields.id().get(obj);
+            if (id != 0)
+                return (int) fields.epoch().getVolatile(obj) == epoch ? id : 0;
+        }
+        return stripe(obj).markedId(obj, epoch);
+    }
+
+    // the last snapshot written for obj, null if none, see ObjectData.saveObject
+    static Object lastSnapshot(Object obj) {
+        Injected fields = injected.get(obj.getClass());
+        if (fields != Injected.NONE && (long) fields.id().get(obj) != 0)
+            return fields.last().getAcquire(obj);
+        return stripe(obj).lastSnapshot(obj);
+    }
+
+    static void setLastSnapshot(Object obj, Object snapshot) {
+        Injected fields = injected.get(obj.getClass());
+        if (fields != Injected.NONE && (long) fields.id().get(obj) != 0)
+            fields.last().setRelease(obj, snapshot);
+        else
+            stripe(obj).setLastSnapshot(obj, snapshot);
+    }
+
+    // the version of a new reference to obj, larger than the versions of the previous
+    // references to obj, also when they were taken by other threads, see Ids
+    static long version(Object obj) {
+        Injected fields = injected.get(obj.getClass());
+        if (fields != Injected.NONE && (long) fields.id().get(obj) != 0) {
+            while (true) {
+                long last = (long) fields.version().getVolatile(obj);
+                long version = Ids.version(last);
+                if (fields.version().compareAndSet(obj, last, version))
+                    return version;
+            }
+        }
+        return stripe(obj).version(obj);
+    }
+
+    // the number of objects in the table, the collected objects are removed first
+    static int size() {
+        int size = 0;
+        for (Stripe stripe : stripes)
+            size += stripe.size();
+        return size;
+    }
+
+    // whether f is injected by the plugin, it is not a field of the traced program
+    static boolean isInjected(Field f) {
+        return f.getName().equals(ID_FIELD) || f.getName().equals(EPOCH_FIELD) || f.getName().equals(LAST_FIELD)
+                || f.getName().equals(VERSION_FIELD) || f.getName().equals(Sites.SITES_FIELD);
+    }
+
+    private static Stripe stripe(Object obj) {
+        // the high bits, the low bits select the slot in the stripe
+        int h = System.identityHashCode(obj) * 0x9E3779B9;
+        return stripes[h >>> SHIFT];
+    }
+
+    /*******************************************************
+     **************** injected fields ******************
+     *******************************************************/
+
+    private record Injected(VarHandle id, VarHandle epoch, VarHandle last, VarHandle version) {
+        static final Injected NONE = new Injected(null, null, null, null);
+    }
+
+    // the fields are declared by the class or by one of its superclasses, NONE if the
+    // class was not compiled with the option or its fields cannot be accessed (package not open)
+    private static final ClassValue<Injected> injected = new ClassValue<>() {
+        @Override
+        protected Injected computeValue(Class<?> type) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredField(ID_FIELD);
+                } catch (NoSuchFieldException e) {
+                    continue;
+                }
+                try {
+                    MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(c, MethodHandles.lookup());
+                    return new Injected(
+                            lookup.findVarHandle(c, ID_FIELD, long.class),
+                            lookup.findVarHandle(c, EPOCH_FIELD, int.class),
+                            lookup.findVarHandle(c, LAST_FIELD, Object.class),
+                            lookup.findVarHandle(c, VERSION_FIELD, long.class));
+                } catch (IllegalAccessException | NoSuchFieldException e) {
+                    return Injected.NONE;
+                }
+            }
+            return Injected.NONE;
+        }
+    };
+
+    /*******************************************************
+     **************** table ******************
+     *******************************************************/
+
+    private static final class Entry extends WeakReference<Object> {
+        final int hash;
+        final long id;
+        // the last epoch in which the object was marked, the last snapshot and the last
+        // version of the object, guarded by the lock of the stripe
+        int epoch = 0;
+        Object last = null;
+        long version = 0;
+
+        Entry(Object obj, int hash, long id, ReferenceQueue<Object> queue) {
+            super(obj, queue);
+            this.hash = hash;
+            this.id = id;
+        }
+    }
+
+    // ReentrantLock and not synchronized, see ChunkedOutput.beginRecord
+    private static final class Stripe {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+        // entries[i] is null for a free slot, hashes[i] is the hash of entries[i]
+        private Entry[] entries = new Entry[INITIAL_CAPACITY];
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        private int size = 0;
+
+        long markRead(Object obj, int epoch) {
+            lock.lock();
+            try {
+                Entry e = find(obj);
+                if (e.epoch == epoch)
+                    return e.id;
+                e.epoch = epoch;
+                return -e.id;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long markedId(Object obj, int epoch) {
+            lock.lock();
+            try {
+                Entry e = find(obj);
+                return e.epoch == epoch ? e.id : 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Object lastSnapshot(Object obj) {
+            lock.lock();
+            try {
+                return find(obj).last;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void setLastSnapshot(Object obj, Object snapshot) {
+            lock.lock();
+            try {
+                find(obj).last = snapshot;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long version(Object obj) {
+            lock.lock();
+            try {
+                Entry e = find(obj);
+                e.version = Ids.version(e.version);
+                return e.version;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                expungeCollected();
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Entry entry(Object obj) {
+            lock.lock();
+            try {
+                return find(obj);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // the entry of obj, added if missing
+        private Entry find(Object obj) {
+            expungeCollected();
+
+            int hash = System.identityHashCode(obj);
+            int mask = entries.length - 1;
+            int i = hash & mask;
+            for (Entry e = entries[i]; e != null; e = entries[i = (i + 1) & mask]) {
+                if (hashes[i] == hash && e.refersTo(obj))
+                    return e;
+            }
+
+            Entry e = new Entry(obj, hash, newId(), collected);
+            entries[i] = e;
+            hashes[i] = hash;
+            if (++size > entries.length >> 1)
+                resize();
+            return e;
+        }
+
+        private void expungeCollected() {
+            for (Object ref; (ref = collected.poll()) != null; )
+                remove((Entry) ref);
+        }
+
+        // linear probing without tombstones, the following entries of the run
+        // are moved back into the freed slot when it is on their probe path
+        private void remove(Entry entry) {
+            int mask = entries.length - 1;
+            int i = entry.hash & mask;
+            while (entries[i] != entry) {
+                if (entries[i] == null)
+                    return;
+                i = (i + 1) & mask;
+            }
+
+            entries[i] = null;
+            size -= 1;
+            for (int j = (i + 1) & mask; entries[j] != null; j = (j + 1) & mask) {
+                int home = hashes[j] & mask;
+                // whether home is cyclically outside of (i, j]
+                boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+                if (movable) {
+                    entries[i] = entries[j];
+                    hashes[i] = hashes[j];
+                    entries[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        private void resize() {
+            Entry[] oldEntries = entries;
+            int[] oldHashes = hashes;
+            entries = new Entry[oldEntries.length * 2];
+            hashes = new int[oldEntries.length * 2];
+            int mask = entries.length - 1;
+            for (int k = 0; k < oldEntries.length; ++k) {
+                if (oldEntries[k] == null)
+                    continue;
+                int i = oldHashes[k] & mask;
+                while (entries[i] != null)
+                    i = (i + 1) & mask;
+                entries[i] = oldEntries[k];
+                hashes[i] = oldHashes[k];
+            }
+        }
+    }
+}
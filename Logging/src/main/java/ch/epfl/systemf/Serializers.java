@@ -0,0 +1,100 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.FieldSink;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// the serializers of the classes whose snapshot is their logical content and not their
+// fields, see SnapshotPlan
+// the fields of the JDK collections are internals (elementData, table, modCount, ...) that
+// can only be read with --add-opens, a collection is saved as its elements and a map as its
+// entries, through their public methods, see FieldSink.collectionField and mapField
+//
+// a library can register the serializers of its own classes before their first snapshot,
+// example : Serializers.register(Point.class, (p, sink) -> { sink.intField("x", p.x()); sink.intField("y", p.y()); });
+// a serializer must write the same fields in the same order for every object of the class,
+// they give the schema of the class, see ClassSchema
+//
+// strings and boxed primitives are never snapshotted, they are literals, see FileLogger.valueRepr
+public final class Serializers {
+
+    @FunctionalInterface
+    public interface Serializer<T> {
+        void snapshot(T obj, FieldSink sink);
+    }
+
+    private static final Map<Class<?>, Serializer<?>> serializers = new ConcurrentHashMap<>();
+
+    private Serializers() {
+    }
+
+    // replaces the serializer of clazz, the objects of clazz already snapshotted keep
+    // the fields they were saved with
+    public static <T> void register(Class<T> clazz, Serializer<? super T> serializer) {
+        serializers.put(clazz, serializer);
+    }
+
+    // the serializer of the objects of exactly the class type, null if their fields are saved
+    // the collections and maps without a registered serializer that are or extend a class of
+    // the JDK are saved as such, their subclasses and the wrappers of Collections included
+    @SuppressWarnings("unchecked")
+    static Serializer<Object> of(Class<?> type) {
+        Serializer<?> serializer = serializers.get(type);
+        if (serializer == null && extendsJdk(type)) {
+            if (Collection.class.isAssignableFrom(type))
+                serializer = COLLECTION;
+            else if (Map.class.isAssignableFrom(type))
+                serializer = MAP;
+        }
+        return (Serializer<Object>) serializer;
+    }
+
+    // whether type or one of its superclasses, other than Object, is in a module of the JDK,
+    // its fields are then internals that cannot be read
+    private static boolean extendsJdk(Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            String module = c.getModule().getName();
+            if (module != null && (module.startsWith("java.") || module.startsWith("jdk.")))
+                return true;
+        }
+        return false;
+    }
+
+    /*******************************************************
+     **************** JDK types ******************
+     *******************************************************/
+
+    // ArrayList, ArrayDeque, HashSet, the lists of List.of and Stream.toList, ...
+    private static final Serializer<Collection<?>> COLLECTION = (collection, sink) -> sink.collectionField("elements", collection);
+
+    // HashMap, TreeMap, the maps of Map.of, ...
+    private static final Serializer<Map<?, ?>> MAP = (map, sink) -> sink.mapField("entries", map);
+
+    // the first count elements of the collection, fewer if it is shorter, the others are
+    // never read
+    // the collection can be modified by another thread while it is read, it is read again
+    // and saved as empty if it keeps changing
+    static Object[] firstElements(Collection<?> collection, int count) {
+        for (int attempt = 0; attempt < 3; ++attempt) {
+            try {
+                Object[] elements = new Object[count];
+                Iterator<?> iterator = collection.iterator();
+                int read = 0;
+                while (read < count && iterator.hasNext())
+                    elements[read++] = iterator.next();
+                return read == count ? elements : Arrays.copyOf(elements, read);
+            } catch (ConcurrentModificationException e) {
+                // retry
+            }
+        }
+        return new Object[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final Class<Optional<?>> OPTIONAL = (Class<Optional<?>>) (Class<?>) Optional.class;
+
+    static {
+        register(OPTIONAL, (optional, sink) -> sink.objectField("value", optional.orElse(null)));
+    }
+}
@@ -0,0 +1,95 @@
+package ch.epfl.systemf;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// the sites of the instrumented code : the node keys of its expressions and calls, the
+// names of its functions and of its local variables
+// a class compiled with the plugin registers its sites once, when it is initialized, and
+// then only gives their ids, see FileLogger.registerSites and TreeInstrumenter.visitClassDef
+//
+// a site id is an index in the arrays, the arrays are replaced when they grow, a reader that
+// got an id from register sees a descriptor for it in the current array
+final class Sites {
+
+    // the static field holding the ids of the sites of a class, not saved in its snapshots
+    static final String SITES_FIELD = "$pw$sites";
+    // the static method returning the descriptors of the sites of an enum, see of
+    static final String DESCRIPTORS_METHOD = "$pw$siteDescriptors";
+
+    // the constants of an enum are initialized before its static fields and can use its sites
+    // before a field would hold their ids, the ids of an enum are registered on their first use
+    // instead, a ClassValue gives every thread the same ids
+    private static final ClassValue<int[]> classSites = new ClassValue<>() {
+        @Override
+        protected int[] computeValue(Class<?> type) {
+            try {
+                MethodHandle descriptors = MethodHandles.privateLookupIn(type, MethodHandles.lookup())
+                        .findStatic(type, DESCRIPTORS_METHOD, MethodType.methodType(String[].class));
+                return register((String[]) descriptors.invokeExact());
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static volatile String[] descriptors = new String[1024];
+    // the object built from the descriptor of a site, see cached
+    private static volatile Object[] cache = new Object[1024];
+    // guarded by lock
+    private static int size = 0;
+
+    private Sites() {
+    }
+
+    static int[] register(String[] sites) {
+        int[] ids = new int[sites.length];
+        lock.lock();
+        try {
+            String[] current = descriptors;
+            if (size + sites.length > current.length) {
+                int length = Math.max(current.length * 2, size + sites.length);
+                current = Arrays.copyOf(current, length);
+                cache = Arrays.copyOf(cache, length);
+            }
+            for (int i = 0; i < sites.length; ++i) {
+                ids[i] = size;
+                current[size++] = sites[i];
+            }
+            descriptors = current;
+        } finally {
+            lock.unlock();
+        }
+        return ids;
+    }
+
+    // the ids of the sites of an enum compiled with the plugin
+    static int[] of(Class<?> type) {
+        return classSites.get(type);
+    }
+
+    static String descriptor(int site) {
+        return descriptors[site];
+    }
+
+    // the object built from the descriptor of the site, two threads can both build it and
+    // an entry written while the arrays grow can be lost, it is then built again
+    // a site is only used for one kind of object, see Logger.site in the plugin
+    @SuppressWarnings("unchecked")
+    static <T> T cached(int site, Function<String, T> build) {
+        Object[] current = cache;
+        Object value = current[site];
+        if (value == null) {
+            value = build.apply(descriptors[site]);
+            current[site] = value;
+        }
+        return (T) value;
+    }
+}
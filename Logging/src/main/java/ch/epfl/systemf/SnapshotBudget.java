@@ -0,0 +1,62 @@
+package ch.epfl.systemf;
+
+// bounds the cost of a snapshot, see FileLogger.ObjectData.saveObject, ArrayData.saveArray and
+// FieldSink.collectionField
+// saving an object saves the objects its fields refer to that are not yet saved in the epoch,
+// so the snapshot of the root of a list or a tree would save the whole structure
+//
+// a snapshot saves at most TraceConfig.snapshotDepth levels of nested objects and
+// TraceConfig.snapshotSize fields and array elements, the root object or array is always
+// saved in full and a nested array only up to the remaining size
+// an object left out is not marked, its reference is truncated and the object is saved on
+// its next read, see FileLogger.nestedValueRepr
+final class SnapshotBudget {
+
+    private static final ThreadLocal<SnapshotBudget> budgets = ThreadLocal.withInitial(SnapshotBudget::new);
+
+    private static final int MAX_DEPTH = TraceConfig.snapshotDepth > 0 ? TraceConfig.snapshotDepth : Integer.MAX_VALUE;
+    private static final int MAX_SIZE = TraceConfig.snapshotSize > 0 ? TraceConfig.snapshotSize : Integer.MAX_VALUE;
+
+    // number of objects being saved, the root object is at depth 1
+    private int depth = 0;
+    // number of fields and elements that the snapshot can still save
+    private int remaining = MAX_SIZE;
+
+    private SnapshotBudget() {
+    }
+
+    static SnapshotBudget current() {
+        return budgets.get();
+    }
+
+    // whether an object not yet saved can be saved by the current snapshot
+    boolean allows() {
+        return depth == 0 || (depth < MAX_DEPTH && remaining > 0);
+    }
+
+    // the number of elements saved for an array of length elements, a root array is never
+    // truncated, its elements only use the budget of the objects they refer to
+    int elements(int length) {
+        return depth == 0 ? length : Math.min(length, Math.max(remaining, 0));
+    }
+
+    // an object of size fields or elements is being saved
+    void enter(int size) {
+        if (depth == 0)
+            remaining = MAX_SIZE;
+        depth += 1;
+        remaining -= size;
+    }
+
+    void exit() {
+        depth -= 1;
+    }
+
+    // the number of elements of a collection of length elements saved by the current
+    // snapshot, they are taken from its size
+    int spend(int length) {
+        int saved = Math.min(length, Math.max(remaining, 0));
+        remaining -= saved;
+        return saved;
+    }
+}
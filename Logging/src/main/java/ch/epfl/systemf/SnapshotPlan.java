@@ -0,0 +1,237 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.ClassIdentifier;
+import ch.epfl.systemf.FileLogger.ClassSchema;
+import ch.epfl.systemf.FileLogger.FieldSink;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.*;
+import java.util.*;
+
+// the fields saved in the snapshot of an object, see ObjectData.saveObject
+// the fields are looked up and made accessible once per class, a snapshot only calls
+// method handles, there is no reflection left on the path of a snapshot
+//
+// the fields of the class then those of its superclasses, each class in the order of
+// getDeclaredFields, the static fields included
+// the fields of a class compiled with the plugin are given by its generated snapshot
+// method, see TreeInstrumenter.snapshotMethod, the others are read by getters
+// the objects of a class with a serializer are saved by the serializer, see Serializers
+//
+// the snapshot of an immutable object never changes, it is saved once per epoch, see immutable
+final class SnapshotPlan {
+
+    static final String SNAPSHOT_METHOD = "$pw$snapshot";
+
+    // every getter takes the object and returns the boxed value of the field
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SNAPSHOT = MethodType.methodType(void.class, Object.class, FieldSink.class);
+
+    // the value classes of the JDK, their objects never change
+    private static final Set<Class<?>> IMMUTABLES = Set.of(
+            String.class, Integer.class, Long.class, Boolean.class, Character.class, Byte.class,
+            Short.class, Float.class, Double.class, BigInteger.class, BigDecimal.class, UUID.class,
+            Instant.class, Duration.class, Period.class, LocalDate.class, LocalTime.class,
+            LocalDateTime.class, OffsetDateTime.class, ZonedDateTime.class);
+
+    private static final ClassValue<SnapshotPlan> plans = new ClassValue<>() {
+        @Override
+        protected SnapshotPlan computeValue(Class<?> type) {
+            return new SnapshotPlan(type);
+        }
+    };
+
+    // a step is either the getter of a field, names[i] is then its name, or the snapshot
+    // method of a class, names[i] is then null
+    private final String[] names;
+    private final MethodHandle[] steps;
+    // the getter of a primitive field, its value is a literal of the type of the field
+    private final boolean[] primitives;
+    private final int size;
+    // the fields that cannot be made accessible, they are named in the schema, see ClassSchema
+    private final List<String> inaccessible;
+    // null if the fields are saved
+    private final Serializers.Serializer<Object> serializer;
+    private final boolean immutable;
+    private final boolean traced;
+
+    private final ClassIdentifier clazz;
+    // known after the first snapshot, the generated snapshot methods give the names and types
+    private volatile ClassSchema schema;
+
+    private SnapshotPlan(Class<?> type) {
+        List<String> names = new ArrayList<>();
+        List<MethodHandle> steps = new ArrayList<>();
+        List<Boolean> primitives = new ArrayList<>();
+        List<String> inaccessible = new ArrayList<>();
+        int size = 0;
+        this.serializer = Serializers.of(type);
+        //TODO return field from interface but who use static interface fields
+        for (Class<?> c = serializer == null ? type : null; c != null; c = c.getSuperclass()) {
+            MethodHandle generated = generated(c);
+            if (generated != null) {
+                names.add(null);
+                steps.add(generated);
+                primitives.add(false);
+            }
+            for (Field f : c.getDeclaredFields()) {
+                if (ObjectIds.isInjected(f))
+                    continue;
+                // the fields of a package that is not open (java.base without --add-opens) are
+                // left out, the JDK collections have a serializer
+                if (generated == null && !f.trySetAccessible()) {
+                    inaccessible.add(f.getName());
+                    continue;
+                }
+                size += 1;
+                if (generated == null) {
+                    names.add(f.getName());
+                    steps.add(getter(f));
+                    primitives.add(f.getType().isPrimitive());
+                }
+            }
+        }
+        this.names = names.toArray(String[]::new);
+        this.steps = steps.toArray(MethodHandle[]::new);
+        this.primitives = new boolean[primitives.size()];
+        for (int i = 0; i < this.primitives.length; ++i)
+            this.primitives[i] = primitives.get(i);
+        this.size = size;
+        this.inaccessible = List.copyOf(inaccessible);
+        this.clazz = new ClassIdentifier(type.getPackageName(), type.getSimpleName());
+        this.immutable = serializer == null && (IMMUTABLES.contains(type) || immutableRecord(type, new HashSet<>()));
+        this.traced = serializer == null && traced(type);
+    }
+
+    // the class and its superclasses with instance fields were compiled with the plugin, their
+    // fields are only written by traced code, which saves the object again after each write,
+    // see TreeInstrumenter.logFieldWrite
+    private static boolean traced(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            boolean fields = Arrays.stream(c.getDeclaredFields())
+                    .anyMatch(f -> !Modifier.isStatic(f.getModifiers()) && !ObjectIds.isInjected(f));
+            boolean compiled = Arrays.stream(c.getDeclaredMethods())
+                    .anyMatch(m -> m.getName().equals(SNAPSHOT_METHOD));
+            if (fields && !compiled)
+                return false;
+        }
+        return true;
+    }
+
+    // a record whose fields, the static ones included, are final and hold primitives, enums,
+    // value classes of the JDK or immutable records, nor its fields nor the objects they
+    // refer to can change
+    // the records of a cycle are immutable if nothing else in the cycle is mutable
+    private static boolean immutableRecord(Class<?> type, Set<Class<?>> visiting) {
+        if (!type.isRecord())
+            return false;
+        if (!visiting.add(type))
+            return true;
+        for (Field f : type.getDeclaredFields()) {
+            if (ObjectIds.isInjected(f))
+                continue;
+            Class<?> t = f.getType();
+            if (!Modifier.isFinal(f.getModifiers()))
+                return false;
+            if (!t.isPrimitive() && !t.isEnum() && !(IMMUTABLES.contains(t) && Modifier.isFinal(t.getModifiers()))
+                    && !immutableRecord(t, visiting))
+                return false;
+        }
+        return true;
+    }
+
+    // the snapshot method generated by the plugin in c, null if c was compiled without the
+    // plugin or has fields added by javac that the plugin did not see (this$0, $VALUES, ...),
+    // the synthetic field of the sites is injected by the plugin
+    private static MethodHandle generated(Class<?> c) {
+        for (Field f : c.getDeclaredFields()) {
+            if (f.isSynthetic() && !ObjectIds.isInjected(f))
+                return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(c, MethodHandles.lookup());
+            return lookup.findStatic(c, SNAPSHOT_METHOD, MethodType.methodType(void.class, c, FieldSink.class))
+                    .asType(SNAPSHOT);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    // f is accessible
+    private static MethodHandle getter(Field f) {
+        try {
+            MethodHandle getter = MethodHandles.lookup().unreflectGetter(f);
+            if (Modifier.isStatic(f.getModifiers()))
+                getter = MethodHandles.dropArguments(getter, 0, Object.class);
+            return getter.asType(GETTER);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static SnapshotPlan of(Class<?> clazz) {
+        return plans.get(clazz);
+    }
+
+    // number of fields, those of a serializer are known after its first snapshot
+    int size() {
+        ClassSchema current = schema;
+        return serializer != null && current != null ? current.names().size() : size;
+    }
+
+    // whether the snapshot of an object of the class never changes, the object is then saved
+    // once per epoch, see FileLogger.writeReference
+    boolean immutable() {
+        return immutable;
+    }
+
+    // whether the snapshot of an object of the class only changes by traced writes, the object
+    // is then saved once per epoch and after each write, see FileLogger.writeReference
+    boolean traced() {
+        return traced;
+    }
+
+    // null before the first snapshot
+    ClassSchema schema() {
+        return schema;
+    }
+
+    // the schema given by the names and types of a snapshot, the first one sent to a sink
+    // that records them, two threads taking the first snapshot can build two schemas,
+    // each snapshot refers to the one it is written with
+    ClassSchema schema(FieldSink sink) {
+        ClassSchema current = schema;
+        if (current == null) {
+            current = ClassSchema.of(clazz, sink.names(), sink.types(), inaccessible);
+            schema = current;
+        }
+        return current;
+    }
+
+    void snapshot(Object obj, FieldSink sink) {
+        if (serializer != null) {
+            serializer.snapshot(obj, sink);
+            return;
+        }
+        try {
+            for (int i = 0; i < steps.length; ++i) {
+                if (names[i] == null)
+                    steps[i].invokeExact(obj, sink);
+                else if (primitives[i])
+                    sink.primitiveField(names[i], (Object) steps[i].invokeExact(obj));
+                else
+                    sink.objectField(names[i], (Object) steps[i].invokeExact(obj));
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
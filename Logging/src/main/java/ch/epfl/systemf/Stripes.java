@@ -0,0 +1,23 @@
+package ch.epfl.systemf;
+
+// spreads the threads over a small number of shared resources (buffers, rings)
+// instead of giving each thread its own, there can be millions of virtual threads
+final class Stripes {
+
+    private static final int COUNT = Integer.highestOneBit(
+            Math.clamp(2L * Runtime.getRuntime().availableProcessors() - 1, 1, 63)) << 1;
+
+    private Stripes() {
+    }
+
+    // a power of two, at least twice the number of processors
+    static int count() {
+        return COUNT;
+    }
+
+    // preferred stripe of the current thread, must be masked by the caller
+    static int index() {
+        long h = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+}
@@ -0,0 +1,134 @@
+package ch.epfl.systemf;
+
+import java.util.Locale;
+
+// options of the logger, read once from the system properties
+// example : java -Dprintwizard.format=binary -cp ... Main
+final class TraceConfig {
+
+    private static final String PREFIX = "printwizard.";
+
+    private TraceConfig() {
+    }
+
+    /*******************************************************
+     **************** Options ******************
+     *******************************************************/
+
+    enum Format {
+        // eventTrace.json and objectData.json, read directly by the frontend
+        JSON,
+        // eventTrace.bin and objectData.bin, see TraceExport to get back the json files
+        BINARY,
+        // eventTrace.ndjson and objectData.ndjson, one value per line, readable after a crash
+        NDJSON
+    }
+
+    static final Format format = enumProperty("format", Format.class, Format.JSON);
+
+    // every flushInterval ms the recorded events are written and forced to the disk,
+    // 0 to only write them when the buffers are full and at exit
+    static final int flushInterval = intProperty("flushInterval", format == Format.NDJSON ? 1000 : 0);
+
+    enum Output {
+        // one file per stream
+        STREAM,
+        // memory mapped segments of segmentSize MB, see MappedSegmentSink
+        MMAP
+    }
+
+    static final Output output = enumProperty("output", Output.class, Output.STREAM);
+
+    static final int segmentSize = intProperty("segmentSize", 256);
+
+    // number of ids (sequence numbers, versions) after which a new epoch starts, 0 for
+    // a single epoch, each epoch is a segment that can be read alone, see FileLogger.nextSeq
+    static final int epochSize = intProperty("epochSize", 0);
+
+    // with epochs, the oldest epochs are deleted to keep at most the last retainSegments
+    // epochs and retainSize MB of segments, 0 for no limit
+    static final int retainSegments = intProperty("retainSegments", 0);
+
+    static final int retainSize = intProperty("retainSize", 0);
+
+    // the files are compressed in blocks of blockSize KB, see DeflateSink
+    // only for output=stream without epochs
+    static final boolean compress = booleanProperty("compress", false);
+
+    static final int blockSize = intProperty("blockSize", 1024);
+
+    // the traces are very repetitive, the fastest level (1) already divides the size of
+    // a json trace by about 10, the default level of deflate (6) by about 15 for twice the time
+    static final int compressionLevel = intProperty("compressionLevel", 1);
+
+    // a written object is saved as the fields that changed since its previous snapshot, with
+    // a full snapshot every deltaInterval deltas, 0 to always save every field, see ObjectDelta
+    static final int deltaInterval = intProperty("deltaInterval", 16);
+
+    // saving an object saves the objects its fields refer to, a snapshot stops at snapshotDepth
+    // nested objects and after snapshotSize fields and array elements, the references to the
+    // objects left out are truncated, see SnapshotBudget, 0 for no limit
+    static final int snapshotDepth = intProperty("snapshotDepth", 8);
+
+    static final int snapshotSize = intProperty("snapshotSize", 10_000);
+
+    // only the first maxStringLength chars of a string are saved, 0 for no limit
+    static final int maxStringLength = intProperty("maxStringLength", 1000);
+
+    // in the binary format, the first stringTableSize distinct short strings get an id and are
+    // written once per chunk, see BinaryTraceFormat.StringTable, 0 to always write them in full
+    static final int stringTableSize = intProperty("stringTableSize", 1 << 14);
+
+    // events are encoded and written by a background thread, see AsyncTraceWriter
+    // opt-in : the rings take memory and the writer thread competes with the traced program
+    static final boolean async = booleanProperty("async", false);
+
+    // number of events each ring can buffer before the overflow policy applies,
+    // there are about twice as many rings as processors, a ring takes about
+    // 64 bytes per event once a thread used it
+    static final int ringCapacity = intProperty("ringCapacity", 1 << 14);
+
+    enum Overflow {
+        // the traced thread waits for the writer, no event is lost
+        BLOCK,
+        // events are dropped, their number is written in the trace
+        DROP,
+        // one event out of sampleRate is kept until the ring is half empty
+        SAMPLE
+    }
+
+    static final Overflow overflow = enumProperty("overflow", Overflow.class, Overflow.BLOCK);
+
+    static final int sampleRate = intProperty("sampleRate", 16);
+
+    /*******************************************************
+     **************** helpers ******************
+     *******************************************************/
+
+    static boolean booleanProperty(String name, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("option " + PREFIX + name + " expects a number, got " + value, e);
+        }
+    }
+
+    static <E extends Enum<E>> E enumProperty(String name, Class<E> clazz, E defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Enum.valueOf(clazz, value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown value " + value + " for option " + PREFIX + name, e);
+        }
+    }
+}
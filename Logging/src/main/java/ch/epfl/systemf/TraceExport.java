@@ -0,0 +1,68 @@
+package ch.epfl.systemf;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+// converts a binary trace to the json files read by the frontend
+// usage : java -cp Logging/target/classes:json.jar ch.epfl.systemf.TraceExport [directory]
+// the directory is the one where the traced program was executed
+// a trace written in segments (printwizard.output=mmap) is read through its manifests,
+// a compressed trace (printwizard.compress) is inflated
+public class TraceExport {
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : ".");
+
+        List<File> traceIn = inputs(dir, BinaryTraceWriter.TRACE_FILE_NAME);
+        List<File> objectDataIn = inputs(dir, BinaryTraceWriter.OBJECT_DATA_FILE_NAME);
+        if (traceIn.isEmpty() || objectDataIn.isEmpty()) {
+            System.err.println("no binary trace in " + dir.getAbsolutePath());
+            System.exit(1);
+        }
+
+        try (JsonTraceWriter out = new JsonTraceWriter(
+                new File(dir, JsonTraceWriter.TRACE_FILE_NAME).getPath(),
+                new File(dir, JsonTraceWriter.OBJECT_DATA_FILE_NAME).getPath())) {
+            for (File file : traceIn)
+                replay(file, out);
+            for (File file : objectDataIn)
+                replay(file, out);
+        }
+    }
+
+    // the file itself, compressed or not, or the segments listed in its manifest, in order
+    private static List<File> inputs(File dir, String fileName) throws IOException {
+        File file = new File(dir, fileName);
+        if (file.isFile())
+            return List.of(file);
+
+        File compressed = new File(dir, fileName + DeflateSink.SUFFIX);
+        if (compressed.isFile())
+            return List.of(compressed);
+
+        File manifest = new File(dir, fileName + MappedSegmentSink.MANIFEST_SUFFIX);
+        if (!manifest.isFile())
+            return List.of();
+
+        JSONArray segments = new JSONObject(Files.readString(manifest.toPath())).getJSONArray("segments");
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < segments.length(); i++) {
+            File segment = new File(dir, segments.getJSONObject(i).getString("file"));
+            // deleted by the retention of the logger since the manifest was written
+            if (segment.isFile())
+                files.add(segment);
+        }
+        return files;
+    }
+
+    private static void replay(File file, TraceWriter out) throws IOException {
+        if (!new BinaryTraceReader(file.getPath()).replay(out))
+            System.err.println(file.getName() + " is truncated, only complete records were exported");
+    }
+}
@@ -0,0 +1,69 @@
+package ch.epfl.systemf;
+
+import ch.epfl.systemf.FileLogger.*;
+
+import java.io.IOException;
+
+// receives every event FileLogger records, an implementation decides how
+// the events are encoded and where they are written
+// both the event trace and the object data go through the same writer
+//
+// the methods are called concurrently by the traced threads
+interface TraceWriter extends AutoCloseable {
+
+    /**************
+     ********* trace
+     **************/
+
+    // every event carries the id of the thread that executed it and a
+    // sequence number, the events of one thread are in sequence order
+    // but the events of different threads may be interleaved in any order
+
+    // an expression, a call and a return give the site of their node key, see Sites
+    // the writes of an expression and the values of a call are the first count elements of
+    // the array, the array is only valid during the call, the caller reuses it
+
+    // kind is null for statement and sub statement
+    void groupEvent(long thread, long seq, long eventId, GroupEventType type, ControlFlowKind kind, boolean start);
+
+    void expression(long thread, long seq, int site, Value result, Write[] assigns, int count);
+
+    void expressionWithoutReturn(long thread, long seq, int site, Write[] assigns, int count);
+
+    void call(long thread, long seq, int site, long stepId, Value[] argValues, int count);
+
+    void voidCall(long thread, long seq, int site, long stepId, Value[] argValues, int count);
+
+    void callReturn(long thread, long seq, int site, long stepId, Value result);
+
+    // count events were dropped since the previous call, the trace is incomplete,
+    // see TraceConfig.overflow
+    void dropped(long count);
+
+    /**************
+     ********* object data
+     **************/
+
+    void objectData(ObjectData data);
+
+    void objectDelta(ObjectDelta delta);
+
+    void arrayData(ArrayData data);
+
+    void arrayDelta(ArrayDelta delta);
+
+    /**************
+     ********* segments and durability
+     **************/
+
+    // starts new segments of the trace and of the object data, the events and the
+    // object data recorded before the call are written to the previous segments
+    void rollover();
+
+    // writes the events and the object data recorded before the call to the files
+    // and forces the files to the disk, see TraceConfig.flushInterval
+    void flush();
+
+    @Override
+    void close() throws IOException;
+}
@@ -1,7 +1,11 @@
 import json
+import os
+import sys
 from enum import Enum
 
 tracePath = './IntegrationTest/examples/Boids/eventTrace.json'
+# written with printwizard.format=ndjson
+linesPath = './IntegrationTest/examples/Boids/eventTrace.ndjson'
 
 EventGroupKind =  Enum('EventGroupKind', ['controlFlow', 'statement', 'subStatement'])
 class EventGroup:
@@ -13,18 +17,23 @@ class EventGroup:
 def isGroupEvent(json):
     return json['type'] == 'GroupEvent'
 
-def eventTree(startIdx, labels):
-    label = labels[startIdx]
-    assert(label['pos']=='start')
+# in a cut trace (cut=True) the groups still open at the end are closed there
+def eventTree(startIdx, labels, cut=False):
+    start = labels[startIdx]
+    assert(start['pos']=='start')
     children = []
     
     index = startIdx + 1
+    if cut and index == len(labels):
+        return (index, EventGroup(children, EventGroupKind[start['eventType']]))
     label = labels[index]
     while label['pos'] != 'end':
-        (endIndex, event) =  eventTree(index, labels)
+        (endIndex, event) =  eventTree(index, labels, cut)
+        children.append(event)
         index = endIndex + 1
+        if cut and index >= len(labels):
+            return (index, EventGroup(children, EventGroupKind[start['eventType']]))
         label = labels[index]
-        children.append(event)
         
 
     return (index, EventGroup(children, EventGroupKind[label['eventType']]))
@@ -63,10 +72,58 @@ def verifySubstatement(event):
         return False
     return True
 
-with open(tracePath) as f:
-    data = json.load(f)
-    tree = eventTree(0, list(filter(isGroupEvent, data['trace'])))[1]
-    print(verifyFlow(tree))
+# the events of each thread form their own trees
+def eventsByThread(labels):
+    threads = {}
+    for label in labels:
+        threads.setdefault(label.get('thread', 0), []).append(label)
+    for events in threads.values():
+        events.sort(key=lambda label: label.get('seq', 0))
+    return threads
+
+def verifyThread(labels, cut=False):
+    index = 0
+    while index < len(labels):
+        (endIndex, tree) = eventTree(index, labels, cut)
+        if not verifyFlow(tree):
+            return False
+        index = endIndex + 1
+    return True
+
+# one event per line, the last line is a commit marker written when the program exits
+# a trace without it was cut, its last line can be incomplete
+def readLines(path):
+    events = []
+    committed = False
+    with open(path) as f:
+        for line in f:
+            if not line.endswith('\n'):
+                break
+            event = json.loads(line)
+            if event.get('commit'):
+                committed = True
+            else:
+                events.append(event)
+    return (events, committed)
+
+if os.path.exists(tracePath):
+    with open(tracePath) as f:
+        events = json.load(f)['trace']
+    cut = False
+else:
+    (events, committed) = readLines(linesPath)
+    cut = not committed
+    # the complete lines are still verified, the groups open when it was cut are not closed
+    if cut:
+        print('the trace was cut, the traced program did not exit normally, only its complete lines are verified', file=sys.stderr)
+
+# written when events were dropped while tracing, group events are never dropped
+dropped = sum(event['count'] for event in events if event['type'] == 'Dropped')
+if dropped > 0:
+    print(f'{dropped} events were dropped while tracing', file=sys.stderr)
+
+threads = eventsByThread(filter(isGroupEvent, events))
+print(all(verifyThread(labels, cut) for labels in threads.values()))
     
     
     